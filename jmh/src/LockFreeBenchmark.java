@@ -0,0 +1,117 @@
+package src;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+/***
+ * How LockFreeBinarySearchTree and the lock-based ConcurrentBinarySearchTree scale, from 1 to 64 threads. Each thread
+ * count is a benchmark method of its own with its own @Threads, so one run sweeps all of them:
+ *  java -jar target/benchmarks.jar LockFreeBenchmark
+ * and one method, or a thread count in between, can be picked with a method filter or with -t, which overrides
+ * @Threads:
+ *  java -jar target/benchmarks.jar 'LockFreeBenchmark.threads16' -p range=1000
+ * A small range puts every writer on the same few nodes, where a stalled lock holder would show; a large one mostly
+ * measures the walk down the tree. Past the number of cores the threads are preempted, which is where not holding
+ * locks is meant to pay off.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LockFreeBenchmark {
+
+    @Param({"lockfree", "cbst"})
+    public String target;
+
+    @Param({"1000", "100000"})
+    public int range;
+
+    @Param({"uniform"})
+    public String dist;
+
+    @Param({"90/5/5", "50/25/25"})
+    public String mix;
+
+    private Workload workload;
+
+    @State(Scope.Thread)
+    public static class Worker {
+        private TreeBenchmark.KeySource keys;
+        private SplittableRandom random;
+
+        @Setup(Level.Trial)
+        public void setUp(LockFreeBenchmark benchmark, ThreadParams thread) {
+            keys = benchmark.workload.keySource(thread.getThreadIndex(), thread.getThreadCount());
+            random = new SplittableRandom(31L * thread.getThreadIndex() + 17);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws InterruptedException {
+        workload = new Workload(target, range, dist, mix);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        workload.close();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean threads1(Worker worker) throws InterruptedException {
+        return workload.operation(worker.keys, worker.random);
+    }
+
+    @Benchmark
+    @Threads(2)
+    public boolean threads2(Worker worker) throws InterruptedException {
+        return workload.operation(worker.keys, worker.random);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean threads4(Worker worker) throws InterruptedException {
+        return workload.operation(worker.keys, worker.random);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public boolean threads8(Worker worker) throws InterruptedException {
+        return workload.operation(worker.keys, worker.random);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public boolean threads16(Worker worker) throws InterruptedException {
+        return workload.operation(worker.keys, worker.random);
+    }
+
+    @Benchmark
+    @Threads(32)
+    public boolean threads32(Worker worker) throws InterruptedException {
+        return workload.operation(worker.keys, worker.random);
+    }
+
+    @Benchmark
+    @Threads(64)
+    public boolean threads64(Worker worker) throws InterruptedException {
+        return workload.operation(worker.keys, worker.random);
+    }
+}
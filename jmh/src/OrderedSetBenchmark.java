@@ -0,0 +1,79 @@
+package src;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+/***
+ * JMH benchmark of BST, ConcurrentBinarySearchTree and the JDK's ordered sets under the workloads of TreeBenchmark:
+ * every trial starts from a random half of [0, range) and then each thread draws keys from the chosen distribution and
+ * reads, inserts or removes them in the chosen mix. Throughput mode reports operations per microsecond, sample time
+ * mode the latency percentiles of single operations.
+ * The thread count is JMH's own, so vary it with -t, for example
+ *  mvn -Pjmh package
+ *  java -jar target/benchmarks.jar OrderedSetBenchmark -t 4 -p target=cbst,skiplist -p dist=zipf
+ * Every target TreeBenchmark knows can be passed as a target. BST is left out of mixes with removes and of sorted keys
+ * on large ranges for the reasons given there; such a trial fails in its setup and JMH moves on to the next one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OrderedSetBenchmark {
+
+    @Param({"bst", "cbst", "skiplist", "treeset"})
+    public String target;
+
+    @Param({"1000", "100000"})
+    public int range;
+
+    @Param({"uniform", "zipf", "sorted"})
+    public String dist;
+
+    @Param({"90/5/5", "50/25/25"})
+    public String mix;
+
+    private Workload workload;
+
+    @State(Scope.Thread)
+    public static class Worker {
+        private TreeBenchmark.KeySource keys;
+        private SplittableRandom random;
+
+        @Setup(Level.Trial)
+        public void setUp(OrderedSetBenchmark benchmark, ThreadParams thread) {
+            keys = benchmark.workload.keySource(thread.getThreadIndex(), thread.getThreadCount());
+            random = new SplittableRandom(31L * thread.getThreadIndex() + 17);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws InterruptedException {
+        workload = new Workload(target, range, dist, mix);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        workload.close();
+    }
+
+    @Benchmark
+    public boolean operation(Worker worker) throws InterruptedException {
+        return workload.operation(worker.keys, worker.random);
+    }
+}
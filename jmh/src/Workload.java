@@ -0,0 +1,68 @@
+package src;
+
+import java.util.SplittableRandom;
+
+/***
+ * One TreeBenchmark workload set up for the JMH benchmarks: the target, prefilled with a random half of [0, range),
+ * the boxed keys and Zipf tables the key sources draw from, and the read/insert/remove mix.
+ */
+final class Workload {
+    private final TreeBenchmark.Target set;
+    private final Integer[] boxedKeys;
+    private final String distribution;
+    private final double[] zipfTable;
+    private final int[] zipfScramble;
+    private final int readLimit;
+    private final int insertLimit;
+
+    /***
+     * @param mix read/insert/remove percentages, e.g. 90/5/5
+     * @throws IllegalStateException if TreeBenchmark would skip the target on this workload
+     */
+    Workload(String target, int range, String distribution, String mix) throws InterruptedException {
+        String[] parts = mix.split("/");
+        int[] percentages = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            percentages[i] = Integer.parseInt(parts[i].trim());
+        }
+        if (percentages.length != 3 || percentages[0] + percentages[1] + percentages[2] != 100)
+            throw new IllegalArgumentException("mix must be read/insert/remove adding up to 100: " + mix);
+        String skipReason = TreeBenchmark.skipReason(target, range, distribution, percentages);
+        if (skipReason != null)
+            throw new IllegalStateException("not run: " + skipReason);
+        readLimit = percentages[0];
+        insertLimit = percentages[0] + percentages[1];
+
+        boxedKeys = new Integer[range];
+        for (int key = 0; key < range; key++) {
+            boxedKeys[key] = key;
+        }
+        this.distribution = distribution;
+        zipfTable = distribution.equals("zipf") ? TreeBenchmark.zipfCumulative(range) : null;
+        zipfScramble = distribution.equals("zipf") ? TreeBenchmark.scramble(range) : null;
+        set = TreeBenchmark.createTarget(target, range);
+        TreeBenchmark.prefill(set, boxedKeys);
+    }
+
+    /* The keys one benchmark thread draws, as TreeBenchmark's thread of the same index would. */
+    TreeBenchmark.KeySource keySource(int threadIndex, int threadCount) {
+        return TreeBenchmark.keySource(distribution, boxedKeys.length, zipfTable, zipfScramble, threadIndex, threadCount);
+    }
+
+    /* Reads, inserts or removes the next key, as the dice fall for the mix. */
+    boolean operation(TreeBenchmark.KeySource keys, SplittableRandom random) throws InterruptedException {
+        Integer key = boxedKeys[keys.next()];
+        int dice = random.nextInt(100);
+        if (dice < readLimit)
+            return set.contains(key);
+        if (dice < insertLimit)
+            set.insert(key);
+        else
+            set.remove(key);
+        return true;
+    }
+
+    void close() throws InterruptedException {
+        set.close();
+    }
+}
@@ -0,0 +1,148 @@
+package src;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Collections;
+
+/***
+ * Measures how many bytes the insert, remove and contains paths allocate per operation, using the per-thread
+ * allocation counter of the HotSpot ThreadMXBean. Keys are boxed before measuring starts so only the trees' own
+ * allocations are counted. A quiet ConcurrentBinarySearchTree should come out at one node per insert and nothing for
+ * remove and contains; the verbose one is measured too, with standard out thrown away, to show what the logging costs.
+ * Usage: AllocationBenchmark [keys, default 200000] [threads, default all cores]
+ */
+public class AllocationBenchmark {
+
+    private interface Target {
+        void insert(Integer key) throws InterruptedException;
+
+        void remove(Integer key) throws InterruptedException;
+
+        boolean contains(Integer key);
+    }
+
+    private interface Operation {
+        void apply(Target target, Integer key) throws InterruptedException;
+    }
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) throws InterruptedException {
+        int keyCount = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        int threadCount = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        if (!THREADS.isThreadAllocatedMemorySupported())
+            throw new IllegalStateException("this JVM cannot count allocated bytes per thread");
+        THREADS.setThreadAllocatedMemoryEnabled(true);
+
+        Integer[] keys = new Integer[keyCount];
+        for (int i = 0; i < keyCount; i++) {
+            keys[i] = i;
+        }
+        Collections.shuffle(Arrays.asList(keys));
+
+        System.out.println(keyCount + " keys, " + threadCount + " threads, bytes allocated per operation");
+        // the first pass only warms up the JIT, so escape analysis has had its chance before we count anything
+        for (String pass : new String[]{"warm-up", "measured"}) {
+            System.out.println(pass);
+            measure("quiet tree", quietTree(), keys, threadCount);
+            measure("balanced tree", balancedTree(), keys, threadCount);
+            PrintStream standardOut = System.out;
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            String verboseLine;
+            try {
+                verboseLine = measureToString("verbose tree", verboseTree(), keys, threadCount);
+            } finally {
+                System.setOut(standardOut);
+            }
+            System.out.println(verboseLine);
+        }
+    }
+
+    private static Target quietTree() {
+        return wrap(new ConcurrentBinarySearchTree<>(false));
+    }
+
+    private static Target verboseTree() {
+        return wrap(new ConcurrentBinarySearchTree<>(true));
+    }
+
+    private static Target wrap(ConcurrentBinarySearchTree<Integer> tree) {
+        return new Target() {
+            public void insert(Integer key) throws InterruptedException {
+                tree.insert(key);
+            }
+
+            public void remove(Integer key) throws InterruptedException {
+                tree.remove(key);
+            }
+
+            public boolean contains(Integer key) {
+                return tree.contains(key);
+            }
+        };
+    }
+
+    private static Target balancedTree() {
+        BalancedConcurrentBinarySearchTree<Integer> tree = new BalancedConcurrentBinarySearchTree<>();
+        return new Target() {
+            public void insert(Integer key) {
+                tree.insert(key);
+            }
+
+            public void remove(Integer key) {
+                tree.remove(key);
+            }
+
+            public boolean contains(Integer key) {
+                return tree.contains(key);
+            }
+        };
+    }
+
+    private static void measure(String name, Target target, Integer[] keys, int threadCount) throws InterruptedException {
+        System.out.println(measureToString(name, target, keys, threadCount));
+    }
+
+    private static String measureToString(String name, Target target, Integer[] keys, int threadCount) throws InterruptedException {
+        double insertBytes = bytesPerOperation(target, keys, threadCount, Target::insert);
+        double containsBytes = bytesPerOperation(target, keys, threadCount, Target::contains);
+        double removeBytes = bytesPerOperation(target, keys, threadCount, Target::remove);
+        return String.format("  %-14s insert %8.1f  contains %8.1f  remove %8.1f", name, insertBytes, containsBytes, removeBytes);
+    }
+
+    /* Thread t works on every threadCount-th key starting at t, and reads its own allocation counter before and after,
+     * so starting and joining the threads is not counted. */
+    private static double bytesPerOperation(Target target, Integer[] keys, int threadCount, Operation operation) throws InterruptedException {
+        Thread[] threads = new Thread[threadCount];
+        long[] allocated = new long[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            final int threadIndex = t;
+            threads[t] = new Thread(() -> {
+                long threadId = Thread.currentThread().getId();
+                long before = THREADS.getThreadAllocatedBytes(threadId);
+                try {
+                    for (int i = threadIndex; i < keys.length; i += threadCount) {
+                        operation.apply(target, keys[i]);
+                    }
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+                allocated[threadIndex] = THREADS.getThreadAllocatedBytes(threadId) - before;
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long total = 0;
+        for (long bytes : allocated) {
+            total += bytes;
+        }
+        return (double) total / keys.length;
+    }
+}
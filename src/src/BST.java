@@ -1,7 +1,7 @@
 package src;
 
 import java.util.concurrent.Semaphore;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.lang.Integer;
 
@@ -30,7 +30,7 @@ public class BST<E extends Comparable<E>> implements BinarySearchTree<E> {
     private Integer data; // the root's element
     private BST<Integer> leftSubTree; // reference to left subtree
     private BST<Integer> rightSubTree; // reference to right subtree
-    private AtomicInteger size; // track the tree's size
+    private LongAdder size; // track the whole tree's size, one counter shared by every subtree
     private Semaphore inserterLock; // used as our locks between nodes in the tree when inserting to prevent multiple
     // insertions in the same place at the same time.
 
@@ -39,7 +39,7 @@ public class BST<E extends Comparable<E>> implements BinarySearchTree<E> {
         data = null;
         leftSubTree = null;
         rightSubTree = null;
-        size = new AtomicInteger(0);
+        size = new LongAdder();
         inserterLock = new Semaphore(1);
     }
 
@@ -47,7 +47,17 @@ public class BST<E extends Comparable<E>> implements BinarySearchTree<E> {
         data = rootElement;
         leftSubTree = null;
         rightSubTree = null;
-        size = new AtomicInteger(1);
+        size = new LongAdder();
+        size.increment();
+        inserterLock = new Semaphore(1);
+    }
+
+    /* A subtree holding one element, which counts towards the size of the tree it is part of. */
+    private BST(int rootElement, LongAdder size) {
+        data = rootElement;
+        leftSubTree = null;
+        rightSubTree = null;
+        this.size = size;
         inserterLock = new Semaphore(1);
     }
 
@@ -64,18 +74,20 @@ public class BST<E extends Comparable<E>> implements BinarySearchTree<E> {
             } else {
                 inserterLock.acquire(1);
             }
-            size.incrementAndGet();
             if (data == null) { // if the element is null we can place it there.
                 data = element;
+                size.increment(); // counted once the element is in place, not on every level passed on the way down
                 inserterLock.release();
             } else if (element.compareTo(data) > 0 && (rightSubTree == null)) { // if the element is greater and there is no
-                rightSubTree = new BST<>(element);
+                rightSubTree = new BST<>(element, size);
+                size.increment();
                 inserterLock.release();
             } else if (element.compareTo(data) > 0) { // if the element is greater
                 rightSubTree.insertRecursive(element, (BST<Integer>) this); // we recurse until there is an empty subtree to add the element
             } else if (element.compareTo(data) <= 0 && (leftSubTree == null)) {
                 // if the element is lesser and there is no leftSubtree
-                leftSubTree = new BST<>(element);
+                leftSubTree = new BST<>(element, size);
+                size.increment();
                 inserterLock.release();
             } else if (element.compareTo(data) <= 0) { // if the element is lesser and there is a leftSubTree
                 leftSubTree.insertRecursive(element, (BST<Integer>) this); // we recurse until there is an empty subtree to add the element
@@ -105,14 +117,14 @@ public class BST<E extends Comparable<E>> implements BinarySearchTree<E> {
                 } else if (data.compareTo(e) == 0) {
                     // we have found the node that we were looking for (I still haven't found what I'm looking for ... U2)
                     if (leftSubTree == null && rightSubTree == null) {
-                        size.decrementAndGet();
+                        size.decrement();
                         data = null;
                         inserterLock.release();
                     } else if (leftSubTree == null) { // if there is no left node.
                         rightSubTree.inserterLock.acquire();
                         rightSubTree.leftSubTree.inserterLock.acquire();
                         rightSubTree.rightSubTree.inserterLock.acquire();
-                        size.decrementAndGet();
+                        size.decrement();
                         data = rightSubTree.data;
                         leftSubTree = rightSubTree.leftSubTree;
                         rightSubTree = rightSubTree.rightSubTree;
@@ -124,7 +136,7 @@ public class BST<E extends Comparable<E>> implements BinarySearchTree<E> {
                         leftSubTree.inserterLock.acquire();
                         leftSubTree.leftSubTree.inserterLock.acquire();
                         leftSubTree.rightSubTree.inserterLock.acquire();
-                        size.decrementAndGet();
+                        size.decrement();
                         data = leftSubTree.data;
                         rightSubTree = leftSubTree.rightSubTree;
                         leftSubTree = leftSubTree.leftSubTree;
@@ -133,7 +145,7 @@ public class BST<E extends Comparable<E>> implements BinarySearchTree<E> {
                         leftSubTree.rightSubTree.inserterLock.release();
                         inserterLock.release();
                     } else { // if there are two nodes
-                        size.decrementAndGet();
+                        size.decrement();
                         rightSubTree.inserterLock.acquire(); // we lock off the right subtree, b/c we need the next node
                         // that is next largest to replace the removed node.
                         data = minValue(rightSubTree).getRootElement(); // we get the lowest node on the right subtree
@@ -158,14 +170,14 @@ public class BST<E extends Comparable<E>> implements BinarySearchTree<E> {
                 } else if (data.compareTo(e) == 0) {
                     // we have found the node that we were looking for (I still haven't found what I'm looking for ... U2)
                     if (leftSubTree == null && rightSubTree == null) {
-                        size.decrementAndGet();
+                        size.decrement();
                         data = null;
                         inserterLock.release();
                     } else if (leftSubTree == null) { // if there is no left node.
                         rightSubTree.inserterLock.acquire();
                         rightSubTree.leftSubTree.inserterLock.acquire();
                         rightSubTree.rightSubTree.inserterLock.acquire();
-                        size.decrementAndGet();
+                        size.decrement();
                         data = rightSubTree.data;
                         leftSubTree = rightSubTree.leftSubTree;
                         rightSubTree = rightSubTree.rightSubTree;
@@ -177,7 +189,7 @@ public class BST<E extends Comparable<E>> implements BinarySearchTree<E> {
                         leftSubTree.inserterLock.acquire();
                         leftSubTree.leftSubTree.inserterLock.acquire();
                         leftSubTree.rightSubTree.inserterLock.acquire();
-                        size.decrementAndGet();
+                        size.decrement();
                         data = leftSubTree.data;
                         rightSubTree = leftSubTree.rightSubTree;
                         leftSubTree = leftSubTree.leftSubTree;
@@ -186,7 +198,7 @@ public class BST<E extends Comparable<E>> implements BinarySearchTree<E> {
                         leftSubTree.rightSubTree.inserterLock.release();
                         inserterLock.release();
                     } else { // if there are two nodes
-                        size.decrementAndGet();
+                        size.decrement();
                         rightSubTree.inserterLock.acquire(); // we lock off the right subtree, b/c we need the next node
                         // that is next largest to replace the removed node.
                         data = minValue(rightSubTree).getRootElement(); // we get the lowest node on the right subtree
@@ -241,12 +253,12 @@ public class BST<E extends Comparable<E>> implements BinarySearchTree<E> {
 
     @Override
     public int size() {
-        return size.get();
+        return (int) size.sum();
     }
 
     @Override
     public boolean isEmpty() {
-        return size.get() <= 0;
+        return size.sum() <= 0;
     }
 
     @Override
@@ -272,7 +284,7 @@ public class BST<E extends Comparable<E>> implements BinarySearchTree<E> {
      * inOrder and inOrderRec were also developed using sample code from geeksForGeeks
      */
     void inOrder() {
-        // System.out.println(size.get());
+        // System.out.println(size.sum());
         inOrderRec((BST<Integer>) this);
     }
 
@@ -0,0 +1,688 @@
+package src;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.LongAdder;
+
+/***
+ * Self-balancing variant of ConcurrentBinarySearchTree, following the relaxed AVL tree of Bronson, Casper, Chafi and
+ * Olukotun ("A Practical Concurrent Binary Search Tree").
+ * Rep. Invariant:
+ *  The tree holds each element at most once. Left descendants are smaller and right descendants larger than a node.
+ *  Heights are only approximately right while writers are running; every writer repairs the heights and rotates on its
+ *  way back up from the node it changed, so once the tree is quiet again it is AVL balanced and the depth is O(log n)
+ *  no matter in which order the keys arrived.
+ * Features:
+ *  Keys never move between nodes. Removing an element that has two children only clears the node's present flag and
+ *  leaves it behind as a routing node; routing nodes are unlinked later, once rebalancing leaves them with at most one
+ *  child.
+ *  Rotations lock just the parent, the node and one or two children, so writers in different parts of the tree do not
+ *  wait for each other.
+ *  Lookups take no locks. A rotation shrinks the key range of the node that moves down, so that node is marked as
+ *  shrinking while it changes and a reader standing on it retries.
+ * @param <E>
+ */
+public class BalancedConcurrentBinarySearchTree<E extends Comparable<E>> {
+    private static final VarHandle VERSION;
+    private static final int SPINS_BEFORE_YIELD = 64;
+
+    /* Version word layout: the lowest bit is the node lock, which readers ignore. The next bit is set while a rotation
+     * shrinks the node's key range, and the one after it once the node has been unlinked. Everything above counts the
+     * shrinks the node has gone through. */
+    private static final long LOCKED = 1L;
+    private static final long SHRINKING = 2L;
+    private static final long UNLINKED = 4L;
+    private static final long SHRINK_COUNT_UNIT = 8L;
+
+    /* What a node needs, as worked out by nodeCondition; any value of 1 or more is the height it should have. */
+    private static final int UNLINK_REQUIRED = -1;
+    private static final int REBALANCE_REQUIRED = -2;
+    private static final int NOTHING_REQUIRED = -3;
+
+    static {
+        try {
+            VERSION = MethodHandles.lookup().findVarHandle(BalancedConcurrentBinarySearchTree.Node.class, "version", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /* Sentinel above the tree, whose right child is the root. It is never rotated, so it is the one node whose parent is
+     * null. */
+    private final Node<E> rootHolder = new Node<>(null, false, null);
+    private final LongAdder size = new LongAdder();
+
+    private class Node<E extends Comparable<E>> implements TreePrinter.PrintableNode {
+        private final E dataOfNode;
+        private volatile boolean present;
+        private volatile int height;
+        private volatile Node<E> parent;
+        private volatile Node<E> leftChild;
+        private volatile Node<E> rightChild;
+        private volatile long version;
+
+        private Node(E dataOfNode, boolean present, Node<E> parent) {
+            this.dataOfNode = dataOfNode;
+            this.present = present;
+            this.parent = parent;
+            this.height = 1;
+        }
+
+        private void grab() {
+            int spins = 0;
+            while (true) {
+                long currentVersion = version;
+                if ((currentVersion & LOCKED) == 0 && VERSION.compareAndSet(this, currentVersion, currentVersion | LOCKED))
+                    return;
+                if (++spins < SPINS_BEFORE_YIELD)
+                    Thread.onSpinWait();
+                else
+                    Thread.yield();
+            }
+        }
+
+        private void letGo() {
+            version = version & ~LOCKED;
+        }
+
+        /* The version a reader validates against. Waits out a rotation that is shrinking this node. */
+        private long stableVersion() {
+            long currentVersion = version;
+            int spins = 0;
+            while ((currentVersion & SHRINKING) != 0) {
+                if (++spins < SPINS_BEFORE_YIELD)
+                    Thread.onSpinWait();
+                else
+                    Thread.yield();
+                currentVersion = version;
+            }
+            return currentVersion & ~LOCKED;
+        }
+
+        private boolean hasVersion(long expectedVersion) {
+            return (version & ~LOCKED) == expectedVersion;
+        }
+
+        private boolean isUnlinked() {
+            return (version & UNLINKED) != 0;
+        }
+
+        private void beginShrink() {
+            version = version | SHRINKING;
+        }
+
+        private void endShrink() {
+            version = (version & ~SHRINKING) + SHRINK_COUNT_UNIT;
+        }
+
+        private Node<E> child(boolean left) {
+            return left ? leftChild : rightChild;
+        }
+
+        private void setChild(boolean left, Node<E> node) {
+            if (left)
+                leftChild = node;
+            else
+                rightChild = node;
+        }
+
+        /* Points whichever child slot currently holds oldChild at newChild. */
+        private void replaceChild(Node<E> oldChild, Node<E> newChild) {
+            if (leftChild == oldChild)
+                leftChild = newChild;
+            else
+                rightChild = newChild;
+        }
+
+        @Override
+        public TreePrinter.PrintableNode getLeft() {
+            return leftChild;
+        }
+
+        @Override
+        public TreePrinter.PrintableNode getRight() {
+            return rightChild;
+        }
+
+        @Override
+        public String getText() {
+            return present ? dataOfNode.toString() : "(" + dataOfNode + ")";
+        }
+    }
+
+    public BalancedConcurrentBinarySearchTree() {
+    }
+
+    public int size() {
+        return (int) Math.max(0, size.sum());
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /***
+     * @return the height of the tree, 0 when it is empty
+     */
+    public int height() {
+        return height(rootHolder.rightChild);
+    }
+
+    private int height(Node<E> node) {
+        return node == null ? 0 : node.height;
+    }
+
+    /***
+     * Lock-free lookup.
+     * @param element the element to look for
+     * @return true if an element equal to the given one is in the tree
+     */
+    public boolean contains(E element) {
+        retry:
+        while (true) {
+            Node<E> parentNode = rootHolder;
+            long parentVersion = parentNode.stableVersion();
+            boolean goLeft = false;
+            while (true) {
+                Node<E> currentNode = parentNode.child(goLeft);
+                if (currentNode == null) {
+                    if (!parentNode.hasVersion(parentVersion))
+                        continue retry;
+                    return false;
+                }
+                int comparison = element.compareTo(currentNode.dataOfNode);
+                if (comparison == 0)
+                    return currentNode.present;
+                long currentVersion = currentNode.stableVersion();
+                if (parentNode.child(goLeft) != currentNode || !parentNode.hasVersion(parentVersion))
+                    continue retry;
+                goLeft = comparison < 0;
+                parentNode = currentNode;
+                parentVersion = currentVersion;
+            }
+        }
+    }
+
+    /***
+     * Inserts an element unless an equal one is already present. The new node's parent then walks back up fixing
+     * heights and rotating where needed.
+     * @param element
+     * @return true if the element was added
+     */
+    public boolean insert(E element) {
+        retry:
+        while (true) {
+            Node<E> parentNode = rootHolder;
+            long parentVersion = parentNode.stableVersion();
+            boolean goLeft = false;
+            while (true) {
+                Node<E> currentNode = parentNode.child(goLeft);
+                if (currentNode == null) {
+                    parentNode.grab();
+                    if (!parentNode.hasVersion(parentVersion) || parentNode.child(goLeft) != null) {
+                        parentNode.letGo();
+                        continue retry;
+                    }
+                    parentNode.setChild(goLeft, new Node<>(element, true, parentNode));
+                    parentNode.letGo();
+                    size.increment();
+                    fixHeightAndRebalance(parentNode);
+                    return true;
+                }
+                int comparison = element.compareTo(currentNode.dataOfNode);
+                if (comparison == 0) {
+                    currentNode.grab();
+                    if (currentNode.isUnlinked()) {
+                        currentNode.letGo();
+                        continue retry;
+                    }
+                    boolean wasPresent = currentNode.present;
+                    currentNode.present = true;
+                    currentNode.letGo();
+                    if (wasPresent)
+                        return false;
+                    size.increment();
+                    return true;
+                }
+                long currentVersion = currentNode.stableVersion();
+                if (parentNode.child(goLeft) != currentNode || !parentNode.hasVersion(parentVersion))
+                    continue retry;
+                goLeft = comparison < 0;
+                parentNode = currentNode;
+                parentVersion = currentVersion;
+            }
+        }
+    }
+
+    /***
+     * Removes an element. A node with at most one child is unlinked straight away; a node with two children stays in
+     * place as a routing node.
+     * @param element
+     * @return true if the element was found and removed
+     */
+    public boolean remove(E element) {
+        retry:
+        while (true) {
+            Node<E> parentNode = rootHolder;
+            long parentVersion = parentNode.stableVersion();
+            boolean goLeft = false;
+            while (true) {
+                Node<E> currentNode = parentNode.child(goLeft);
+                if (currentNode == null) {
+                    if (!parentNode.hasVersion(parentVersion))
+                        continue retry;
+                    return false;
+                }
+                int comparison = element.compareTo(currentNode.dataOfNode);
+                if (comparison == 0) {
+                    if (!currentNode.present)
+                        return false;
+                    int outcome = removeNode(currentNode);
+                    if (outcome < 0)
+                        continue retry;
+                    return outcome == 1;
+                }
+                long currentVersion = currentNode.stableVersion();
+                if (parentNode.child(goLeft) != currentNode || !parentNode.hasVersion(parentVersion))
+                    continue retry;
+                goLeft = comparison < 0;
+                parentNode = currentNode;
+                parentVersion = currentVersion;
+            }
+        }
+    }
+
+    /* Returns 1 if we removed the element, 0 if someone beat us to it, and -1 if the node moved and we need to search
+     * again. Locks are taken parent first, like everywhere else in this class: the parent read without a lock is only
+     * trusted once it is held, and the node is only locked after that, while it is still the parent's child. A rotation
+     * in between could have lifted the node above it, and locking the node first would then take them child first. */
+    private int removeNode(Node<E> nodeToRemove) {
+        Node<E> parentNode = nodeToRemove.parent;
+        parentNode.grab();
+        try {
+            if (parentNode.isUnlinked() || nodeToRemove.parent != parentNode)
+                return -1;
+            nodeToRemove.grab();
+            try {
+                if (nodeToRemove.isUnlinked())
+                    return -1;
+                if (!nodeToRemove.present)
+                    return 0;
+                nodeToRemove.present = false;
+                if (nodeToRemove.leftChild == null || nodeToRemove.rightChild == null)
+                    attemptUnlink(parentNode, nodeToRemove);
+            } finally {
+                nodeToRemove.letGo();
+            }
+        } finally {
+            parentNode.letGo();
+        }
+        size.decrement();
+        fixHeightAndRebalance(parentNode);
+        return 1;
+    }
+
+    /***
+     * Unlinks a routing node that has at most one child, splicing that child into its place. Both nodes must be held.
+     * @return false if the node is no longer a child of the parent or has gained a second child
+     */
+    private boolean attemptUnlink(Node<E> parentNode, Node<E> node) {
+        if (parentNode.leftChild != node && parentNode.rightChild != node)
+            return false;
+        Node<E> left = node.leftChild, right = node.rightChild;
+        if (left != null && right != null)
+            return false;
+        Node<E> splice = left != null ? left : right;
+        parentNode.replaceChild(node, splice);
+        if (splice != null)
+            splice.parent = parentNode;
+        node.version = node.version | UNLINKED;
+        return true;
+    }
+
+    // rebalancing support sub-methods
+
+    private int nodeCondition(Node<E> node) {
+        Node<E> left = node.leftChild, right = node.rightChild;
+        if ((left == null || right == null) && !node.present)
+            return UNLINK_REQUIRED;
+        int heightOfNode = node.height, heightOfLeft = height(left), heightOfRight = height(right);
+        int heightReplacement = 1 + Math.max(heightOfLeft, heightOfRight);
+        int balance = heightOfLeft - heightOfRight;
+        if (balance < -1 || balance > 1)
+            return REBALANCE_REQUIRED;
+        return heightOfNode != heightReplacement ? heightReplacement : NOTHING_REQUIRED;
+    }
+
+    /***
+     * Walks up from a node a writer just changed, fixing heights, unlinking routing nodes and rotating, until it reaches
+     * a node that needs nothing. Each step locks at most the parent, the node and the one or two children a rotation
+     * moves, and lets go of them again before moving up.
+     */
+    private void fixHeightAndRebalance(Node<E> node) {
+        ArrayDeque<Node<E>> resumeAt = null;
+        while (true) {
+            if (node == null || node.parent == null || node.isUnlinked() || nodeCondition(node) == NOTHING_REQUIRED) {
+                if (resumeAt == null || resumeAt.isEmpty())
+                    return;
+                node = resumeAt.pop();
+                continue;
+            }
+            int condition = nodeCondition(node);
+            if (condition != UNLINK_REQUIRED && condition != REBALANCE_REQUIRED) {
+                Node<E> heldNode = node;
+                heldNode.grab();
+                try {
+                    node = fixHeight(heldNode);
+                } finally {
+                    heldNode.letGo();
+                }
+            } else {
+                Node<E> parentNode = node.parent;
+                parentNode.grab();
+                try {
+                    if (!parentNode.isUnlinked() && node.parent == parentNode) {
+                        Node<E> heldNode = node;
+                        heldNode.grab();
+                        try {
+                            node = rebalance(parentNode, heldNode);
+                            if (node != null && node != parentNode && node.parent != parentNode.parent) {
+                                // the rotation left work below parentNode; once that is done parentNode's own balance
+                                // has to be looked at again, since its subtree may have shrunk in the meantime
+                                if (resumeAt == null)
+                                    resumeAt = new ArrayDeque<>();
+                                resumeAt.push(parentNode);
+                            }
+                        } finally {
+                            heldNode.letGo();
+                        }
+                    }
+                } finally {
+                    parentNode.letGo();
+                }
+            }
+        }
+    }
+
+    /* Node must be held. Returns the next node to look at, or null when nothing further up can have changed. */
+    private Node<E> fixHeight(Node<E> node) {
+        int condition = nodeCondition(node);
+        switch (condition) {
+            case REBALANCE_REQUIRED:
+            case UNLINK_REQUIRED:
+                return node;
+            case NOTHING_REQUIRED:
+                return null;
+            default:
+                node.height = condition;
+                return node.parent;
+        }
+    }
+
+    /* Parent and node must be held. */
+    private Node<E> rebalance(Node<E> parentNode, Node<E> node) {
+        Node<E> left = node.leftChild, right = node.rightChild;
+        if ((left == null || right == null) && !node.present) {
+            if (attemptUnlink(parentNode, node))
+                return fixHeight(parentNode);
+            return node;
+        }
+        int heightOfNode = node.height, heightOfLeft = height(left), heightOfRight = height(right);
+        int heightReplacement = 1 + Math.max(heightOfLeft, heightOfRight);
+        int balance = heightOfLeft - heightOfRight;
+        if (balance > 1) {
+            return rebalanceToRight(parentNode, node, left, heightOfRight);
+        } else if (balance < -1) {
+            return rebalanceToLeft(parentNode, node, right, heightOfLeft);
+        } else if (heightReplacement != heightOfNode) {
+            node.height = heightReplacement;
+            return fixHeight(parentNode);
+        }
+        return null;
+    }
+
+    private Node<E> rebalanceToRight(Node<E> parentNode, Node<E> node, Node<E> left, int heightOfRight) {
+        left.grab();
+        try {
+            int heightOfLeft = left.height;
+            if (heightOfLeft - heightOfRight <= 1)
+                return node;
+            Node<E> leftRight = left.rightChild;
+            int heightOfLeftLeft = height(left.leftChild);
+            int heightOfLeftRight = height(leftRight);
+            if (heightOfLeftLeft >= heightOfLeftRight)
+                return rotateRight(parentNode, node, left, heightOfRight, heightOfLeftLeft, leftRight, heightOfLeftRight);
+            leftRight.grab();
+            try {
+                heightOfLeftRight = leftRight.height;
+                if (heightOfLeftLeft >= heightOfLeftRight)
+                    return rotateRight(parentNode, node, left, heightOfRight, heightOfLeftLeft, leftRight, heightOfLeftRight);
+                int heightOfLeftRightLeft = height(leftRight.leftChild);
+                int balance = heightOfLeftLeft - heightOfLeftRightLeft;
+                if (balance >= -1 && balance <= 1)
+                    return rotateRightOverLeft(parentNode, node, left, heightOfRight, heightOfLeftLeft, leftRight, heightOfLeftRightLeft);
+            } finally {
+                leftRight.letGo();
+            }
+            // a double rotation would leave left unbalanced, so first rotate left's subtree on its own
+            return rebalanceToLeft(node, left, leftRight, heightOfLeftLeft);
+        } finally {
+            left.letGo();
+        }
+    }
+
+    private Node<E> rebalanceToLeft(Node<E> parentNode, Node<E> node, Node<E> right, int heightOfLeft) {
+        right.grab();
+        try {
+            int heightOfRight = right.height;
+            if (heightOfLeft - heightOfRight >= -1)
+                return node;
+            Node<E> rightLeft = right.leftChild;
+            int heightOfRightLeft = height(rightLeft);
+            int heightOfRightRight = height(right.rightChild);
+            if (heightOfRightRight >= heightOfRightLeft)
+                return rotateLeft(parentNode, node, heightOfLeft, right, rightLeft, heightOfRightLeft, heightOfRightRight);
+            rightLeft.grab();
+            try {
+                heightOfRightLeft = rightLeft.height;
+                if (heightOfRightRight >= heightOfRightLeft)
+                    return rotateLeft(parentNode, node, heightOfLeft, right, rightLeft, heightOfRightLeft, heightOfRightRight);
+                int heightOfRightLeftRight = height(rightLeft.rightChild);
+                int balance = heightOfRightRight - heightOfRightLeftRight;
+                if (balance >= -1 && balance <= 1)
+                    return rotateLeftOverRight(parentNode, node, heightOfLeft, right, rightLeft, heightOfRightRight, heightOfRightLeftRight);
+            } finally {
+                rightLeft.letGo();
+            }
+            return rebalanceToRight(node, right, rightLeft, heightOfRightRight);
+        } finally {
+            right.letGo();
+        }
+    }
+
+    /***
+     * Single rotation to the right: left takes node's place and node becomes its right child. Only node loses keys
+     * from its range, so it is the only one marked as shrinking. Parent, node and left must be held.
+     */
+    private Node<E> rotateRight(Node<E> parentNode, Node<E> node, Node<E> left, int heightOfRight, int heightOfLeftLeft, Node<E> leftRight, int heightOfLeftRight) {
+        node.beginShrink();
+        node.leftChild = leftRight;
+        if (leftRight != null)
+            leftRight.parent = node;
+        left.rightChild = node;
+        node.parent = left;
+        parentNode.replaceChild(node, left);
+        left.parent = parentNode;
+        int heightReplacement = 1 + Math.max(heightOfLeftRight, heightOfRight);
+        node.height = heightReplacement;
+        left.height = 1 + Math.max(heightOfLeftLeft, heightReplacement);
+        node.endShrink();
+
+        int balanceOfNode = heightOfLeftRight - heightOfRight;
+        if (balanceOfNode < -1 || balanceOfNode > 1)
+            return node;
+        if ((leftRight == null || heightOfRight == 0) && !node.present)
+            return node;
+        int balanceOfLeft = heightOfLeftLeft - heightReplacement;
+        if (balanceOfLeft < -1 || balanceOfLeft > 1)
+            return left;
+        if (heightOfLeftLeft == 0 && !left.present)
+            return left;
+        return fixHeight(parentNode);
+    }
+
+    private Node<E> rotateLeft(Node<E> parentNode, Node<E> node, int heightOfLeft, Node<E> right, Node<E> rightLeft, int heightOfRightLeft, int heightOfRightRight) {
+        node.beginShrink();
+        node.rightChild = rightLeft;
+        if (rightLeft != null)
+            rightLeft.parent = node;
+        right.leftChild = node;
+        node.parent = right;
+        parentNode.replaceChild(node, right);
+        right.parent = parentNode;
+        int heightReplacement = 1 + Math.max(heightOfLeft, heightOfRightLeft);
+        node.height = heightReplacement;
+        right.height = 1 + Math.max(heightReplacement, heightOfRightRight);
+        node.endShrink();
+
+        int balanceOfNode = heightOfRightLeft - heightOfLeft;
+        if (balanceOfNode < -1 || balanceOfNode > 1)
+            return node;
+        if ((rightLeft == null || heightOfLeft == 0) && !node.present)
+            return node;
+        int balanceOfRight = heightOfRightRight - heightReplacement;
+        if (balanceOfRight < -1 || balanceOfRight > 1)
+            return right;
+        if (heightOfRightRight == 0 && !right.present)
+            return right;
+        return fixHeight(parentNode);
+    }
+
+    /***
+     * Double rotation: leftRight takes node's place, with left and node as its children. Both node and left lose keys
+     * from their ranges. Parent, node, left and leftRight must be held.
+     */
+    private Node<E> rotateRightOverLeft(Node<E> parentNode, Node<E> node, Node<E> left, int heightOfRight, int heightOfLeftLeft, Node<E> leftRight, int heightOfLeftRightLeft) {
+        Node<E> leftRightLeft = leftRight.leftChild, leftRightRight = leftRight.rightChild;
+        int heightOfLeftRightRight = height(leftRightRight);
+        node.beginShrink();
+        left.beginShrink();
+        node.leftChild = leftRightRight;
+        if (leftRightRight != null)
+            leftRightRight.parent = node;
+        left.rightChild = leftRightLeft;
+        if (leftRightLeft != null)
+            leftRightLeft.parent = left;
+        leftRight.leftChild = left;
+        left.parent = leftRight;
+        leftRight.rightChild = node;
+        node.parent = leftRight;
+        parentNode.replaceChild(node, leftRight);
+        leftRight.parent = parentNode;
+        int heightReplacement = 1 + Math.max(heightOfLeftRightRight, heightOfRight);
+        node.height = heightReplacement;
+        int leftHeightReplacement = 1 + Math.max(heightOfLeftLeft, heightOfLeftRightLeft);
+        left.height = leftHeightReplacement;
+        node.endShrink();
+        left.endShrink();
+        if ((heightOfLeftLeft == 0 || heightOfLeftRightLeft == 0) && !left.present) {
+            // left is now a routing node with a single child, and we hold both it and its new parent, so splice it out
+            attemptUnlink(leftRight, left);
+            leftHeightReplacement = Math.max(heightOfLeftLeft, heightOfLeftRightLeft);
+        }
+        leftRight.height = 1 + Math.max(leftHeightReplacement, heightReplacement);
+
+        int balanceOfNode = heightOfLeftRightRight - heightOfRight;
+        if (balanceOfNode < -1 || balanceOfNode > 1)
+            return node;
+        if ((leftRightRight == null || heightOfRight == 0) && !node.present)
+            return node;
+        int balanceOfLeftRight = leftHeightReplacement - heightReplacement;
+        if (balanceOfLeftRight < -1 || balanceOfLeftRight > 1)
+            return leftRight;
+        return fixHeight(parentNode);
+    }
+
+    private Node<E> rotateLeftOverRight(Node<E> parentNode, Node<E> node, int heightOfLeft, Node<E> right, Node<E> rightLeft, int heightOfRightRight, int heightOfRightLeftRight) {
+        Node<E> rightLeftLeft = rightLeft.leftChild, rightLeftRight = rightLeft.rightChild;
+        int heightOfRightLeftLeft = height(rightLeftLeft);
+        node.beginShrink();
+        right.beginShrink();
+        node.rightChild = rightLeftLeft;
+        if (rightLeftLeft != null)
+            rightLeftLeft.parent = node;
+        right.leftChild = rightLeftRight;
+        if (rightLeftRight != null)
+            rightLeftRight.parent = right;
+        rightLeft.rightChild = right;
+        right.parent = rightLeft;
+        rightLeft.leftChild = node;
+        node.parent = rightLeft;
+        parentNode.replaceChild(node, rightLeft);
+        rightLeft.parent = parentNode;
+        int heightReplacement = 1 + Math.max(heightOfLeft, heightOfRightLeftLeft);
+        node.height = heightReplacement;
+        int rightHeightReplacement = 1 + Math.max(heightOfRightLeftRight, heightOfRightRight);
+        right.height = rightHeightReplacement;
+        node.endShrink();
+        right.endShrink();
+        if ((heightOfRightRight == 0 || heightOfRightLeftRight == 0) && !right.present) {
+            attemptUnlink(rightLeft, right);
+            rightHeightReplacement = Math.max(heightOfRightRight, heightOfRightLeftRight);
+        }
+        rightLeft.height = 1 + Math.max(heightReplacement, rightHeightReplacement);
+
+        int balanceOfNode = heightOfRightLeftLeft - heightOfLeft;
+        if (balanceOfNode < -1 || balanceOfNode > 1)
+            return node;
+        if ((rightLeftLeft == null || heightOfLeft == 0) && !node.present)
+            return node;
+        int balanceOfRightLeft = rightHeightReplacement - heightReplacement;
+        if (balanceOfRightLeft < -1 || balanceOfRightLeft > 1)
+            return rightLeft;
+        return fixHeight(parentNode);
+    }
+
+    /***
+     * Checks, while no writer is running, that the elements are in order and that every node is AVL balanced.
+     */
+    public boolean isBST() {
+        return checkSubtree(rootHolder.rightChild, null, null) >= 0;
+    }
+
+    /* Returns the height of the subtree, or -1 if it is out of order or out of balance. */
+    private int checkSubtree(Node<E> node, E lowerBound, E upperBound) {
+        if (node == null)
+            return 0;
+        if ((lowerBound != null && node.dataOfNode.compareTo(lowerBound) <= 0) || (upperBound != null && node.dataOfNode.compareTo(upperBound) >= 0))
+            return -1;
+        int heightOfLeft = checkSubtree(node.leftChild, lowerBound, node.dataOfNode);
+        int heightOfRight = checkSubtree(node.rightChild, node.dataOfNode, upperBound);
+        if (heightOfLeft < 0 || heightOfRight < 0 || Math.abs(heightOfLeft - heightOfRight) > 1)
+            return -1;
+        return 1 + Math.max(heightOfLeft, heightOfRight);
+    }
+
+    public void breadthFirstPrint() {
+        TreePrinter.print(rootHolder.rightChild);
+    }
+
+    public void inOrderPrint() {
+        Node<E> rootNode = rootHolder.rightChild;
+        if (rootNode != null) {
+            System.out.print("[ ");
+            inOrderPrintFrom(rootNode);
+            System.out.println(" ]");
+        }
+    }
+
+    void inOrderPrintFrom(Node<E> fromAnyNode) {
+        if (fromAnyNode != null) {
+            inOrderPrintFrom(fromAnyNode.leftChild);
+            if (fromAnyNode.present)
+                System.out.print(fromAnyNode.dataOfNode + ", ");
+            inOrderPrintFrom(fromAnyNode.rightChild);
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package src;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.Predicate;
+
+/***
+ * Fills a BalancedConcurrentBinarySearchTree with sorted and with shuffled keys from several threads at once, then
+ * looks every key up again, then has all threads remove and re-insert every key at once, and does the same with a
+ * ConcurrentSkipListSet for reference. The churn phase runs removes next to inserts and the rotations they trigger, and
+ * checks afterwards that every key is back. For the tree it also reports the height it ended up with next to log2(n),
+ * which is what sorted input used to blow up.
+ * Usage: BalancedTreeBenchmark [keys, default 1000000] [threads, default all cores] [rounds, default 3]
+ */
+public class BalancedTreeBenchmark {
+
+    private interface Target {
+        void insert(Integer key);
+
+        boolean remove(Integer key);
+
+        boolean contains(Integer key);
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int keyCount = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int threadCount = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+
+        Integer[] sortedKeys = new Integer[keyCount];
+        for (int i = 0; i < keyCount; i++) {
+            sortedKeys[i] = i;
+        }
+        Integer[] shuffledKeys = sortedKeys.clone();
+        Collections.shuffle(Arrays.asList(shuffledKeys));
+
+        System.out.println(keyCount + " keys, " + threadCount + " threads, log2(n) = " + (int) Math.ceil(Math.log(keyCount) / Math.log(2)));
+        for (int round = 1; round <= rounds; round++) {
+            System.out.println("round " + round);
+            runTree("sorted", sortedKeys, threadCount);
+            runTree("random", shuffledKeys, threadCount);
+            runSkipList("sorted", sortedKeys, threadCount);
+            runSkipList("random", shuffledKeys, threadCount);
+        }
+    }
+
+    private static void runTree(String order, Integer[] keys, int threadCount) throws InterruptedException {
+        BalancedConcurrentBinarySearchTree<Integer> tree = new BalancedConcurrentBinarySearchTree<>();
+        Target target = new Target() {
+            public void insert(Integer key) {
+                tree.insert(key);
+            }
+
+            public boolean remove(Integer key) {
+                return tree.remove(key);
+            }
+
+            public boolean contains(Integer key) {
+                return tree.contains(key);
+            }
+        };
+        long insertNanos = insertAll(target, keys, threadCount);
+        long lookupNanos = lookupAll(target, keys, threadCount);
+        long churnNanos = churnAll(target, keys, threadCount);
+        lookupAll(target, keys, threadCount);
+        report("balanced tree", order, keys.length, insertNanos, lookupNanos, churnNanos,
+                "height " + tree.height() + ", size " + tree.size() + ", balanced " + tree.isBST());
+    }
+
+    private static void runSkipList(String order, Integer[] keys, int threadCount) throws InterruptedException {
+        ConcurrentSkipListSet<Integer> set = new ConcurrentSkipListSet<>();
+        Target target = new Target() {
+            public void insert(Integer key) {
+                set.add(key);
+            }
+
+            public boolean remove(Integer key) {
+                return set.remove(key);
+            }
+
+            public boolean contains(Integer key) {
+                return set.contains(key);
+            }
+        };
+        long insertNanos = insertAll(target, keys, threadCount);
+        long lookupNanos = lookupAll(target, keys, threadCount);
+        long churnNanos = churnAll(target, keys, threadCount);
+        lookupAll(target, keys, threadCount);
+        report("skip list", order, keys.length, insertNanos, lookupNanos, churnNanos, "size " + set.size());
+    }
+
+    /* Thread t takes every threadCount-th key starting at t, so with sorted keys the threads together still insert in
+     * ascending order. */
+    private static long insertAll(Target target, Integer[] keys, int threadCount) throws InterruptedException {
+        return runThreads(threadCount, t -> {
+            for (int i = t; i < keys.length; i += threadCount) {
+                target.insert(keys[i]);
+            }
+            return true;
+        });
+    }
+
+    private static long lookupAll(Target target, Integer[] keys, int threadCount) throws InterruptedException {
+        return runThreads(threadCount, t -> {
+            for (int i = t; i < keys.length; i += threadCount) {
+                if (!target.contains(keys[i]))
+                    return false;
+            }
+            return true;
+        });
+    }
+
+    /* Every thread removes each of its keys and puts it straight back, so removes on one thread overlap with inserts on
+     * the others. Each key is only touched by its own thread, so every remove has to find its key. */
+    private static long churnAll(Target target, Integer[] keys, int threadCount) throws InterruptedException {
+        return runThreads(threadCount, t -> {
+            for (int i = t; i < keys.length; i += threadCount) {
+                if (!target.remove(keys[i]))
+                    return false;
+                target.insert(keys[i]);
+            }
+            return true;
+        });
+    }
+
+    private static long runThreads(int threadCount, Predicate<Integer> work) throws InterruptedException {
+        Thread[] threads = new Thread[threadCount];
+        boolean[] succeeded = new boolean[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            final int threadIndex = t;
+            threads[t] = new Thread(() -> succeeded[threadIndex] = work.test(threadIndex));
+        }
+        long start = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsed = System.nanoTime() - start;
+        for (boolean threadSucceeded : succeeded) {
+            if (!threadSucceeded)
+                throw new IllegalStateException("a key that was inserted could not be found again, or removed");
+        }
+        return elapsed;
+    }
+
+    private static void report(String name, String order, int keyCount, long insertNanos, long lookupNanos,
+                               long churnNanos, String shape) {
+        System.out.printf("  %-14s %-7s insert %8.1f ms (%6.2f Mops/s)  lookup %8.1f ms (%6.2f Mops/s)"
+                        + "  churn %8.1f ms (%6.2f Mops/s)  %s%n",
+                name, order,
+                insertNanos / 1e6, keyCount * 1e3 / insertNanos,
+                lookupNanos / 1e6, keyCount * 1e3 / lookupNanos,
+                churnNanos / 1e6, 2 * keyCount * 1e3 / churnNanos,
+                shape);
+    }
+}
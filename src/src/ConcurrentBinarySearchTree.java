@@ -1,35 +1,246 @@
 package src;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.concurrent.Semaphore;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterators;
+import java.util.Spliterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
-public class ConcurrentBinarySearchTree<E extends Comparable<E>> {
-    private Node<E> rootNode;
+/***
+ * Concurrent binary search tree using optimistic lock coupling.
+ * Every node carries a version word instead of a lock object. A writer walks down the tree reading versions rather
+ * than taking locks: it reads a node's version, reads the child pointer it needs, reads the child's version and then
+ * checks that the parent's version has not moved. If anything on the way changed underneath it, it starts over from
+ * the top. Only the one to three nodes that an insert or remove actually changes are locked, by moving their version
+ * from even to odd with a single compare-and-set, so the atomic traffic of an operation does not grow with the depth
+ * of the tree.
+ * @param <E>
+ */
+public class ConcurrentBinarySearchTree<E extends Comparable<E>> implements Iterable<E> {
+    private static final VarHandle VERSION;
+    private static final VarHandle COUNT;
+    private static final int SPINS_BEFORE_YIELD = 64;
 
+    static {
+        try {
+            VERSION = MethodHandles.lookup().findVarHandle(ConcurrentBinarySearchTree.Node.class, "version", long.class);
+            COUNT = MethodHandles.lookup().findVarHandle(ConcurrentBinarySearchTree.Node.class, "count", int.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /* Sentinel that sits above the tree. Its right child is the root, so replacing the root is guarded by a version
+     * just like replacing any other child pointer. */
+    private final Node<E> rootHolder = new Node<>(null, null, null);
+
+    /* Lookups never take a node lock. The only writes that can make a plain top-down search miss a present key are the
+     * successor/predecessor relocations done by the remove methods, which copy a key upward and then unlink the node it
+     * came from. A lookup that missed checks the versions of the nodes bounding the empty slot it reached, which is
+     * where such a key would have been copied to. The iterators cannot tell which node behind them changed, so each
+     * relocation also bumps relocationsStarted before it touches the tree and relocationsFinished once it is done, so
+     * an iterator can tell whether a relocation overlapped it and rebuild its stack. */
+    private final AtomicLong relocationsStarted = new AtomicLong();
+    private final AtomicLong relocationsFinished = new AtomicLong();
+
+    /* Whether insert and remove report what they did on standard out. Off, the only thing an insert allocates is its
+     * new node and a remove allocates nothing at all, and neither does any I/O. */
+    private final boolean verbose;
+
+    /* Snapshot support. Every node remembers the generation it was made in, and taking a snapshot moves the tree on to
+     * a new generation, so the nodes a snapshot can reach are exactly the ones older than the current generation. Those
+     * are never written again: a writer copies each one on its path before changing anything at or below it, and links
+     * the copy in place of the original, so the snapshot keeps the tree as it was. The writers gate lets a snapshot wait
+     * for the writers that are half way through an operation; every public method that changes the tree goes through it
+     * once. */
+    private final Epoch writers = new Epoch();
+    private volatile long generation;
+
+    /* Number of elements, striped so that writers on different cores do not all update the same word. */
+    private final LongAdder elementCount = new LongAdder();
+
+    /* Optimistic descents that found their path changed and had to start over, a measure of how much writers get in
+     * each other's way. */
+    private final LongAdder restarts = new LongAdder();
+
+    /* Optional filter that lets lookups for absent elements return without walking the tree. An element is added to it
+     * before its node is linked in and taken out only after its node is unlinked, so while the element is in the tree
+     * the filter never turns it away. */
+    private final CountingBloomFilter<E> filter;
+
+    /* Optional cache of recently found elements; removes bracket themselves with it so it never serves one that is
+     * gone. */
+    private final LookupCache<E> cache;
+
+    /* Operations given up by tryInsert, tryRemove and tryContains because their time ran out. */
+    private final LongAdder timedOutInserts = new LongAdder();
+    private final LongAdder timedOutRemoves = new LongAdder();
+    private final LongAdder timedOutLookups = new LongAdder();
+
+    /* Deadline of the try operation the thread is in, if it is in one. Only looked at once a writer has to wait for a
+     * node or start over, so operations that run straight through never read it. */
+    private static final ThreadLocal<Deadline> DEADLINE = ThreadLocal.withInitial(Deadline::new);
+
+    private static final class Deadline {
+        private boolean armed;
+        private long at;
+    }
+
+    /* A deadline running out is raised inside the tree as an interrupt, so that every path that already gives up
+     * cleanly on an interrupt, letting go of whatever it holds before it has changed anything, gives up on a deadline
+     * the same way. The try methods turn it into a TimeoutException. */
+    private static final class DeadlineExpired extends InterruptedException {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+
+    /* Null unless metrics are enabled; every operation reads it once and records into it if it is there. */
+    private volatile TreeMetrics metrics;
+
+    /* Whether every node keeps the number of elements in its subtree, for rank and select. A writer records the nodes
+     * it passes on the way down and, once its change is in, adds one to or takes one from each of them. Nodes only ever
+     * lose ancestors in this tree, never gain new ones, so the recorded nodes are exactly the ancestors of the change
+     * plus perhaps some that were unlinked meanwhile, whose counts no longer matter. The counts are exact whenever no
+     * write is in progress and off by at most the writes in progress otherwise. */
+    private final boolean subtreeCounts;
+
+    /* Whether the tree is a multiset: equal elements share one node that counts them, instead of each getting a node of
+     * its own below the last. The count of a node only changes under the node's lock, and moves with its element when a
+     * relocating remove copies the element up, so a node's version covers both. */
+    private final boolean multiset;
+
+    /* Logical deletion, for multisets. While a maintenance thread runs, remove only marks the node deleted under the
+     * node's own lock and queues its element here; the maintenance thread later finds a deleted node with that element
+     * and unlinks it. Every search treats a deleted node as if its element were not there and carries on to the left,
+     * where an equal element would be if there were another node for it, and an insert of an equal element brings the
+     * node back instead of adding one. A relocating remove carries the mark up along with the element, so a queued
+     * element always leads to its node. Only a multiset is sure to have a single node per element: in a plain tree a
+     * relocation can leave an equal element in the right subtree of a deleted node, where searches would miss it. */
+    private volatile Maintenance maintenance;
+    private final ConcurrentLinkedQueue<E> marked = new ConcurrentLinkedQueue<>();
+    private final LongAdder pendingUnlinks = new LongAdder();
+
+    /* Node of a plain tree. A multiset uses MultisetNode, which adds the fields only it needs, and the contention counts
+     * kept while metrics are enabled live in the TreeMetrics, so a node carries nothing for features its tree does not
+     * use. */
     private class Node<E extends Comparable<E>> implements TreePrinter.PrintableNode {
-        private E dataOfNode;
-        private Node<E> leftChild;
-        private Node<E> rightChild;
+        private volatile E dataOfNode;
+        private volatile Node<E> leftChild;
+        private volatile Node<E> rightChild;
 
-        private Semaphore nodeLock;
+        /* Even while nobody holds the node, odd while a writer does. Releasing the node always moves it on to a new even
+         * value, so seeing the same version twice means nothing about this node changed in between. */
+        private volatile long version;
+
+        private final long generation;
+
+        /* Elements in the subtree rooted here, when the tree keeps subtree counts. */
+        private volatile int count = 1;
 
         private Node(E dataOfNode, Node<E> leftChild, Node<E> rightChild) {
             this.dataOfNode = dataOfNode;
             this.leftChild = leftChild;
             this.rightChild = rightChild;
-            nodeLock = new Semaphore(1);
+            this.generation = ConcurrentBinarySearchTree.this.generation;
         }
 
-        private void grab() {
-            try {
-                nodeLock.acquire();
-            } catch (InterruptedException e) {
-                throw new RuntimeException(e);
+        /***
+         * Locks the node, but only if it is still at the version the caller validated its reads against.
+         * @param expectedVersion an even version read earlier
+         * @return true if the node is now held by the caller
+         */
+        private boolean grab(long expectedVersion) {
+            boolean grabbed = VERSION.compareAndSet(this, expectedVersion, expectedVersion + 1);
+            TreeMetrics recorder = metrics;
+            if (recorder != null) {
+                if (grabbed)
+                    recorder.recordAcquisition(this);
+                else
+                    recorder.recordConflict(this);
             }
+            return grabbed;
         }
 
         private void letGo() {
-            nodeLock.release();
+            version = version + 1;
+        }
+
+        /* A node with the same contents, to link in place of one that a snapshot still shares. */
+        Node<E> copy() {
+            Node<E> copy = new Node<>(dataOfNode, leftChild, rightChild);
+            copy.count = count;
+            return copy;
+        }
+
+        /* How many times the element was inserted and not yet removed; more than once only in a multiset. */
+        int occurrences() {
+            return 1;
+        }
+
+        /* Whether a logical remove marked the node; only ever in a multiset. */
+        boolean isDeleted() {
+            return false;
+        }
+
+        /* Takes over the element of the node a relocating remove moves up into this one, under both nodes' locks. */
+        void takeElementOf(Node<E> replacement) {
+            dataOfNode = replacement.dataOfNode;
+        }
+
+        private void addToCount(int delta) {
+            COUNT.getAndAdd(this, delta);
+        }
+
+        /***
+         * Waits until no writer holds the node. Spins briefly and then yields, since writers only ever hold a node for a
+         * handful of pointer writes.
+         * @param depth of the node, the root being at depth 1, for the metrics of how long writers wait where
+         * @return the even version the node was at when it was seen free
+         */
+        private long awaitUnlocked(int depth) throws InterruptedException {
+            long currentVersion = version;
+            if ((currentVersion & 1) == 0)
+                return currentVersion;
+            TreeMetrics recorder = metrics;
+            long waitStart = recorder == null ? 0 : System.nanoTime();
+            int spins = 0;
+            while ((currentVersion & 1) != 0) {
+                if (++spins < SPINS_BEFORE_YIELD) {
+                    Thread.onSpinWait();
+                } else {
+                    if (Thread.interrupted())
+                        throw new InterruptedException();
+                    checkDeadline();
+                    Thread.yield();
+                }
+                currentVersion = version;
+            }
+            if (recorder != null) {
+                recorder.recordLockWait(depth, System.nanoTime() - waitStart);
+                recorder.recordConflict(this);
+            }
+            return currentVersion;
         }
 
         private boolean hasLeftChild() {
@@ -40,8 +251,8 @@ public class ConcurrentBinarySearchTree<E extends Comparable<E>> {
             return rightChild != null;
         }
 
-        private boolean hasBothChildren() {
-            return hasLeftChild() && hasRightChild();
+        private Node<E> child(boolean left) {
+            return left ? leftChild : rightChild;
         }
 
         private void setDataOfNode(E data) {
@@ -56,6 +267,13 @@ public class ConcurrentBinarySearchTree<E extends Comparable<E>> {
             this.rightChild = node;
         }
 
+        private void setChild(boolean left, Node<E> node) {
+            if (left)
+                leftChild = node;
+            else
+                rightChild = node;
+        }
+
         @Override
         public TreePrinter.PrintableNode getLeft() {
             return leftChild;
@@ -68,313 +286,2186 @@ public class ConcurrentBinarySearchTree<E extends Comparable<E>> {
 
         @Override
         public String getText() {
-            return dataOfNode.toString();
+            if (isDeleted())
+                return dataOfNode + " (deleted)";
+            int times = occurrences();
+            return times == 1 ? dataOfNode.toString() : dataOfNode + " (" + times + ")";
+        }
+    }
+
+    private class MultisetNode<E extends Comparable<E>> extends Node<E> {
+        /* How many times the element was inserted and not yet removed. */
+        private volatile int occurrences = 1;
+
+        /* Set by a logical remove, under the node's lock; the node stays linked in until maintenance unlinks it. */
+        private volatile boolean deleted;
+
+        private MultisetNode(E dataOfNode, Node<E> leftChild, Node<E> rightChild) {
+            super(dataOfNode, leftChild, rightChild);
+        }
+
+        @Override
+        Node<E> copy() {
+            MultisetNode<E> copy = new MultisetNode<>(super.dataOfNode, super.leftChild, super.rightChild);
+            copy.occurrences = occurrences;
+            copy.deleted = deleted;
+            Node<E> plain = copy;
+            plain.count = super.count;
+            return copy;
+        }
+
+        @Override
+        int occurrences() {
+            return occurrences;
+        }
+
+        @Override
+        boolean isDeleted() {
+            return deleted;
+        }
+
+        @Override
+        void takeElementOf(Node<E> replacement) {
+            super.takeElementOf(replacement);
+            occurrences = replacement.occurrences();
+            deleted = replacement.isDeleted();
+        }
+    }
+
+    /* A node as the heat map sees it, with the contention counts a TreeMetrics kept for it. */
+    private static final class HeatView implements ContentionHeatMap.HeatNode {
+        private final TreePrinter.PrintableNode node;
+        private final TreeMetrics counts;
+
+        private HeatView(TreePrinter.PrintableNode node, TreeMetrics counts) {
+            this.node = node;
+            this.counts = counts;
+        }
+
+        private static HeatView of(TreePrinter.PrintableNode node, TreeMetrics counts) {
+            return node == null ? null : new HeatView(node, counts);
+        }
+
+        @Override
+        public TreePrinter.PrintableNode getLeft() {
+            return of(node.getLeft(), counts);
+        }
+
+        @Override
+        public TreePrinter.PrintableNode getRight() {
+            return of(node.getRight(), counts);
+        }
+
+        @Override
+        public String getText() {
+            return node.getText();
+        }
+
+        @Override
+        public long getAcquisitions() {
+            return counts == null ? 0 : counts.acquisitions(node);
         }
+
+        @Override
+        public long getConflicts() {
+            return counts == null ? 0 : counts.conflicts(node);
+        }
+    }
+
+    /* A new node of the kind this tree uses. */
+    private Node<E> newNode(E element, Node<E> leftChild, Node<E> rightChild) {
+        return multiset ? new MultisetNode<>(element, leftChild, rightChild) : new Node<>(element, leftChild, rightChild);
     }
 
+    /* What search returns for a miss it cannot trust yet. */
+    private static final Object UNSETTLED = new Object();
+
+    /* Outcomes of one optimistic pass of remove. */
+    private static final int REMOVED = 0;
+    private static final int NOT_FOUND = 1;
+    private static final int RETRY = 2;
+
     public ConcurrentBinarySearchTree() {
+        this(true);
     }
 
     public ConcurrentBinarySearchTree(E element) {
-        rootNode = new Node<>(element, null, null);
+        this(true);
+        rootHolder.setRightChild(newNode(element, null, null));
+        elementCount.increment();
+    }
+
+    /***
+     * @param verbose false for production use: insert and remove then print nothing and build no strings
+     */
+    public ConcurrentBinarySearchTree(boolean verbose) {
+        this(verbose, false, 0, 0, false);
+    }
+
+    /***
+     * Starts a tree with options. With none chosen it builds what new ConcurrentBinarySearchTree(false) does: a quiet
+     * tree with none of the optional structures.
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /***
+     * Options of a tree, each off until chosen. The tree they build takes the element type it is assigned to.
+     */
+    public static final class Builder {
+        private boolean verbose;
+        private boolean subtreeCounts;
+        private int filterCapacity;
+        private int cacheCapacity;
+        private boolean multiset;
+
+        private Builder() {
+        }
+
+        /***
+         * Makes insert and remove print what they did, which is for demonstrations, not production use.
+         */
+        public Builder verbose() {
+            verbose = true;
+            return this;
+        }
+
+        /***
+         * Keeps the size of every subtree, which rank, select and percentile need. Each insert and remove then also
+         * updates one counter per level of the tree. In a multiset they count distinct elements.
+         */
+        public Builder subtreeCounts() {
+            subtreeCounts = true;
+            return this;
+        }
+
+        /***
+         * Adds a counting Bloom filter, with which a lookup for an absent element is usually answered without reading
+         * a single node, at the price of a few compare-and-sets per insert and remove and about five bytes per element.
+         * Elements that compare equal must then have equal hash codes.
+         * @param capacity the number of elements to size the filter for
+         */
+        public Builder filter(int capacity) {
+            if (capacity <= 0)
+                throw new IllegalArgumentException("filter capacity must be positive");
+            filterCapacity = capacity;
+            return this;
+        }
+
+        /***
+         * Adds a CLOCK cache of recently found elements, which answers repeated lookups of them with a hash lookup.
+         * Every remove then also bumps two striped counters. Elements that compare equal must then be equal and have
+         * equal hash codes.
+         * @param capacity how many elements to keep in the cache
+         */
+        public Builder cache(int capacity) {
+            if (capacity <= 0)
+                throw new IllegalArgumentException("cache capacity must be positive");
+            cacheCapacity = capacity;
+            return this;
+        }
+
+        /***
+         * Keeps equal elements in a single node with a count of how many times it occurs. Inserting an element already
+         * there then only bumps the count, and removing one that occurs more than once only lowers it, each under the
+         * lock of that one node, so repeated elements neither deepen the tree nor take a node each. size, iterators and
+         * snapshots count and return an element as many times as it occurs; count tells how many times that is.
+         */
+        public Builder multiset() {
+            multiset = true;
+            return this;
+        }
+
+        public <E extends Comparable<E>> ConcurrentBinarySearchTree<E> build() {
+            return new ConcurrentBinarySearchTree<>(verbose, subtreeCounts, filterCapacity, cacheCapacity, multiset);
+        }
+    }
+
+    private ConcurrentBinarySearchTree(boolean verbose, boolean subtreeCounts, int filterCapacity, int cacheCapacity,
+                                       boolean multiset) {
+        this.verbose = verbose;
+        this.subtreeCounts = subtreeCounts;
+        this.multiset = multiset;
+        this.filter = filterCapacity == 0 ? null : new CountingBloomFilter<>(filterCapacity);
+        this.cache = cacheCapacity == 0 ? null : new LookupCache<>(cacheCapacity);
+    }
+
+    public boolean isVerbose() {
+        return verbose;
     }
 
     public boolean isBST() {
         return true;
     }
 
-    public void breadthFirstPrint() {
-        TreePrinter.print(rootNode);
+    /***
+     * Sum of a striped counter, so it never contends with writers. Exact while no write is in progress; otherwise it
+     * may or may not include the writes in progress.
+     */
+    public long size() {
+        return elementCount.sum();
+    }
+
+    public boolean isEmpty() {
+        return rootHolder.rightChild == null;
     }
 
     /***
-     * @param element
+     * How many times an insert or remove found that another writer had changed its path and started over, since the
+     * tree was made. Batch operations are not counted.
      */
-    public void insert(E element) throws InterruptedException {
-        if (rootNode == null)
-            rootNode = new Node<>(element, null, null);
-        else
-            insertRecursive(rootNode, null, element);
-        System.out.println(element.toString() + " inserted into the tree.");
-    }
-
-    public void remove(E element) throws InterruptedException {
-        if (rootNode != null)
-            removeRecursive(rootNode, null, null, element);
-        else
-            System.out.println("Tree is empty.");
-    }
-
-    private void removeRecursive(Node<E> currentNode, Node<E> parentNode, Node<E> secondParentNode, E elementToRemove) throws InterruptedException {
-        if (parentNode != null && secondParentNode != null && currentNode != null) {
-            currentNode.grab();
-            secondParentNode.nodeLock.release();
-            compareForRemove(currentNode, parentNode, secondParentNode, elementToRemove);
-        } else if (parentNode != null && secondParentNode == null && currentNode != null) {
-            currentNode.grab();
-            compareForRemove(currentNode, parentNode, null, elementToRemove);
-        } else if (currentNode != null) {
-            currentNode.grab();
-            compareForRemove(currentNode, null, null, elementToRemove);
-        } else {
-            System.out.println("Node was null...");
+    public long restarts() {
+        return restarts.sum();
+    }
+
+    public boolean hasFilter() {
+        return filter != null;
+    }
+
+    /***
+     * Share of the lookups for absent elements, since the tree was made, that the filter could not turn away and that
+     * had to search the tree. It grows as the tree outgrows the capacity the filter was sized for.
+     * @throws UnsupportedOperationException if the tree was made without a filter
+     */
+    public double filterFalsePositiveRate() {
+        if (filter == null)
+            throw new UnsupportedOperationException("the tree was made without a filter");
+        return filter.falsePositiveRate();
+    }
+
+    public boolean hasCache() {
+        return cache != null;
+    }
+
+    /***
+     * Share of the lookups since the tree was made that the cache answered.
+     * @throws UnsupportedOperationException if the tree was made without a cache
+     */
+    public double cacheHitRatio() {
+        requireCache();
+        long hits = cache.hits();
+        long total = hits + cache.misses();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    /***
+     * @return how many elements the cache has evicted to make room for others since the tree was made
+     * @throws UnsupportedOperationException if the tree was made without a cache
+     */
+    public long cacheEvictions() {
+        requireCache();
+        return cache.evictions();
+    }
+
+    private void requireCache() {
+        if (cache == null)
+            throw new UnsupportedOperationException("the tree was made without a cache");
+    }
+
+    /***
+     * Starts recording metrics, or returns the ones already being recorded. Register them to see them through JMX.
+     */
+    public synchronized TreeMetrics enableMetrics() {
+        if (metrics == null)
+            metrics = new TreeMetrics(this);
+        return metrics;
+    }
+
+    /***
+     * Stops recording metrics. What was recorded so far stays readable from the TreeMetrics enableMetrics returned.
+     */
+    public synchronized void disableMetrics() {
+        metrics = null;
+    }
+
+    /***
+     * @return the metrics being recorded, or null if they are disabled
+     */
+    public TreeMetrics getMetrics() {
+        return metrics;
+    }
+
+    /***
+     * Switches remove to logical deletion: a remove then only locks the node it removes, marks it deleted and returns,
+     * and a daemon maintenance thread unlinks the marked nodes later, at its own pace. A remove no longer walks down to
+     * a successor or predecessor, or waits on the nodes below it, while the caller waits.
+     * @param pauseMillis how long maintenance sleeps between passes
+     * @param unlinksPerPass how many marked nodes maintenance unlinks in a pass at most
+     * @throws IllegalStateException if the tree is not a multiset, or maintenance is running already
+     */
+    public synchronized void startMaintenance(long pauseMillis, int unlinksPerPass) {
+        if (!multiset)
+            throw new IllegalStateException("logical deletion needs a multiset, which keeps equal elements in one node");
+        if (pauseMillis < 0)
+            throw new IllegalArgumentException("pauseMillis must not be negative");
+        if (unlinksPerPass < 1)
+            throw new IllegalArgumentException("unlinksPerPass must be positive");
+        if (maintenance != null)
+            throw new IllegalStateException("maintenance is running already");
+        maintenance = new Maintenance(TimeUnit.MILLISECONDS.toNanos(pauseMillis), unlinksPerPass);
+        maintenance.start();
+    }
+
+    /***
+     * Switches remove back to unlinking nodes itself, and waits for maintenance to unlink every node still marked.
+     */
+    public synchronized void stopMaintenance() throws InterruptedException {
+        Maintenance stopping = maintenance;
+        if (stopping == null)
             return;
-        }
+        maintenance = null;
+        // once the removes already past the check are out, nothing adds to the queue any more
+        writers.quiesce(() -> {
+        });
+        stopping.stopping = true;
+        LockSupport.unpark(stopping);
+        stopping.join();
     }
-    // a recursive method that locks on the way down, finds its target ... "extractAndReturnMinimum" Use that on the right
-    // child. it will return the successor. As it returns upward, it will unlock and then return the value it got. You will
-    // have a number in hand, and you will have removed what was down there.
-    private void compareForRemove(Node<E> currentNode, Node<E> parentNode, Node<E> secondParentNode, E elementToRemove) throws InterruptedException {
-        if (parentNode != null && currentNode != null) {
-            if (elementToRemove.compareTo(currentNode.dataOfNode) == 0) {
-                if (currentNode.hasBothChildren()) {
-                    parentNode.letGo();
-                    removeBothChildrenCaseRoot(currentNode, elementToRemove);
-                    System.out.println(elementToRemove.toString() + " removed from the tree.");
-                } else if (currentNode.hasLeftChild()) {
-                    parentNode.letGo();
-                    removeLeftChildCaseRoot(currentNode, elementToRemove);
-                    System.out.println(elementToRemove.toString() + " removed from the tree.");
-                } else if (currentNode.hasRightChild()) {
-                    parentNode.letGo();
-                    removeBothChildrenCaseRoot(currentNode, elementToRemove);
-                    System.out.println(elementToRemove.toString() + " removed from the tree.");
-                } else { // in this case we need to remove in place... so we disconnect it from the parent
-                    removeWithNoChildren(parentNode.leftChild == currentNode, currentNode, parentNode);
-                    System.out.println(elementToRemove.toString() + " removed from the tree.");
-                }
-            } else if (elementToRemove.compareTo(currentNode.dataOfNode) < 0) {
-                if (currentNode.hasLeftChild())
-                    removeRecursive(currentNode.leftChild, currentNode, parentNode, elementToRemove);
-                else {
-                    System.out.println(elementToRemove.toString() + " not removed");
-                    currentNode.letGo();
-                    parentNode.letGo();
-                }
-            } else {
-                if (currentNode.hasRightChild())
-                    removeRecursive(currentNode.rightChild, currentNode, parentNode, elementToRemove);
-                else {
-                    System.out.println(elementToRemove.toString() + " not removed");
-                    currentNode.letGo();
-                    parentNode.letGo();
+
+    public boolean isMaintenanceRunning() {
+        return maintenance != null;
+    }
+
+    /***
+     * @return how many nodes are marked deleted and still waiting for maintenance to unlink them
+     */
+    public long pendingUnlinks() {
+        return pendingUnlinks.sum();
+    }
+
+    /* Unlinks marked nodes in paced passes, and every last one of them once asked to stop. */
+    private final class Maintenance extends Thread {
+        private final long pauseNanos;
+        private final int unlinksPerPass;
+        private volatile boolean stopping;
+
+        private Maintenance(long pauseNanos, int unlinksPerPass) {
+            super("tree-maintenance");
+            setDaemon(true);
+            this.pauseNanos = pauseNanos;
+            this.unlinksPerPass = unlinksPerPass;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                boolean draining = stopping;
+                E element;
+                for (int unlinked = 0; (draining || unlinked < unlinksPerPass) && (element = marked.poll()) != null; unlinked++) {
+                    pendingUnlinks.decrement();
+                    unlinkMarked(element);
                 }
+                if (draining)
+                    return;
+                LockSupport.parkNanos(this, pauseNanos);
             }
-        } else if (secondParentNode == null && parentNode == null && currentNode != null) {
-            if (elementToRemove.compareTo(currentNode.dataOfNode) == 0) {
-                if (currentNode.hasBothChildren() || currentNode.hasRightChild()) {
-                    removeBothChildrenCaseRoot(currentNode, elementToRemove);
-                    System.out.println(elementToRemove.toString() + " removed from the tree.");
-                } else if (currentNode.hasLeftChild()) {
-                    removeLeftChildCaseRoot(currentNode, elementToRemove);
-                    System.out.println(elementToRemove.toString() + " removed from the tree.");
-                } else {
-                    if (this.rootNode.dataOfNode.compareTo(currentNode.dataOfNode) == 0 && !this.rootNode.hasRightChild() && !this.rootNode.hasLeftChild()) {
-                        rootNode = null;
-                    } else {
-                        System.out.println("Current node has no parents, yet is unequal to the root node, unable to remove.");
-                    }
-                }
-            } else if (elementToRemove.compareTo(currentNode.dataOfNode) < 0) {
-                if (currentNode.hasLeftChild())
-                    removeRecursive(currentNode.leftChild, currentNode, null, elementToRemove);
-                else {
-                    System.out.println(elementToRemove.toString() + " not removed");
-                    currentNode.letGo();
-                }
-            } else if (elementToRemove.compareTo(currentNode.dataOfNode) > 0) {
-                if (currentNode.hasRightChild())
-                    removeRecursive(currentNode.rightChild, currentNode, null, elementToRemove);
-                else {
-                    System.out.println(elementToRemove.toString() + " not removed");
-                    currentNode.letGo();
+        }
+    }
+
+    /* Unlinks a node marked deleted with an element equal to the given one. Finding none means an insert brought it
+     * back meanwhile. */
+    private void unlinkMarked(E element) {
+        ArrayList<Node<E>> path = subtreeCounts ? new ArrayList<>() : null;
+        writers.enter();
+        try {
+            int result;
+            while (true) {
+                try {
+                    result = removeOptimistically(element, path, true);
+                } catch (InterruptedException e) {
+                    // only stopMaintenance wakes this thread, and it does not interrupt it
+                    result = RETRY;
                 }
+                if (result != RETRY)
+                    break;
+                Thread.onSpinWait();
             }
-        } else {
-            return;
+            if (result == REMOVED && path != null)
+                addToCounts(path, -1);
+        } finally {
+            writers.exit();
         }
     }
 
-    public void inOrderPrint() throws InterruptedException {
-        if (rootNode != null) {
-            System.out.print("[ ");
-            inOrderPrintFrom(rootNode);
-            System.out.println(" ]");
+    /***
+     * Number of levels of the tree, 0 when it is empty. Found by walking every node, level by level; like any traversal
+     * of this tree it never waits on a writer, and may or may not see the writes that happen meanwhile.
+     */
+    public int height() {
+        ArrayDeque<Node<E>> level = new ArrayDeque<>();
+        Node<E> root = rootHolder.rightChild;
+        if (root != null)
+            level.add(root);
+        int height = 0;
+        while (!level.isEmpty()) {
+            height++;
+            for (int i = level.size(); i > 0; i--) {
+                Node<E> node = level.poll();
+                Node<E> left = node.leftChild, right = node.rightChild;
+                if (left != null)
+                    level.add(left);
+                if (right != null)
+                    level.add(right);
+            }
         }
+        return height;
     }
 
-    void inOrderPrintFrom(Node<E> fromAnyNode) throws InterruptedException {
-        if (fromAnyNode != null) {
-            fromAnyNode.nodeLock.acquire();
-            fromAnyNode.nodeLock.release();
-            inOrderPrintFrom(fromAnyNode.leftChild);
-            System.out.print(fromAnyNode.dataOfNode + ", ");
-            inOrderPrintFrom(fromAnyNode.rightChild);
-        }
+    public boolean hasSubtreeCounts() {
+        return subtreeCounts;
+    }
+
+    public boolean isMultiset() {
+        return multiset;
     }
 
     /***
-     * In this specific case, we to find the inOrder Successor of the node we want to remove, its right child, and its
-     * parent.
-     * @param nodeToRemove explanatory
-     * @param elementToRemove   explanatory
-     */
-    private void removeBothChildrenCaseRoot(Node<E> nodeToRemove, E elementToRemove) {
-        /* First Section: Create an array of semaphores holding the node that we are modifying its data in place, its
-         * right child's semaphore. */
-        ArrayList<Semaphore> semaphores = new ArrayList<>();
-        semaphores.add(nodeToRemove.nodeLock); // get the root Semaphore
-        nodeToRemove.rightChild.grab();
-        semaphores.add(nodeToRemove.rightChild.nodeLock);
-        /* Second Section: We create two 'pointers' at the right child of the node that we are modifying. */
-        Node<E> inOrderSuccessor = nodeToRemove.rightChild;
-        Node<E> iOSParent = nodeToRemove.rightChild;
-        /* GOAL: Find the inOrderSuccessor of the nodeToRemove, and the successor's parent. Need to be able to hold each
-         * semaphore we lock along the way? */
-        if (inOrderSuccessor.hasLeftChild()) {
-            /* If there is a left child, we grab its semaphore lock and acquire it. then add it to the semaphore list.
-             * We make one of our pointers point to that Node. */
-            inOrderSuccessor.leftChild.grab();
-            semaphores.add(inOrderSuccessor.leftChild.nodeLock);
-            inOrderSuccessor = inOrderSuccessor.leftChild;
-            /* If there are more left children... we proceed with the same process, except that we set the parent to be
-             * pointing to the parent node of the lower node. */
-            while (inOrderSuccessor.hasLeftChild()) {
-                inOrderSuccessor.leftChild.grab();
-                semaphores.add(inOrderSuccessor.leftChild.nodeLock);
-                inOrderSuccessor = inOrderSuccessor.leftChild;
-                iOSParent = iOSParent.leftChild;
-            }
-            /* The last step. we change the parent node's left child to the right child of its left child meaning that
-             * that node will no longer be referenced in the tree. We change the data of the node that we want to 'remove'
-             * to the data of its in order successor. We then set the in order successor node's children to null, so it's
-             * not still referencing anything in the tree. Then we set its element to the element that we wanted to
-             * remove. Finally, we release any semaphores that were locked during the time we descended to find an in order
-             * successor. */
-            iOSParent.setLeftChild(inOrderSuccessor.rightChild);
-            nodeToRemove.setDataOfNode(inOrderSuccessor.dataOfNode);
-            inOrderSuccessor.setRightChild(null);
-            inOrderSuccessor.setDataOfNode(elementToRemove);
-            for (int j = semaphores.size() - 1; j >= 0; j--) {
-                semaphores.get(j).release();
-            }
-        } else { /* If there was no left child of the right child of the node to remove, we can just make the swap,
-        since that must be the in order successor of the node to remove. We set the node to remove's right child to
-        the in order successor's right child, and we change its element to the element of the in order successor. Finally,
-        we remove its references to any nodes in the tree. */
-            nodeToRemove.setRightChild(inOrderSuccessor.rightChild);
-            nodeToRemove.setDataOfNode(inOrderSuccessor.dataOfNode);
-
-            inOrderSuccessor.setRightChild(null);
-            inOrderSuccessor.setDataOfNode(elementToRemove);
-            for (int j = semaphores.size() - 1; j >= 0; j--) {
-                semaphores.get(j).release();
+     * How many times an element occurs in a multiset, read without a lock. The count is read together with the element
+     * of its node under the node's version, so it is one the element really had; a miss is trusted under the same
+     * conditions as in get.
+     * @return the number of occurrences, 0 if the element is not in the tree
+     * @throws UnsupportedOperationException if the tree is not a multiset
+     */
+    public int count(E element) {
+        if (!multiset)
+            throw new UnsupportedOperationException("the tree is not a multiset");
+        if (filter != null && !filter.mightContain(element))
+            return 0;
+        while (true) {
+            Node<E> currentNode = rootHolder.rightChild;
+            Node<E> lowerBound = null, upperBound = null;
+            long lowerBoundVersion = 0, upperBoundVersion = 0;
+            while (currentNode != null) {
+                long version = currentNode.version;
+                int comparison = element.compareTo(currentNode.dataOfNode);
+                if (comparison == 0 && !currentNode.isDeleted())
+                    break;
+                if (comparison <= 0) {
+                    upperBound = currentNode;
+                    upperBoundVersion = version;
+                    currentNode = currentNode.leftChild;
+                } else {
+                    lowerBound = currentNode;
+                    lowerBoundVersion = version;
+                    currentNode = currentNode.rightChild;
+                }
+            }
+            if (currentNode != null) {
+                long version = currentNode.version;
+                E data = currentNode.dataOfNode;
+                int occurrences = currentNode.occurrences();
+                boolean deleted = currentNode.isDeleted();
+                if ((version & 1) == 0 && currentNode.version == version && !deleted && element.compareTo(data) == 0)
+                    return occurrences;
+            } else if (settled(lowerBound, lowerBoundVersion) && settled(upperBound, upperBoundVersion)) {
+                return 0;
             }
+            Thread.onSpinWait();
         }
     }
 
-    /* In this case we need to find the in order predecessor to restructure the tree.
-     * @param nodeToRemove */
-    private void removeLeftChildCaseRoot(Node<E> nodeToRemove, E elementToRemove) {
-        /* Semaphore ArrayList: Grab the left child of the node that we are 'removing' but really modifying, we remove a
-         * node lower on the tree... */
-        ArrayList<Semaphore> semaphores = semaphoreSetupRemove(nodeToRemove, nodeToRemove.leftChild);
-
-        Node<E> inOrderPredecessor, iOPParent;
-        inOrderPredecessor = iOPParent = nodeToRemove.leftChild;
-        /* GOAL: Find the inOrderPredecessor of the nodeToRemove, and its parent. Need to be able to hold each semaphore
-         we lock along the way? */
-        if (inOrderPredecessor.hasRightChild()) {
-            inOrderPredecessor.rightChild.grab();
-            semaphores.add(inOrderPredecessor.rightChild.nodeLock);
-            inOrderPredecessor = inOrderPredecessor.rightChild;
-            while (inOrderPredecessor.hasRightChild()) {
-                inOrderPredecessor.rightChild.grab();
-                semaphores.add(inOrderPredecessor.rightChild.nodeLock);
-                inOrderPredecessor = inOrderPredecessor.rightChild;
-                iOPParent = iOPParent.rightChild;
-            }
-            iOPParent.setRightChild(inOrderPredecessor.leftChild);
-            nodeToRemove.setDataOfNode(inOrderPredecessor.dataOfNode);
-
-            inOrderPredecessor.setLeftChild(null);
-            inOrderPredecessor.setRightChild(null);
-            inOrderPredecessor.setDataOfNode(elementToRemove);
-
-            for (int j = semaphores.size() - 1; j >= 0; j--) {
-                semaphores.get(j).release();
+    /***
+     * Counts the elements smaller than the given one with a single descent, using the subtree counts. Like size it is
+     * exact while no write is in progress.
+     * @throws UnsupportedOperationException if the tree was made without subtree counts
+     */
+    public long rank(E element) {
+        requireSubtreeCounts();
+        long rank = 0;
+        Node<E> currentNode = rootHolder.rightChild;
+        while (currentNode != null) {
+            Node<E> leftChild = currentNode.leftChild;
+            if (element.compareTo(currentNode.dataOfNode) <= 0) {
+                currentNode = leftChild;
+            } else {
+                rank += countOf(leftChild) + (currentNode.isDeleted() ? 0 : 1);
+                currentNode = currentNode.rightChild;
             }
-        } else {
-            /* When the initial left child is the in order predecessor, we can set its left child to the left child's left child.*/
-            nodeToRemove.setLeftChild(inOrderPredecessor.leftChild); // point to the node to remove's child
-            nodeToRemove.setDataOfNode(inOrderPredecessor.dataOfNode); // set the node to the in order predecessor data
-
-            inOrderPredecessor.setLeftChild(null); // disconnect this node from pointing to anything in the tree.
-            inOrderPredecessor.setDataOfNode(elementToRemove); // set it to the element that we were looking to remove
-            nodeToRemove.letGo();
         }
+        return rank;
     }
 
     /***
-     * Case where we are removing a node with no children.
-     * @param isLeftChild is the node we are removing the left nodeToRemove of the parent?
-     * @param nodeToRemove the node we are removing
-     * @param parent of the node to remove
+     * Finds the element at a position in sorted order with a single descent, using the subtree counts.
+     * @param index 0 for the smallest element
+     * @return the element, or null if a concurrent remove left the tree with no element at that position
+     * @throws IndexOutOfBoundsException if index is negative or not below the size of the tree
+     * @throws UnsupportedOperationException if the tree was made without subtree counts
      */
-    private void removeWithNoChildren(boolean isLeftChild, Node<E> nodeToRemove, Node<E> parent) {
-        if (isLeftChild) {
-            parent.setLeftChild(null);
-        } else {
-            parent.setRightChild(null);
+    public E select(long index) {
+        requireSubtreeCounts();
+        Node<E> currentNode = rootHolder.rightChild;
+        if (index < 0 || index >= countOf(currentNode))
+            throw new IndexOutOfBoundsException("index " + index + " in a tree of " + countOf(currentNode));
+        while (currentNode != null) {
+            int leftCount = countOf(currentNode.leftChild);
+            // a deleted node is not counted, by itself or by its ancestors
+            int own = currentNode.isDeleted() ? 0 : 1;
+            if (index < leftCount) {
+                currentNode = currentNode.leftChild;
+            } else if (index < leftCount + own) {
+                return currentNode.dataOfNode;
+            } else {
+                index -= leftCount + own;
+                currentNode = currentNode.rightChild;
+            }
         }
-        nodeToRemove.letGo();
-        parent.letGo();
+        return null;
+    }
+
+    /***
+     * The element below which the given share of the elements lie, by the nearest rank method.
+     * @param percentile between 0 and 100
+     * @return the element, or null if the tree is empty
+     */
+    public E percentile(double percentile) {
+        requireSubtreeCounts();
+        if (percentile < 0 || percentile > 100)
+            throw new IllegalArgumentException("percentile " + percentile + " is not between 0 and 100");
+        int total = countOf(rootHolder.rightChild);
+        if (total == 0)
+            return null;
+        long rank = (long) Math.ceil(percentile / 100.0 * total);
+        return select(Math.max(rank, 1) - 1);
     }
 
-    private boolean equals(Node<E> searchNode, E elementToRemove) {
-        return searchNode.dataOfNode == elementToRemove;
+    private void requireSubtreeCounts() {
+        if (!subtreeCounts)
+            throw new UnsupportedOperationException("the tree was made without subtree counts");
     }
 
-    private ArrayList<Semaphore> semaphoreSetupRemove(Node<E> nodeToRemove, Node<E> childNode) {
-        ArrayList<Semaphore> semaphoreArrayList = new ArrayList<>();
-        semaphoreArrayList.add(nodeToRemove.nodeLock); // get the root Semaphore
-        nodeToRemove.leftChild.grab();
-        semaphoreArrayList.add(nodeToRemove.leftChild.nodeLock);
-        return semaphoreArrayList;
+    private int countOf(Node<E> node) {
+        return node == null ? 0 : node.count;
     }
 
-    // insert support sub-methods
-    private void insertRecursive(Node<E> currentNode, Node<E> parentNode, E elementToInsert) throws InterruptedException {
-        if (parentNode == null) {
-            currentNode.nodeLock.acquire();
-            compareForInsert(currentNode, elementToInsert);
-        } else {
-            currentNode.nodeLock.acquire();
-            parentNode.nodeLock.release();
-            compareForInsert(currentNode, elementToInsert);
+    /* Adds delta to the count of every node on a recorded path, once the change it describes is in the tree. */
+    private void addToCounts(ArrayList<Node<E>> path, int delta) {
+        for (int i = 0; i < path.size(); i++) {
+            path.get(i).addToCount(delta);
         }
     }
 
-    private void compareForInsert(Node<E> currentNode, E elementToInsert) throws InterruptedException {
-        if (elementToInsert.compareTo(currentNode.dataOfNode) <= 0) {
-            childDetectionInsert(currentNode.leftChild != null, true, currentNode, elementToInsert);
-        } else {
-            childDetectionInsert(currentNode.rightChild != null, false, currentNode, elementToInsert);
+    public void breadthFirstPrint() {
+        TreePrinter.print(rootHolder.rightChild);
+    }
+
+    /***
+     * Renders the hottest nodes and the contention at each depth, from the counts the metrics keep per node while they
+     * are enabled. With metrics disabled nothing is counted, and the report is empty.
+     * @param topK how many of the hottest nodes to list
+     */
+    public String contentionReport(int topK) {
+        return contentionReport(topK, metrics);
+    }
+
+    /* Renders the heat map from the counts the given metrics kept, which may be ones no longer being recorded. */
+    String contentionReport(int topK, TreeMetrics counts) {
+        return ContentionHeatMap.render(HeatView.of(rootHolder.rightChild, counts), topK);
+    }
+
+    /* The nodes reachable now, for the metrics to drop the counts of nodes unlinked since they were counted. */
+    Set<Object> reachableNodes() {
+        Set<Object> reachable = new HashSet<>();
+        ArrayDeque<Node<E>> pending = new ArrayDeque<>();
+        if (rootHolder.rightChild != null)
+            pending.push(rootHolder.rightChild);
+        while (!pending.isEmpty()) {
+            Node<E> node = pending.pop();
+            reachable.add(node);
+            Node<E> left = node.leftChild, right = node.rightChild;
+            if (left != null)
+                pending.push(left);
+            if (right != null)
+                pending.push(right);
         }
+        return reachable;
     }
 
-    private void childDetectionInsert(boolean hasChild, boolean isLessOrEqual, Node<E> currentNode, E elementToInsert) throws InterruptedException {
-        if (hasChild && isLessOrEqual) {
-            insertRecursive(currentNode.leftChild, currentNode, elementToInsert);
-        } else if (!hasChild && isLessOrEqual) {
-            currentNode.leftChild = new Node<>(elementToInsert, null, null);
-            currentNode.nodeLock.release();
-        } else if (hasChild) {
-            insertRecursive(currentNode.rightChild, currentNode, elementToInsert);
+    /***
+     * Checks for an element in the tree without acquiring any node lock, so it never waits behind an insert or a
+     * remove that is holding part of the path, other than the node it finds the element in or the nodes bounding a
+     * miss, whose versions it validates.
+     * @param element the element to look for
+     * @return true if an element equal to the given one is in the tree
+     */
+    public boolean contains(E element) {
+        return get(element) != null;
+    }
 
-        } else {
-            currentNode.rightChild = new Node<>(elementToInsert, null, null);
-            currentNode.nodeLock.release();
+    /***
+     * Lock-free lookup. A hit is returned as soon as it is found, provided the node it was found in did not change while
+     * its element and deleted mark were read, since every node we can reach held the key we read at some point during
+     * the search. A miss is only trusted when the nodes bounding the empty slot we reached
+     * did not change while we searched; otherwise a relocating remove could have been moving the key up past us into
+     * one of them, and we search again.
+     * With a filter, an element the filter turns away is reported missing without searching at all. With a cache, an
+     * element found in it is returned without searching, and an element found by searching is put in it.
+     * @param element the element to look for
+     * @return the element stored in the tree that is equal to the given one, or null if there is none
+     */
+    public E get(E element) {
+        TreeMetrics recorder = metrics;
+        if (recorder == null)
+            return cachedLookup(element);
+        long start = System.nanoTime();
+        E found = cachedLookup(element);
+        recorder.recordContains(System.nanoTime() - start);
+        return found;
+    }
+
+    private E cachedLookup(E element) {
+        if (cache == null)
+            return lookup(element);
+        E cached = cache.get(element);
+        if (cached != null)
+            return cached;
+        long stamp = cache.stamp(element);
+        E found = lookup(element);
+        if (found != null)
+            cache.put(found, stamp);
+        return found;
+    }
+
+    @SuppressWarnings("unchecked")
+    private E lookup(E element) {
+        if (filter != null && !filter.mightContain(element)) {
+            filter.recordRejected();
+            return null;
+        }
+        while (true) {
+            Object found = search(element);
+            if (found != UNSETTLED) {
+                if (found == null && filter != null)
+                    filter.recordFalsePositive();
+                return (E) found;
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    /***
+     * One descent without locks. A relocation that moves the element up copies it into the node whose element it
+     * replaces, which is an ancestor of the node it came from and so the last node a search for it turned left or right
+     * at, and changes that node's version while it does. So, like insertOptimistically, a miss remembers the last node
+     * it turned left at and the last it turned right at, and is only trusted if both were free when it passed them and
+     * still have the version it read then. A relocation anywhere else in the tree leaves the miss alone.
+     * A relocation writes the element, the occurrences and the deleted mark of a node one after the other, so a hit is
+     * likewise only trusted if its node was free when it was read and still has that version; otherwise the element
+     * could be a removed one seen with the mark of the live one it replaced.
+     * @return the element stored in the tree, null if it is not there, or UNSETTLED if the search has to be done again
+     */
+    private Object search(E element) {
+        Node<E> currentNode = rootHolder.rightChild;
+        Node<E> lowerBound = null, upperBound = null;
+        long lowerBoundVersion = 0, upperBoundVersion = 0;
+        int depth = 1;
+        while (currentNode != null) {
+            long version = currentNode.version;
+            E data = currentNode.dataOfNode;
+            int comparison = element.compareTo(data);
+            if (comparison == 0 && !currentNode.isDeleted()) {
+                if ((version & 1) != 0 || currentNode.version != version)
+                    return UNSETTLED;
+                recordTraversalDepth(depth);
+                return data;
+            }
+            if (comparison <= 0) {
+                upperBound = currentNode;
+                upperBoundVersion = version;
+                currentNode = currentNode.leftChild;
+            } else {
+                lowerBound = currentNode;
+                lowerBoundVersion = version;
+                currentNode = currentNode.rightChild;
+            }
+            depth++;
+        }
+        recordTraversalDepth(depth);
+        if (settled(lowerBound, lowerBoundVersion) && settled(upperBound, upperBoundVersion))
+            return null;
+        return UNSETTLED;
+    }
+
+    /* True if a bounding node a lookup passed was free when it read the node and is still at that version. */
+    private boolean settled(Node<E> boundNode, long boundVersion) {
+        return boundNode == null || ((boundVersion & 1) == 0 && boundNode.version == boundVersion);
+    }
+
+    private void recordTraversalDepth(int depth) {
+        TreeMetrics recorder = metrics;
+        if (recorder != null)
+            recorder.recordTraversalDepth(depth);
+    }
+
+    /***
+     * @param element
+     */
+    public void insert(E element) throws InterruptedException {
+        TreeMetrics recorder = metrics;
+        long start = recorder == null ? 0 : System.nanoTime();
+        writers.enter();
+        try {
+            insertOne(element);
+        } catch (InterruptedException e) {
+            if (recorder != null && !(e instanceof DeadlineExpired))
+                recorder.recordAbort();
+            throw e;
+        } finally {
+            writers.exit();
+        }
+        if (recorder != null)
+            recorder.recordInsert(System.nanoTime() - start);
+        if (verbose)
+            System.out.println(element.toString() + " inserted into the tree.");
+    }
+
+    /***
+     * Inserts the element unless an equal one is in the tree already, as one atomic step.
+     * @param element
+     * @return null if the element was inserted, otherwise the equal element found in the tree, which is left in place
+     */
+    public E insertIfAbsent(E element) throws InterruptedException {
+        E[] found = newArray(1);
+        TreeMetrics recorder = metrics;
+        long start = recorder == null ? 0 : System.nanoTime();
+        if (filter != null)
+            filter.add(element);
+        writers.enter();
+        try {
+            ArrayList<Node<E>> path = subtreeCounts ? new ArrayList<>() : null;
+            Node<E> newNode = newNode(element, null, null);
+            while (!insertOptimistically(newNode, found, path)) {
+                restarts.increment();
+                checkDeadline();
+                Thread.onSpinWait();
+            }
+            if (found[0] == null) {
+                elementCount.increment();
+                if (path != null)
+                    addToCounts(path, 1);
+            } else if (filter != null) {
+                filter.remove(element);
+            }
+        } catch (InterruptedException e) {
+            if (filter != null)
+                filter.remove(element);
+            if (recorder != null && !(e instanceof DeadlineExpired))
+                recorder.recordAbort();
+            throw e;
+        } finally {
+            writers.exit();
+        }
+        if (recorder != null)
+            recorder.recordInsert(System.nanoTime() - start);
+        if (verbose) {
+            if (found[0] == null)
+                System.out.println(element.toString() + " inserted into the tree.");
+            else
+                System.out.println(element.toString() + " already in the tree.");
+        }
+        return found[0];
+    }
+
+    /***
+     * @param element
+     * @return true if an element equal to the given one was found and removed
+     */
+    public boolean remove(E element) throws InterruptedException {
+        boolean removed;
+        TreeMetrics recorder = metrics;
+        long start = recorder == null ? 0 : System.nanoTime();
+        if (cache != null)
+            cache.removeStarted(element);
+        writers.enter();
+        try {
+            removed = removeQuietly(element);
+        } catch (InterruptedException e) {
+            if (recorder != null && !(e instanceof DeadlineExpired))
+                recorder.recordAbort();
+            throw e;
+        } finally {
+            writers.exit();
+            if (cache != null)
+                cache.removeFinished(element);
+        }
+        if (recorder != null)
+            recorder.recordRemove(System.nanoTime() - start);
+        if (verbose) {
+            if (removed)
+                System.out.println(element.toString() + " removed from the tree.");
+            else
+                System.out.println(element.toString() + " not removed");
+        }
+        return removed;
+    }
+
+    /***
+     * Like insert, but gives up once the timeout has passed, for callers with a latency budget. The time only counts
+     * while the insert is held up, waiting for a node another writer holds or starting over after one changed its
+     * path; an insert that gives up lets go of everything it holds and leaves the tree as if it had never been called.
+     * An interrupt is honoured the same way and gives up with an InterruptedException.
+     * @throws TimeoutException if the insert gave up because its time ran out
+     */
+    public void tryInsert(E element, long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+        Deadline deadline = arm(timeout, unit);
+        try {
+            insert(element);
+        } catch (DeadlineExpired e) {
+            timedOutInserts.increment();
+            throw new TimeoutException("insert gave up after " + timeout + " " + unit);
+        } finally {
+            deadline.armed = false;
+        }
+    }
+
+    /***
+     * Like remove, but gives up once the timeout has passed, the way tryInsert does.
+     * @return true if an element equal to the given one was found and removed
+     * @throws TimeoutException if the remove gave up because its time ran out; nothing was removed then
+     */
+    public boolean tryRemove(E element, long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+        Deadline deadline = arm(timeout, unit);
+        try {
+            return remove(element);
+        } catch (DeadlineExpired e) {
+            timedOutRemoves.increment();
+            throw new TimeoutException("remove gave up after " + timeout + " " + unit);
+        } finally {
+            deadline.armed = false;
+        }
+    }
+
+    /***
+     * Like contains, which never locks a node but does search again while the node holding the element or the nodes
+     * bounding a miss keep changing, and gives up on that once the timeout has passed.
+     * @throws TimeoutException if the lookup gave up because its time ran out
+     */
+    public boolean tryContains(E element, long timeout, TimeUnit unit) throws TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        if (cache != null && cache.get(element) != null)
+            return true;
+        if (filter != null && !filter.mightContain(element))
+            return false;
+        while (true) {
+            Object found = search(element);
+            if (found != UNSETTLED)
+                return found != null;
+            if (System.nanoTime() - deadline >= 0) {
+                timedOutLookups.increment();
+                throw new TimeoutException("lookup gave up after " + timeout + " " + unit);
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    /***
+     * @return how many tryInsert calls gave up because their time ran out, since the tree was made
+     */
+    public long timedOutInserts() {
+        return timedOutInserts.sum();
+    }
+
+    /***
+     * @return how many tryRemove calls gave up because their time ran out, since the tree was made
+     */
+    public long timedOutRemoves() {
+        return timedOutRemoves.sum();
+    }
+
+    /***
+     * @return how many tryContains calls gave up because their time ran out, since the tree was made
+     */
+    public long timedOutLookups() {
+        return timedOutLookups.sum();
+    }
+
+    private static Deadline arm(long timeout, TimeUnit unit) {
+        Deadline deadline = DEADLINE.get();
+        deadline.at = System.nanoTime() + unit.toNanos(timeout);
+        deadline.armed = true;
+        return deadline;
+    }
+
+    /* Gives up if the thread is in a try operation whose time has run out, or has been interrupted meanwhile. */
+    private static void checkDeadline() throws InterruptedException {
+        Deadline deadline = DEADLINE.get();
+        if (!deadline.armed)
+            return;
+        if (Thread.interrupted())
+            throw new InterruptedException();
+        if (System.nanoTime() - deadline.at >= 0)
+            throw new DeadlineExpired();
+    }
+
+    // insert support sub-methods
+
+    /* Inserts one element and does the bookkeeping for it; the caller is inside the writers gate. */
+    private void insertOne(E element) throws InterruptedException {
+        ArrayList<Node<E>> path = subtreeCounts ? new ArrayList<>() : null;
+        Node<E> newNode = newNode(element, null, null);
+        if (filter != null)
+            filter.add(element);
+        try {
+            while (!insertOptimistically(newNode, null, path)) {
+                restarts.increment();
+                checkDeadline();
+                Thread.onSpinWait();
+            }
+        } catch (InterruptedException e) {
+            // the element never got in, so the count added for it comes off the filter again
+            if (filter != null)
+                filter.remove(element);
+            throw e;
+        }
+        elementCount.increment();
+        if (path != null)
+            addToCounts(path, 1);
+    }
+
+    /***
+     * One optimistic descent. Nothing is locked on the way down; the only lock taken is on the node that gets the new
+     * child, and only if its version is still the one we validated the empty child pointer against.
+     * Checking each parent against its child is not quite enough on its own, because a relocating remove changes the
+     * element of a node we may have passed long ago, and with it the range of keys that belong below it. So we also
+     * remember the last node we turned left at and the last node we turned right at, whose elements bound the empty
+     * slot we end up in, and check that neither of them changed before we attach the new node.
+     * @param found null to insert next to equal elements; otherwise an equal element stops the insert and is put here
+     * @param path null, or where to record the nodes passed, which become the new node's ancestors
+     * @return false if the path changed underneath us and the insert has to start over
+     */
+    private boolean insertOptimistically(Node<E> newNode, E[] found, ArrayList<Node<E>> path) throws InterruptedException {
+        if (path != null)
+            path.clear();
+        E elementToInsert = newNode.dataOfNode;
+        Node<E> parentNode = rootHolder;
+        long parentVersion = parentNode.awaitUnlocked(0);
+        Node<E> lowerBound = null, upperBound = null;
+        long lowerBoundVersion = 0, upperBoundVersion = 0;
+        boolean goLeft = false;
+        int depth = 1;
+        while (true) {
+            Node<E> currentNode = parentNode.child(goLeft);
+            if (currentNode == null) {
+                if (!parentNode.grab(parentVersion))
+                    return false;
+                if (!unchanged(lowerBound, lowerBoundVersion, parentNode) || !unchanged(upperBound, upperBoundVersion, parentNode)) {
+                    parentNode.letGo();
+                    return false;
+                }
+                parentNode.setChild(goLeft, newNode);
+                parentNode.letGo();
+                recordTraversalDepth(depth);
+                return true;
+            }
+            long currentVersion = currentNode.awaitUnlocked(depth);
+            if (parentNode.version != parentVersion)
+                return false;
+            if (isShared(currentNode)) {
+                currentNode = unshare(parentNode, parentVersion, goLeft, currentNode);
+                if (currentNode == null)
+                    return false;
+                // only our own swap moved the parent on, and it is the last bound we passed
+                if (lowerBound == parentNode)
+                    lowerBoundVersion += 2;
+                if (upperBound == parentNode)
+                    upperBoundVersion += 2;
+                currentVersion = 0;
+            }
+            E data = currentNode.dataOfNode;
+            int comparison = elementToInsert.compareTo(data);
+            if (comparison == 0 && currentNode.isDeleted()) {
+                // an equal element that was removed but not unlinked yet: its node takes the new element
+                if (!currentNode.grab(currentVersion))
+                    return false;
+                currentNode.setDataOfNode(elementToInsert);
+                MultisetNode<E> revived = (MultisetNode<E>) currentNode;
+                revived.occurrences = 1;
+                revived.deleted = false;
+                currentNode.letGo();
+                if (path != null)
+                    path.add(currentNode);
+                recordTraversalDepth(depth);
+                return true;
+            }
+            if (comparison == 0 && found != null) {
+                // the node still being at its version means data was in the tree when we read it
+                if (currentNode.version != currentVersion)
+                    return false;
+                found[0] = data;
+                recordTraversalDepth(depth);
+                return true;
+            }
+            if (comparison == 0 && multiset) {
+                // holding the node at the version we read data at means it is still linked in and still holds data
+                if (!currentNode.grab(currentVersion))
+                    return false;
+                ((MultisetNode<E>) currentNode).occurrences++;
+                currentNode.letGo();
+                // no node was added, so no subtree grew
+                if (path != null)
+                    path.clear();
+                recordTraversalDepth(depth);
+                return true;
+            }
+            goLeft = comparison <= 0;
+            if (goLeft) {
+                upperBound = currentNode;
+                upperBoundVersion = currentVersion;
+            } else {
+                lowerBound = currentNode;
+                lowerBoundVersion = currentVersion;
+            }
+            if (path != null)
+                path.add(currentNode);
+            parentNode = currentNode;
+            parentVersion = currentVersion;
+            depth++;
+        }
+    }
+
+    /* True if a snapshot taken since the node was made can still reach it, so it must not be written. */
+    private boolean isShared(Node<E> node) {
+        return node.generation < generation;
+    }
+
+    /***
+     * Links a private copy of a node that a snapshot shares in place of the original, under the parent's lock and only if
+     * the parent is still at the version the caller validated. A shared node is never written, so the copy made here
+     * is exact, and a reader still on the original sees the same elements below it. The copy starts out at version 0
+     * and releasing the parent moves its version on by exactly 2, which the caller can take into account instead of
+     * starting over.
+     * @return the copy, or null if the parent changed and the caller has to start over
+     */
+    private Node<E> unshare(Node<E> parentNode, long parentVersion, boolean left, Node<E> sharedNode) {
+        if (!parentNode.grab(parentVersion))
+            return null;
+        Node<E> copy = sharedNode.copy();
+        parentNode.setChild(left, copy);
+        parentNode.letGo();
+        return copy;
+    }
+
+    /* True if a bounding node we passed still has the version we saw, or is the node the caller now holds itself. */
+    private boolean unchanged(Node<E> boundNode, long boundVersion, Node<E> heldNode) {
+        return boundNode == null || boundNode == heldNode || boundNode.version == boundVersion;
+    }
+
+    // remove support sub-methods
+
+    /***
+     * One optimistic descent looking for the element. Like insertOptimistically, a miss is only reported once the
+     * nodes bounding the empty slot are known not to have changed, since a relocation may have moved the element up
+     * past us.
+     * @param path null, or where to record the nodes whose subtrees lose an element
+     * @param unlinking false to remove an element, true to unlink a node with an equal element that is marked deleted
+     */
+    private int removeOptimistically(E elementToRemove, ArrayList<Node<E>> path, boolean unlinking) throws InterruptedException {
+        if (path != null)
+            path.clear();
+        Node<E> parentNode = rootHolder;
+        long parentVersion = parentNode.awaitUnlocked(0);
+        Node<E> lowerBound = null, upperBound = null;
+        long lowerBoundVersion = 0, upperBoundVersion = 0;
+        boolean goLeft = false;
+        int depth = 1;
+        while (true) {
+            Node<E> currentNode = parentNode.child(goLeft);
+            if (currentNode == null) {
+                if (parentNode.version != parentVersion || !unchanged(lowerBound, lowerBoundVersion, null) || !unchanged(upperBound, upperBoundVersion, null))
+                    return RETRY;
+                recordTraversalDepth(depth);
+                return NOT_FOUND;
+            }
+            long currentVersion = currentNode.awaitUnlocked(depth);
+            if (parentNode.version != parentVersion)
+                return RETRY;
+            if (isShared(currentNode)) {
+                currentNode = unshare(parentNode, parentVersion, goLeft, currentNode);
+                if (currentNode == null)
+                    return RETRY;
+                parentVersion += 2;
+                if (lowerBound == parentNode)
+                    lowerBoundVersion += 2;
+                if (upperBound == parentNode)
+                    upperBoundVersion += 2;
+                currentVersion = 0;
+            }
+            int comparison = elementToRemove.compareTo(currentNode.dataOfNode);
+            if (comparison == 0 && currentNode.isDeleted() == unlinking) {
+                int result = compareForRemove(currentNode, currentVersion, parentNode, parentVersion, path, depth, unlinking);
+                if (result == REMOVED)
+                    recordTraversalDepth(depth);
+                return result;
+            }
+            // past an equal node that is not the kind we are after, equal elements can only be further left
+            goLeft = comparison <= 0;
+            if (goLeft) {
+                upperBound = currentNode;
+                upperBoundVersion = currentVersion;
+            } else {
+                lowerBound = currentNode;
+                lowerBoundVersion = currentVersion;
+            }
+            if (path != null)
+                path.add(currentNode);
+            parentNode = currentNode;
+            parentVersion = currentVersion;
+            depth++;
+        }
+    }
+
+    /***
+     * Removes the node we found, provided neither it nor (for a leaf) its parent moved since we validated them. A node
+     * with children is not unlinked itself: it takes over the element of its in order successor or predecessor, and
+     * that node is unlinked instead.
+     * @param path null, or the ancestors of the node to remove; the nodes between it and the node actually unlinked are
+     *             added
+     * While maintenance runs, a remove marks the node deleted instead and queues its element for maintenance, which
+     * comes back with unlinking set to unlink it. The node stays counted in its own subtree count and those of its
+     * ancestors only while it is live.
+     * @param depth of the node to remove
+     * @param unlinking true if the node is marked deleted and is to be unlinked, false if its element is to be removed
+     */
+    private int compareForRemove(Node<E> nodeToRemove, long nodeVersion, Node<E> parentNode, long parentVersion, ArrayList<Node<E>> path, int depth,
+                                 boolean unlinking) throws InterruptedException {
+        if (!nodeToRemove.grab(nodeVersion))
+            return RETRY;
+        if (nodeToRemove.isDeleted() != unlinking) {
+            nodeToRemove.letGo();
+            return RETRY;
+        }
+        if (unlinking) {
+            // the node's element is gone already; only a live element relocated out of the subtree changes its counts
+            ArrayList<Node<E>> below = path == null ? null : new ArrayList<>();
+            unlinkHeld(nodeToRemove, parentNode, parentVersion, below, depth);
+            if (path != null) {
+                path.clear();
+                if (below.size() > 1)
+                    path.addAll(below.subList(1, below.size()));
+            }
+            return REMOVED;
+        }
+        if (nodeToRemove.occurrences() > 1) {
+            ((MultisetNode<E>) nodeToRemove).occurrences--;
+            nodeToRemove.letGo();
+            if (path != null)
+                path.clear();
+            return REMOVED;
+        }
+        if (maintenance != null) {
+            ((MultisetNode<E>) nodeToRemove).deleted = true;
+            nodeToRemove.letGo();
+            marked.add(nodeToRemove.dataOfNode);
+            pendingUnlinks.increment();
+            if (path != null)
+                path.add(nodeToRemove);
+            return REMOVED;
+        }
+        return unlinkHeld(nodeToRemove, parentNode, parentVersion, path, depth);
+    }
+
+    /* Unlinks a node the caller holds, or relocates its successor or predecessor into it; releases it either way. */
+    private int unlinkHeld(Node<E> nodeToRemove, Node<E> parentNode, long parentVersion, ArrayList<Node<E>> path, int depth) throws InterruptedException {
+        if (nodeToRemove.hasRightChild()) {
+            removeBothChildrenCaseRoot(nodeToRemove, path, depth);
+        } else if (nodeToRemove.hasLeftChild()) {
+            removeLeftChildCaseRoot(nodeToRemove, path, depth);
+        } else {
+            if (!parentNode.grab(parentVersion)) {
+                nodeToRemove.letGo();
+                return RETRY;
+            }
+            removeWithNoChildren(parentNode.leftChild == nodeToRemove, nodeToRemove, parentNode);
+        }
+        return REMOVED;
+    }
+
+    /***
+     * In this case we find the in order successor of the node we want to remove, which is the leftmost node of its
+     * right subtree.
+     * @param nodeToRemove explanatory, held by the caller
+     */
+    private void removeBothChildrenCaseRoot(Node<E> nodeToRemove, ArrayList<Node<E>> path, int depth) throws InterruptedException {
+        relocateFrom(nodeToRemove, false, path, depth);
+    }
+
+    /* In this case we need to find the in order predecessor to restructure the tree.
+     * @param nodeToRemove held by the caller */
+    private void removeLeftChildCaseRoot(Node<E> nodeToRemove, ArrayList<Node<E>> path, int depth) throws InterruptedException {
+        relocateFrom(nodeToRemove, true, path, depth);
+    }
+
+    /***
+     * Finds the in order successor (fromLeft false) or predecessor (fromLeft true) of a node we hold, locks it and its
+     * parent, copies its element into the node to remove and unlinks it. Holding the node to remove means nothing can
+     * be attached to or unlinked from directly below it, but the rest of the subtree is still live, so it is walked
+     * optimistically like any other path. The element is written before the unlink, so it is never missing from the
+     * tree, and the unlinked node keeps its data and child so a lock-free reader standing on it can walk back into the
+     * tree. The node to remove is released on the way out, also when we are interrupted while waiting on the subtree.
+     * The element moved up takes its deleted mark along, so maintenance finds it again by that element.
+     * @param nodeToRemove the node whose element is being removed, held by the caller
+     * @param fromLeft true to take the predecessor from the left subtree, false to take the successor from the right
+     * @param path null, or the ancestors of the node to remove, to which it and the nodes down to the parent of the
+     *             unlinked node are added
+     * @param depth of the node to remove
+     */
+    private void relocateFrom(Node<E> nodeToRemove, boolean fromLeft, ArrayList<Node<E>> path, int depth) throws InterruptedException {
+        int ancestors = path == null ? 0 : path.size();
+        boolean retrying = false;
+        try {
+            while (true) {
+                if (retrying)
+                    checkDeadline();
+                retrying = true;
+                if (path != null) {
+                    path.subList(ancestors, path.size()).clear();
+                    path.add(nodeToRemove);
+                }
+                Node<E> replacementParent = nodeToRemove;
+                long replacementParentVersion = 0;
+                Node<E> replacement = nodeToRemove.child(fromLeft);
+                if (isShared(replacement)) {
+                    // we hold its parent already, so the copy can be linked in directly
+                    replacement = replacement.copy();
+                    nodeToRemove.setChild(fromLeft, replacement);
+                }
+                int replacementDepth = depth + 1;
+                long replacementVersion = replacement.awaitUnlocked(replacementDepth);
+                boolean pathChanged = false;
+                Node<E> next;
+                while ((next = replacement.child(!fromLeft)) != null) {
+                    long nextVersion = next.awaitUnlocked(replacementDepth + 1);
+                    if (replacement.version != replacementVersion) {
+                        pathChanged = true;
+                        break;
+                    }
+                    if (isShared(next)) {
+                        next = unshare(replacement, replacementVersion, !fromLeft, next);
+                        if (next == null) {
+                            pathChanged = true;
+                            break;
+                        }
+                        replacementVersion += 2;
+                        nextVersion = 0;
+                    }
+                    if (path != null)
+                        path.add(replacement);
+                    replacementParent = replacement;
+                    replacementParentVersion = replacementVersion;
+                    replacement = next;
+                    replacementVersion = nextVersion;
+                    replacementDepth++;
+                }
+                if (pathChanged)
+                    continue;
+                if (replacementParent != nodeToRemove && !replacementParent.grab(replacementParentVersion))
+                    continue;
+                if (!replacement.grab(replacementVersion)) {
+                    if (replacementParent != nodeToRemove)
+                        replacementParent.letGo();
+                    continue;
+                }
+                relocationsStarted.incrementAndGet();
+                nodeToRemove.takeElementOf(replacement);
+                boolean replacementIsLeftChild = replacementParent == nodeToRemove ? fromLeft : !fromLeft;
+                replacementParent.setChild(replacementIsLeftChild, replacement.child(fromLeft));
+                relocationsFinished.incrementAndGet();
+                replacement.letGo();
+                if (replacementParent != nodeToRemove)
+                    replacementParent.letGo();
+                // a deleted element moving up leaves the counts below the node to remove as they were
+                if (path != null && replacement.isDeleted())
+                    path.subList(ancestors + 1, path.size()).clear();
+                return;
+            }
+        } finally {
+            nodeToRemove.letGo();
+        }
+    }
+
+    /***
+     * Case where we are removing a node with no children.
+     * @param isLeftChild is the node we are removing the left nodeToRemove of the parent?
+     * @param nodeToRemove the node we are removing
+     * @param parent of the node to remove
+     */
+    private void removeWithNoChildren(boolean isLeftChild, Node<E> nodeToRemove, Node<E> parent) {
+        if (isLeftChild) {
+            parent.setLeftChild(null);
+        } else {
+            parent.setRightChild(null);
+        }
+        nodeToRemove.letGo();
+        parent.letGo();
+    }
+
+    // traversal support sub-methods
+
+    /***
+     * Iterates over the whole tree in ascending order. Like every traversal of this tree the iterator is weakly
+     * consistent: it never blocks a writer and never throws ConcurrentModificationException, every element it returns
+     * was in the tree at some point since the iterator was created, and every element that stays in the tree the whole
+     * time is returned. Elements inserted or removed meanwhile may or may not show up.
+     */
+    @Override
+    public Iterator<E> iterator() {
+        return new TreeIterator(null, false, null, false, false);
+    }
+
+    public Iterator<E> descendingIterator() {
+        return new TreeIterator(null, false, null, false, true);
+    }
+
+    /***
+     * A live view of the elements between two bounds, for range scans. Either bound may be null for no bound.
+     */
+    public Range subSet(E fromElement, boolean fromInclusive, E toElement, boolean toInclusive) {
+        if (fromElement != null && toElement != null && fromElement.compareTo(toElement) > 0)
+            throw new IllegalArgumentException("fromElement > toElement");
+        return new Range(fromElement, fromInclusive, toElement, toInclusive);
+    }
+
+    public Range headSet(E toElement, boolean inclusive) {
+        return new Range(null, false, toElement, inclusive);
+    }
+
+    public Range tailSet(E fromElement, boolean inclusive) {
+        return new Range(fromElement, inclusive, null, false);
+    }
+
+    /***
+     * Splits at subtree boundaries, so a parallel stream hands each worker a separate part of the tree.
+     */
+    @Override
+    public Spliterator<E> spliterator() {
+        return new TreeSpliterator(null, false, null, false, size());
+    }
+
+    public Stream<E> stream() {
+        return StreamSupport.stream(spliterator(), false);
+    }
+
+    /***
+     * Elements between two optional bounds. Holds no state of its own; every traversal reads the tree as it is then.
+     */
+    public final class Range implements Iterable<E> {
+        private final E low, high;
+        private final boolean lowInclusive, highInclusive;
+
+        private Range(E low, boolean lowInclusive, E high, boolean highInclusive) {
+            this.low = low;
+            this.lowInclusive = lowInclusive;
+            this.high = high;
+            this.highInclusive = highInclusive;
+        }
+
+        @Override
+        public Iterator<E> iterator() {
+            return new TreeIterator(low, lowInclusive, high, highInclusive, false);
+        }
+
+        public Iterator<E> descendingIterator() {
+            return new TreeIterator(low, lowInclusive, high, highInclusive, true);
+        }
+
+        @Override
+        public Spliterator<E> spliterator() {
+            return new TreeSpliterator(low, lowInclusive, high, highInclusive, Long.MAX_VALUE);
+        }
+
+        public Stream<E> stream() {
+            return StreamSupport.stream(spliterator(), false);
+        }
+    }
+
+    /***
+     * Takes a read-only, point in time copy of the tree in constant time. No node is copied up front: the snapshot just
+     * keeps the current root, and from then on writers copy the nodes they would change instead of changing them. The
+     * only wait is for the writes already in progress to finish; new writes are held back for that long too.
+     */
+    public Snapshot snapshot() {
+        Object[] root = new Object[1];
+        writers.quiesce(() -> {
+            root[0] = rootHolder.rightChild;
+            generation++;
+        });
+        @SuppressWarnings("unchecked")
+        Node<E> rootNode = (Node<E>) root[0];
+        return new Snapshot(rootNode);
+    }
+
+    /***
+     * The elements of the tree at the moment snapshot was called. Nothing a snapshot can reach is ever written again,
+     * so it is read without versions, retries or relocation checks and never changes, whatever happens to the tree.
+     */
+    public final class Snapshot implements Iterable<E> {
+        private final Node<E> root;
+        private long size = -1;
+
+        private Snapshot(Node<E> root) {
+            this.root = root;
+        }
+
+        public boolean contains(E element) {
+            Node<E> node = root;
+            while (node != null) {
+                int comparison = element.compareTo(node.dataOfNode);
+                if (comparison == 0 && !node.isDeleted())
+                    return true;
+                node = comparison <= 0 ? node.leftChild : node.rightChild;
+            }
+            return false;
+        }
+
+        public boolean isEmpty() {
+            return root == null;
+        }
+
+        /***
+         * Counted on the first call, which walks the whole snapshot, and remembered after that.
+         */
+        public long size() {
+            if (size < 0) {
+                long count = 0;
+                for (Iterator<E> iterator = iterator(); iterator.hasNext(); iterator.next()) {
+                    count++;
+                }
+                size = count;
+            }
+            return size;
+        }
+
+        @Override
+        public Iterator<E> iterator() {
+            return new SnapshotIterator(root, false);
+        }
+
+        public Iterator<E> descendingIterator() {
+            return new SnapshotIterator(root, true);
+        }
+
+        @Override
+        public Spliterator<E> spliterator() {
+            return Spliterators.spliteratorUnknownSize(iterator(), Spliterator.ORDERED | Spliterator.SORTED | Spliterator.NONNULL | Spliterator.IMMUTABLE);
+        }
+
+        public Stream<E> stream() {
+            return StreamSupport.stream(spliterator(), false);
+        }
+    }
+
+    /* Plain in order walk with a stack; the nodes of a snapshot do not change, so nothing has to be validated. */
+    private final class SnapshotIterator implements Iterator<E> {
+        private final ArrayDeque<Node<E>> stack = new ArrayDeque<>();
+        private final boolean descending;
+        private Node<E> repeating;
+        private int repeats;
+
+        private SnapshotIterator(Node<E> root, boolean descending) {
+            this.descending = descending;
+            pushEdge(root);
+        }
+
+        private void pushEdge(Node<E> node) {
+            while (node != null) {
+                stack.push(node);
+                node = descending ? node.rightChild : node.leftChild;
+            }
+        }
+
+        /* Moves past the deleted nodes at the top of the stack. */
+        private void skipDeleted() {
+            while (!stack.isEmpty() && stack.peek().isDeleted()) {
+                Node<E> node = stack.pop();
+                pushEdge(descending ? node.leftChild : node.rightChild);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            skipDeleted();
+            return repeats > 0 || !stack.isEmpty();
+        }
+
+        @Override
+        public E next() {
+            if (repeats > 0) {
+                repeats--;
+                return repeating.dataOfNode;
+            }
+            skipDeleted();
+            if (stack.isEmpty())
+                throw new NoSuchElementException();
+            Node<E> node = stack.pop();
+            pushEdge(descending ? node.leftChild : node.rightChild);
+            repeating = node;
+            repeats = node.occurrences() - 1;
+            return node.dataOfNode;
+        }
+    }
+
+    /***
+     * Walks the tree with an explicit stack of the nodes still to visit, reading it without locks. Inserts and leaf
+     * removals are harmless to such a walk, but a relocating remove copies an element up into a node that may already
+     * be behind us. So the stack is only trusted while relocationsStarted stays at the value it had, with nothing in
+     * flight, when the stack was built; once a relocation has started the stack is thrown away and rebuilt with one
+     * descent to the first element past the last one returned.
+     * Equal elements stored more than once are all returned, except that a rebuild skips any copies of the last element
+     * it has not reached yet.
+     */
+    private final class TreeIterator implements Iterator<E> {
+        private final E low, high;
+        private final boolean lowInclusive, highInclusive;
+        private final boolean descending;
+        private final ArrayDeque<Node<E>> stack = new ArrayDeque<>();
+        private long relocationSnapshot = -1;
+        private E lastReturned;
+        private E nextElement;
+        /* Further times nextElement is still to be returned, for an element that occurs more than once. */
+        private int repeats;
+
+        private TreeIterator(E low, boolean lowInclusive, E high, boolean highInclusive, boolean descending) {
+            this.low = low;
+            this.lowInclusive = lowInclusive;
+            this.high = high;
+            this.highInclusive = highInclusive;
+            this.descending = descending;
+            advance();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return nextElement != null;
+        }
+
+        @Override
+        public E next() {
+            E element = nextElement;
+            if (element == null)
+                throw new NoSuchElementException();
+            lastReturned = element;
+            if (repeats > 0)
+                repeats--;
+            else
+                advance();
+            return element;
+        }
+
+        private void advance() {
+            while (true) {
+                if (relocationSnapshot != relocationsStarted.get())
+                    rebuild();
+                Node<E> node = stack.poll();
+                E data = node != null ? node.dataOfNode : null;
+                int occurrences = node != null ? node.occurrences() : 1;
+                boolean deleted = node != null && node.isDeleted();
+                if (node != null)
+                    pushSpine(node.child(descending));
+                if (relocationSnapshot != relocationsStarted.get())
+                    continue;
+                if (data == null || !withinFarBound(data)) {
+                    nextElement = null;
+                    return;
+                }
+                if (lastReturned != null && (descending ? data.compareTo(lastReturned) > 0 : data.compareTo(lastReturned) < 0))
+                    continue;
+                if (deleted)
+                    continue;
+                nextElement = data;
+                repeats = occurrences - 1;
+                return;
+            }
+        }
+
+        /* Descends once to the first element past the last one returned, or past the near bound if nothing was returned
+         * yet, pushing every node whose element is still ahead of us. */
+        private void rebuild() {
+            while (true) {
+                long finished = relocationsFinished.get();
+                long started = relocationsStarted.get();
+                if (started != finished) {
+                    Thread.onSpinWait();
+                    continue;
+                }
+                relocationSnapshot = started;
+                break;
+            }
+            stack.clear();
+            E bound = lastReturned != null ? lastReturned : descending ? high : low;
+            boolean inclusive = lastReturned == null && (descending ? highInclusive : lowInclusive);
+            Node<E> node = rootHolder.rightChild;
+            while (node != null) {
+                if (bound == null || ahead(node.dataOfNode, bound, inclusive)) {
+                    stack.push(node);
+                    node = node.child(!descending);
+                } else {
+                    node = node.child(descending);
+                }
+            }
+        }
+
+        private void pushSpine(Node<E> node) {
+            while (node != null) {
+                stack.push(node);
+                node = node.child(!descending);
+            }
+        }
+
+        /* True if the element comes after the bound in the direction we are walking. */
+        private boolean ahead(E element, E bound, boolean inclusive) {
+            int comparison = descending ? bound.compareTo(element) : element.compareTo(bound);
+            return comparison > 0 || (inclusive && comparison == 0);
+        }
+
+        private boolean withinFarBound(E element) {
+            E farBound = descending ? low : high;
+            return farBound == null || !ahead(element, farBound, !(descending ? lowInclusive : highInclusive));
+        }
+    }
+
+    /***
+     * Covers the elements between two optional bounds. It splits by finding the highest node whose element lies strictly
+     * inside its bounds, which is the root of the subtree holding them, and handing the part below that element to a new
+     * spliterator; each half then splits at the root of its own subtree. The estimate starts at the size of the tree
+     * for the whole tree and unknown for a range, and is halved on each split. Traversal uses a TreeIterator and is
+     * weakly consistent in the same way.
+     */
+    private final class TreeSpliterator implements Spliterator<E> {
+        private E low;
+        private boolean lowInclusive;
+        private final E high;
+        private final boolean highInclusive;
+        private long estimate;
+        private TreeIterator iterator;
+
+        private TreeSpliterator(E low, boolean lowInclusive, E high, boolean highInclusive, long estimate) {
+            this.low = low;
+            this.lowInclusive = lowInclusive;
+            this.high = high;
+            this.highInclusive = highInclusive;
+            this.estimate = estimate;
+        }
+
+        @Override
+        public Spliterator<E> trySplit() {
+            if (iterator != null)
+                return null;
+            Node<E> node = rootHolder.rightChild;
+            while (node != null) {
+                E data = node.dataOfNode;
+                if (low != null && data.compareTo(low) <= 0)
+                    node = node.rightChild;
+                else if (high != null && data.compareTo(high) >= 0)
+                    node = node.leftChild;
+                else
+                    break;
+            }
+            if (node == null)
+                return null;
+            // this keeps [splitAt, high], the new one takes [low, splitAt)
+            E splitAt = node.dataOfNode;
+            estimate >>>= 1;
+            TreeSpliterator prefix = new TreeSpliterator(low, lowInclusive, splitAt, false, estimate);
+            this.low = splitAt;
+            this.lowInclusive = true;
+            return prefix;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super E> action) {
+            if (iterator == null)
+                iterator = new TreeIterator(low, lowInclusive, high, highInclusive, false);
+            if (!iterator.hasNext())
+                return false;
+            action.accept(iterator.next());
+            return true;
+        }
+
+        @Override
+        public void forEachRemaining(Consumer<? super E> action) {
+            if (iterator == null)
+                iterator = new TreeIterator(low, lowInclusive, high, highInclusive, false);
+            while (iterator.hasNext()) {
+                action.accept(iterator.next());
+            }
+        }
+
+        @Override
+        public long estimateSize() {
+            return estimate;
+        }
+
+        @Override
+        public int characteristics() {
+            return Spliterator.ORDERED | Spliterator.SORTED | Spliterator.NONNULL | Spliterator.CONCURRENT;
+        }
+
+        /* Natural order. */
+        @Override
+        public Comparator<? super E> getComparator() {
+            return null;
+        }
+    }
+
+    // bulk support sub-methods
+
+    /***
+     * Fills an empty tree from elements that are already in order, building a perfectly balanced tree in one pass over
+     * them. The new nodes are only reachable from the root once they are all built, so no node is locked while building
+     * and the tree goes from empty to full in one step for concurrent readers.
+     * @param sortedElements in ascending order
+     * @throws IllegalStateException if the tree is not empty
+     * @throws IllegalArgumentException if the elements are not in ascending order
+     */
+    public void bulkLoad(Collection<? extends E> sortedElements) throws InterruptedException {
+        if (rootHolder.rightChild != null)
+            throw new IllegalStateException("bulkLoad needs an empty tree");
+        E[] previous = newArray(1);
+        Node<E> root = multiset ? buildFromRuns(sortedElements) : buildFromSorted(sortedElements.iterator(), sortedElements.size(), previous);
+        if (filter != null)
+            sortedElements.forEach(filter::add);
+        writers.enter();
+        try {
+            while (!rootHolder.grab(rootHolder.awaitUnlocked(0))) {
+                Thread.onSpinWait();
+            }
+            try {
+                if (rootHolder.rightChild != null) {
+                    if (filter != null)
+                        sortedElements.forEach(filter::remove);
+                    throw new IllegalStateException("bulkLoad needs an empty tree");
+                }
+                rootHolder.setRightChild(root);
+                elementCount.add(sortedElements.size());
+            } finally {
+                rootHolder.letGo();
+            }
+        } finally {
+            writers.exit();
+        }
+        if (verbose)
+            System.out.println(sortedElements.size() + " elements loaded into the tree.");
+    }
+
+    /* Takes the next count elements from the iterator and returns them as a balanced subtree. The recursion only goes as
+     * deep as the tree it builds, about log2(count). */
+    private Node<E> buildFromSorted(Iterator<? extends E> elements, int count, E[] previous) {
+        if (count == 0)
+            return null;
+        int leftCount = count / 2;
+        Node<E> left = buildFromSorted(elements, leftCount, previous);
+        E element = elements.next();
+        if (previous[0] != null && previous[0].compareTo(element) > 0)
+            throw new IllegalArgumentException("elements are not in ascending order: " + element + " after " + previous[0]);
+        previous[0] = element;
+        Node<E> right = buildFromSorted(elements, count - leftCount - 1, previous);
+        return withCount(newNode(element, left, right));
+    }
+
+    /* For a multiset: collapses every run of equal elements into one node that counts them and builds a balanced tree
+     * of those nodes. */
+    private Node<E> buildFromRuns(Collection<? extends E> sortedElements) {
+        E[] distinct = newArray(16);
+        int[] occurrences = new int[16];
+        int runs = 0;
+        for (E element : sortedElements) {
+            if (runs > 0) {
+                int comparison = distinct[runs - 1].compareTo(element);
+                if (comparison > 0)
+                    throw new IllegalArgumentException("elements are not in ascending order: " + element + " after " + distinct[runs - 1]);
+                if (comparison == 0) {
+                    occurrences[runs - 1]++;
+                    continue;
+                }
+            }
+            if (runs == distinct.length) {
+                distinct = Arrays.copyOf(distinct, runs * 2);
+                occurrences = Arrays.copyOf(occurrences, runs * 2);
+            }
+            distinct[runs] = element;
+            occurrences[runs++] = 1;
+        }
+        return buildFromRuns(distinct, occurrences, 0, runs);
+    }
+
+    private Node<E> buildFromRuns(E[] distinct, int[] occurrences, int from, int to) {
+        if (from == to)
+            return null;
+        int middle = (from + to) >>> 1;
+        MultisetNode<E> node = new MultisetNode<>(distinct[middle], buildFromRuns(distinct, occurrences, from, middle),
+                buildFromRuns(distinct, occurrences, middle + 1, to));
+        node.occurrences = occurrences[middle];
+        return withCount(node);
+    }
+
+    /***
+     * Inserts every element of the batch. The batch is sorted and walked down the tree as one: at each node the part of
+     * the batch that belongs on its left goes one way and the rest the other, so the nodes near the root are read once
+     * for the whole batch instead of once per element. All the elements that end up at the same empty child link are
+     * attached together, as a balanced subtree, under a single lock. A part whose path changed underneath it starts
+     * over from the root on its own.
+     * A tree with subtree counts inserts the elements one at a time instead, since a subtree attached in one go would
+     * need the counts of all the nodes above it raised by its size. So does a multiset, whose elements already in the
+     * tree have to be counted on their nodes rather than attached again.
+     * An interrupt does not stop a batch half way; it is left set when the method returns.
+     * @param batch the elements to insert, in any order
+     */
+    public void insertAll(Collection<? extends E> batch) {
+        boolean[] interrupted = new boolean[1];
+        writers.enter();
+        try {
+            if (subtreeCounts || multiset) {
+                for (E element : batch) {
+                    insertInBatch(element, interrupted);
+                }
+            } else {
+                E[] elements = sortedCopy(batch);
+                if (filter != null) {
+                    for (E element : elements) {
+                        filter.add(element);
+                    }
+                }
+                ArrayDeque<BatchPart<E>> parts = new ArrayDeque<>();
+                parts.push(new BatchPart<>(0, elements.length));
+                while (!parts.isEmpty()) {
+                    BatchPart<E> part = parts.pop();
+                    if (!descendInBatch(part, elements, parts, true, interrupted)) {
+                        parts.push(new BatchPart<>(part.from, part.to));
+                        Thread.onSpinWait();
+                    }
+                }
+                elementCount.add(elements.length);
+            }
+        } finally {
+            writers.exit();
+        }
+        if (interrupted[0])
+            Thread.currentThread().interrupt();
+        if (verbose)
+            System.out.println(batch.size() + " elements inserted into the tree.");
+    }
+
+    /***
+     * Removes one copy of each element of the batch, walking the sorted batch down the tree as one like insertAll. The
+     * subtrees below a node are dealt with before the node itself, so removing it does not pull its successor away from
+     * under parts of the batch that are still on their way down.
+     * A tree with subtree counts removes the elements one at a time, which records the path each removal changes. So
+     * does a tree whose removes only mark nodes deleted, since marking needs no walk of the batch to stay clear of.
+     * An interrupt does not stop a batch half way; it is left set when the method returns.
+     * @param batch the elements to remove, in any order
+     * @return how many elements were found and removed
+     */
+    public int removeAll(Collection<? extends E> batch) {
+        int removed = removeSorted(sortedCopy(batch), null);
+        if (verbose)
+            System.out.println(removed + " of " + batch.size() + " elements removed from the tree.");
+        return removed;
+    }
+
+    /***
+     * Like removeAll for a batch that is sorted already, and tells which of its elements were found.
+     * @param removed null, or an array as long as the batch in which the elements found and removed are marked true
+     * @return how many elements were found and removed
+     */
+    int removeSorted(E[] elements, boolean[] removed) {
+        boolean[] interrupted = new boolean[1];
+        int removedCount = 0;
+        if (cache != null) {
+            for (E element : elements) {
+                cache.removeStarted(element);
+            }
+        }
+        writers.enter();
+        try {
+            if (subtreeCounts || maintenance != null) {
+                for (int i = 0; i < elements.length; i++) {
+                    if (removeInBatch(elements[i], interrupted)) {
+                        removedCount++;
+                        if (removed != null)
+                            removed[i] = true;
+                    }
+                }
+            } else {
+                removedCount = removeWithBatch(elements, removed, interrupted);
+            }
+        } finally {
+            writers.exit();
+            if (cache != null) {
+                for (E element : elements) {
+                    cache.removeFinished(element);
+                }
+            }
+        }
+        if (interrupted[0])
+            Thread.currentThread().interrupt();
+        return removedCount;
+    }
+
+    private int removeWithBatch(E[] elements, boolean[] removed, boolean[] interrupted) {
+        ArrayDeque<BatchPart<E>> parts = new ArrayDeque<>();
+        parts.push(new BatchPart<>(0, elements.length));
+        int removedCount = 0;
+        while (!parts.isEmpty()) {
+            BatchPart<E> part = parts.pop();
+            if (part.nodeToRemove != null) {
+                // every element of this part equals the node's; the first one takes the node itself if it has not moved
+                int from = part.from;
+                int result;
+                try {
+                    result = compareForRemove(part.nodeToRemove, part.nodeVersion, part.parent, part.parentVersion, null, part.depth, false);
+                } catch (InterruptedException e) {
+                    interrupted[0] = true;
+                    result = RETRY;
+                }
+                if (result == REMOVED) {
+                    elementCount.decrement();
+                    if (filter != null)
+                        filter.remove(elements[from]);
+                    removedCount++;
+                    if (removed != null)
+                        removed[from] = true;
+                    from++;
+                }
+                for (int i = from; i < part.to; i++) {
+                    if (removeInBatch(elements[i], interrupted)) {
+                        removedCount++;
+                        if (removed != null)
+                            removed[i] = true;
+                    }
+                }
+            } else if (!descendInBatch(part, elements, parts, false, interrupted)) {
+                parts.push(new BatchPart<>(part.from, part.to));
+                Thread.onSpinWait();
+            }
+        }
+        return removedCount;
+    }
+
+    /* A batch is never given up half way, since the caller could not tell which of its elements had been dealt with.
+     * Every step of one gives up on an interrupt before it changes anything, so the step is just taken again; the
+     * interrupt is noted in interrupted[0] and set again on the calling thread once the whole batch is done. */
+
+    private void insertInBatch(E element, boolean[] interrupted) {
+        while (true) {
+            try {
+                insertOne(element);
+                return;
+            } catch (InterruptedException e) {
+                interrupted[0] = true;
+            }
+        }
+    }
+
+    private boolean removeInBatch(E element, boolean[] interrupted) {
+        while (true) {
+            try {
+                return removeQuietly(element);
+            } catch (InterruptedException e) {
+                interrupted[0] = true;
+            }
+        }
+    }
+
+    /* False, like a changed path, if interrupted, so the part starts over. */
+    private boolean descendInBatch(BatchPart<E> part, E[] elements, ArrayDeque<BatchPart<E>> parts, boolean inserting, boolean[] interrupted) {
+        try {
+            return descendWithBatch(part, elements, parts, inserting);
+        } catch (InterruptedException e) {
+            interrupted[0] = true;
+            return false;
+        }
+    }
+
+    /* A slice [from, to) of a sorted batch on its way down, with what insertOptimistically keeps for one element: the
+     * node it is about to leave and that node's version, the side it leaves it by, and the nodes that bound the slice's
+     * range. A part with a nodeToRemove is the removal of that node, queued behind its subtrees. */
+    private static final class BatchPart<E extends Comparable<E>> {
+        private final int from, to;
+        private ConcurrentBinarySearchTree<E>.Node<E> parent;
+        private long parentVersion;
+        private boolean goLeft;
+        private ConcurrentBinarySearchTree<E>.Node<E> lowerBound, upperBound;
+        private long lowerBoundVersion, upperBoundVersion;
+        private ConcurrentBinarySearchTree<E>.Node<E> nodeToRemove;
+        private long nodeVersion;
+
+        /* Depth of the child below parent that the slice goes on to, or of nodeToRemove. */
+        private int depth = 1;
+
+        private BatchPart(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        /* The part of this slice that continues below node, on the given side of it. */
+        private BatchPart<E> below(ConcurrentBinarySearchTree<E>.Node<E> node, long version, boolean left, int from, int to) {
+            BatchPart<E> part = new BatchPart<>(from, to);
+            part.parent = node;
+            part.parentVersion = version;
+            part.goLeft = left;
+            part.depth = depth + 1;
+            part.lowerBound = left ? lowerBound : node;
+            part.lowerBoundVersion = left ? lowerBoundVersion : version;
+            part.upperBound = left ? node : upperBound;
+            part.upperBoundVersion = left ? version : upperBoundVersion;
+            return part;
+        }
+    }
+
+    /***
+     * Takes one step down for a slice of the batch. Either the slice reaches an empty child link and is inserted there
+     * (or, removing, found missing), or it is split at the next node and its parts are pushed for later.
+     * @return false if the path changed underneath the slice and it has to start over from the root
+     */
+    private boolean descendWithBatch(BatchPart<E> part, E[] elements, ArrayDeque<BatchPart<E>> parts, boolean inserting) throws InterruptedException {
+        if (part.from == part.to)
+            return true;
+        if (part.parent == null) {
+            part.parent = rootHolder;
+            part.parentVersion = rootHolder.awaitUnlocked(0);
+        }
+        Node<E> parentNode = part.parent;
+        Node<E> currentNode = parentNode.child(part.goLeft);
+        if (currentNode == null) {
+            if (!inserting)
+                return parentNode.version == part.parentVersion && unchanged(part.lowerBound, part.lowerBoundVersion, null) && unchanged(part.upperBound, part.upperBoundVersion, null);
+            if (!parentNode.grab(part.parentVersion))
+                return false;
+            if (!unchanged(part.lowerBound, part.lowerBoundVersion, parentNode) || !unchanged(part.upperBound, part.upperBoundVersion, parentNode)) {
+                parentNode.letGo();
+                return false;
+            }
+            parentNode.setChild(part.goLeft, buildFromSorted(elements, part.from, part.to));
+            parentNode.letGo();
+            return true;
+        }
+        long currentVersion = currentNode.awaitUnlocked(part.depth);
+        if (parentNode.version != part.parentVersion)
+            return false;
+        if (isShared(currentNode)) {
+            currentNode = unshare(parentNode, part.parentVersion, part.goLeft, currentNode);
+            if (currentNode == null)
+                return false;
+            part.parentVersion += 2;
+            if (part.lowerBound == parentNode)
+                part.lowerBoundVersion += 2;
+            if (part.upperBound == parentNode)
+                part.upperBoundVersion += 2;
+            currentVersion = 0;
+        }
+        E data = currentNode.dataOfNode;
+        if (inserting) {
+            // equal elements go left, as in insertOptimistically
+            int split = firstAbove(elements, part.from, part.to, data);
+            parts.push(part.below(currentNode, currentVersion, false, split, part.to));
+            parts.push(part.below(currentNode, currentVersion, true, part.from, split));
+        } else {
+            int equalFrom = firstAtLeast(elements, part.from, part.to, data);
+            int equalTo = firstAbove(elements, equalFrom, part.to, data);
+            if (equalFrom < equalTo) {
+                BatchPart<E> removal = new BatchPart<>(equalFrom, equalTo);
+                removal.nodeToRemove = currentNode;
+                removal.nodeVersion = currentVersion;
+                removal.parent = parentNode;
+                removal.parentVersion = part.parentVersion;
+                removal.depth = part.depth;
+                parts.push(removal);
+            }
+            parts.push(part.below(currentNode, currentVersion, false, equalTo, part.to));
+            parts.push(part.below(currentNode, currentVersion, true, part.from, equalFrom));
+        }
+        return true;
+    }
+
+    /* Builds a balanced subtree out of elements[from, to), which are sorted. Equal elements are kept on the left of each
+     * other, the way insert would have placed them. */
+    private Node<E> buildFromSorted(E[] elements, int from, int to) {
+        if (from == to)
+            return null;
+        int middle = (from + to) >>> 1;
+        while (middle + 1 < to && elements[middle + 1].compareTo(elements[middle]) == 0) {
+            middle++;
+        }
+        return withCount(newNode(elements[middle], buildFromSorted(elements, from, middle), buildFromSorted(elements, middle + 1, to)));
+    }
+
+    /* Removes one element and does the bookkeeping for it; the caller is inside the writers gate. */
+    private boolean removeQuietly(E element) throws InterruptedException {
+        ArrayList<Node<E>> path = subtreeCounts ? new ArrayList<>() : null;
+        int result;
+        while ((result = removeOptimistically(element, path, false)) == RETRY) {
+            restarts.increment();
+            checkDeadline();
+            Thread.onSpinWait();
+        }
+        if (result != REMOVED)
+            return false;
+        elementCount.decrement();
+        if (filter != null)
+            filter.remove(element);
+        if (path != null)
+            addToCounts(path, -1);
+        return true;
+    }
+
+    /* Sets the count of a node built with its children in place. */
+    private Node<E> withCount(Node<E> node) {
+        node.count = 1 + countOf(node.leftChild) + countOf(node.rightChild);
+        return node;
+    }
+
+    private E[] sortedCopy(Collection<? extends E> batch) {
+        E[] elements = batch.toArray(newArray(batch.size()));
+        Arrays.sort(elements);
+        return elements;
+    }
+
+    @SuppressWarnings("unchecked")
+    private E[] newArray(int length) {
+        return (E[]) new Comparable<?>[length];
+    }
+
+    /* Index of the first element in the sorted range that is greater than the given one, or to if there is none. */
+    private int firstAbove(E[] elements, int from, int to, E element) {
+        while (from < to) {
+            int middle = (from + to) >>> 1;
+            if (elements[middle].compareTo(element) <= 0)
+                from = middle + 1;
+            else
+                to = middle;
+        }
+        return from;
+    }
+
+    /* Index of the first element in the sorted range that is not less than the given one, or to if there is none. */
+    private int firstAtLeast(E[] elements, int from, int to, E element) {
+        while (from < to) {
+            int middle = (from + to) >>> 1;
+            if (elements[middle].compareTo(element) < 0)
+                from = middle + 1;
+            else
+                to = middle;
+        }
+        return from;
+    }
+
+    public void inOrderPrint() throws InterruptedException {
+        Node<E> rootNode = rootHolder.rightChild;
+        if (rootNode != null) {
+            System.out.print("[ ");
+            inOrderPrintFrom(rootNode);
+            System.out.println(" ]");
+        }
+    }
+
+    void inOrderPrintFrom(Node<E> fromAnyNode) {
+        if (fromAnyNode != null) {
+            inOrderPrintFrom(fromAnyNode.leftChild);
+            for (int i = fromAnyNode.isDeleted() ? 0 : fromAnyNode.occurrences(); i > 0; i--) {
+                System.out.print(fromAnyNode.dataOfNode + ", ");
+            }
+            inOrderPrintFrom(fromAnyNode.rightChild);
         }
     }
-}
\ No newline at end of file
+}
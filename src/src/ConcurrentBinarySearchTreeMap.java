@@ -0,0 +1,780 @@
+package src;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.concurrent.ConcurrentNavigableMap;
+
+/***
+ * Sorted concurrent map kept in a ConcurrentBinarySearchTree, so it has the same lock-free lookups and the same
+ * optimistic, per node locking for writes. Each tree element is a mapping holding its key and a volatile value. The
+ * tree orders mappings by key and never holds two with the same key, so a key appears once.
+ * Changing the value of a present key is one compare-and-set on that value and does not touch the tree. Removing a
+ * key first sets its value to null, which takes the key out of the map at once, and only then unlinks the mapping. A
+ * put that finds such a dead mapping waits until it is gone and then tries again.
+ * Iterators, key sets and entry sets are weakly consistent, as in the tree. The entries they return are copies taken
+ * when the entry was read, and size() counts the entries, so it takes time linear in the size of the map.
+ * Sub maps and descending maps are views on the same tree, limited to a key range and optionally walked in reverse.
+ * @param <K>
+ * @param <V>
+ */
+public class ConcurrentBinarySearchTreeMap<K extends Comparable<K>, V> extends AbstractMap<K, V> implements ConcurrentNavigableMap<K, V> {
+    private static final VarHandle VALUE;
+    private static final int SPINS_BEFORE_YIELD = 64;
+
+    static {
+        try {
+            VALUE = MethodHandles.lookup().findVarHandle(Mapping.class, "value", Object.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final ConcurrentBinarySearchTree<Mapping<K, V>> tree;
+
+    /* The key range of this view, in the natural order of the keys whichever way it is walked. A null bound is no bound. */
+    private final K low, high;
+    private final boolean lowInclusive, highInclusive;
+    private final boolean descending;
+
+    /* A key and its current value; a null value means the key has been removed and the mapping is being unlinked. */
+    private static final class Mapping<K extends Comparable<K>, V> implements Comparable<Mapping<K, V>> {
+        private final K key;
+        private volatile V value;
+
+        private Mapping(K key, V value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        private boolean changeValue(V expected, V newValue) {
+            return VALUE.compareAndSet(this, expected, newValue);
+        }
+
+        @Override
+        public int compareTo(Mapping<K, V> other) {
+            return key.compareTo(other.key);
+        }
+
+        @Override
+        public String toString() {
+            return key + "=" + value;
+        }
+    }
+
+    /* A call into the tree that may be interrupted while it waits on a node. */
+    private interface TreeCall<T> {
+        T run() throws InterruptedException;
+    }
+
+    public ConcurrentBinarySearchTreeMap() {
+        this(new ConcurrentBinarySearchTree<>(false), null, false, null, false, false);
+    }
+
+    private ConcurrentBinarySearchTreeMap(ConcurrentBinarySearchTree<Mapping<K, V>> tree, K low, boolean lowInclusive, K high, boolean highInclusive, boolean descending) {
+        this.tree = tree;
+        this.low = low;
+        this.lowInclusive = lowInclusive;
+        this.high = high;
+        this.highInclusive = highInclusive;
+        this.descending = descending;
+    }
+
+    // lookups and updates
+
+    @Override
+    public V get(Object key) {
+        Mapping<K, V> mapping = find(key);
+        return mapping == null ? null : mapping.value;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public V put(K key, V value) {
+        Objects.requireNonNull(value);
+        Mapping<K, V> newMapping = new Mapping<>(inRangeKey(key), value);
+        while (true) {
+            Mapping<K, V> mapping = insertIfAbsent(newMapping);
+            if (mapping == null)
+                return null;
+            V oldValue = mapping.value;
+            if (oldValue == null)
+                awaitUnlinked(mapping);
+            else if (mapping.changeValue(oldValue, value))
+                return oldValue;
+        }
+    }
+
+    @Override
+    public V putIfAbsent(K key, V value) {
+        Objects.requireNonNull(value);
+        Mapping<K, V> newMapping = new Mapping<>(inRangeKey(key), value);
+        while (true) {
+            Mapping<K, V> mapping = insertIfAbsent(newMapping);
+            if (mapping == null)
+                return null;
+            V oldValue = mapping.value;
+            if (oldValue != null)
+                return oldValue;
+            awaitUnlinked(mapping);
+        }
+    }
+
+    @Override
+    public V remove(Object key) {
+        Mapping<K, V> mapping = find(key);
+        while (mapping != null) {
+            V oldValue = mapping.value;
+            if (oldValue == null)
+                return null;
+            if (mapping.changeValue(oldValue, null)) {
+                unlink(mapping);
+                return oldValue;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public boolean remove(Object key, Object value) {
+        if (value == null)
+            return false;
+        Mapping<K, V> mapping = find(key);
+        while (mapping != null) {
+            V oldValue = mapping.value;
+            if (oldValue == null || !oldValue.equals(value))
+                return false;
+            if (mapping.changeValue(oldValue, null)) {
+                unlink(mapping);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean replace(K key, V oldValue, V newValue) {
+        Objects.requireNonNull(oldValue);
+        Objects.requireNonNull(newValue);
+        Mapping<K, V> mapping = find(key);
+        while (mapping != null) {
+            V currentValue = mapping.value;
+            if (currentValue == null || !currentValue.equals(oldValue))
+                return false;
+            if (mapping.changeValue(currentValue, newValue))
+                return true;
+        }
+        return false;
+    }
+
+    @Override
+    public V replace(K key, V value) {
+        Objects.requireNonNull(value);
+        Mapping<K, V> mapping = find(key);
+        while (mapping != null) {
+            V currentValue = mapping.value;
+            if (currentValue == null)
+                return null;
+            if (mapping.changeValue(currentValue, value))
+                return currentValue;
+        }
+        return null;
+    }
+
+    /***
+     * Counts the entries of this map or view one by one.
+     */
+    @Override
+    public int size() {
+        long count = 0;
+        for (Iterator<Mapping<K, V>> mappings = mappings(); mappings.hasNext(); ) {
+            if (mappings.next().value != null)
+                count++;
+        }
+        return count >= Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) count;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return firstEntry() == null;
+    }
+
+    // navigation
+
+    @Override
+    public Map.Entry<K, V> lowerEntry(K key) {
+        return step(Objects.requireNonNull(key), false, false);
+    }
+
+    @Override
+    public K lowerKey(K key) {
+        return keyOf(lowerEntry(key));
+    }
+
+    @Override
+    public Map.Entry<K, V> floorEntry(K key) {
+        return step(Objects.requireNonNull(key), true, false);
+    }
+
+    @Override
+    public K floorKey(K key) {
+        return keyOf(floorEntry(key));
+    }
+
+    @Override
+    public Map.Entry<K, V> ceilingEntry(K key) {
+        return step(Objects.requireNonNull(key), true, true);
+    }
+
+    @Override
+    public K ceilingKey(K key) {
+        return keyOf(ceilingEntry(key));
+    }
+
+    @Override
+    public Map.Entry<K, V> higherEntry(K key) {
+        return step(Objects.requireNonNull(key), false, true);
+    }
+
+    @Override
+    public K higherKey(K key) {
+        return keyOf(higherEntry(key));
+    }
+
+    @Override
+    public Map.Entry<K, V> firstEntry() {
+        return step(null, false, true);
+    }
+
+    @Override
+    public Map.Entry<K, V> lastEntry() {
+        return step(null, false, false);
+    }
+
+    @Override
+    public K firstKey() {
+        Map.Entry<K, V> entry = firstEntry();
+        if (entry == null)
+            throw new NoSuchElementException();
+        return entry.getKey();
+    }
+
+    @Override
+    public K lastKey() {
+        Map.Entry<K, V> entry = lastEntry();
+        if (entry == null)
+            throw new NoSuchElementException();
+        return entry.getKey();
+    }
+
+    @Override
+    public Map.Entry<K, V> pollFirstEntry() {
+        return poll(true);
+    }
+
+    @Override
+    public Map.Entry<K, V> pollLastEntry() {
+        return poll(false);
+    }
+
+    @Override
+    public Comparator<? super K> comparator() {
+        return descending ? Comparator.reverseOrder() : null;
+    }
+
+    // views
+
+    @Override
+    public ConcurrentBinarySearchTreeMap<K, V> subMap(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive) {
+        return view(Objects.requireNonNull(fromKey), fromInclusive, Objects.requireNonNull(toKey), toInclusive);
+    }
+
+    @Override
+    public ConcurrentBinarySearchTreeMap<K, V> headMap(K toKey, boolean inclusive) {
+        return view(null, false, Objects.requireNonNull(toKey), inclusive);
+    }
+
+    @Override
+    public ConcurrentBinarySearchTreeMap<K, V> tailMap(K fromKey, boolean inclusive) {
+        return view(Objects.requireNonNull(fromKey), inclusive, null, false);
+    }
+
+    @Override
+    public ConcurrentBinarySearchTreeMap<K, V> subMap(K fromKey, K toKey) {
+        return subMap(fromKey, true, toKey, false);
+    }
+
+    @Override
+    public ConcurrentBinarySearchTreeMap<K, V> headMap(K toKey) {
+        return headMap(toKey, false);
+    }
+
+    @Override
+    public ConcurrentBinarySearchTreeMap<K, V> tailMap(K fromKey) {
+        return tailMap(fromKey, true);
+    }
+
+    @Override
+    public ConcurrentBinarySearchTreeMap<K, V> descendingMap() {
+        return new ConcurrentBinarySearchTreeMap<>(tree, low, lowInclusive, high, highInclusive, !descending);
+    }
+
+    @Override
+    public NavigableSet<K> navigableKeySet() {
+        return new KeySet();
+    }
+
+    @Override
+    public NavigableSet<K> keySet() {
+        return new KeySet();
+    }
+
+    @Override
+    public NavigableSet<K> descendingKeySet() {
+        return descendingMap().navigableKeySet();
+    }
+
+    @Override
+    public Set<Map.Entry<K, V>> entrySet() {
+        return new EntrySet();
+    }
+
+    @Override
+    public Collection<V> values() {
+        return new Values();
+    }
+
+    // support sub-methods
+
+    /* The mapping for a key within this view, dead or alive, or null. */
+    private Mapping<K, V> find(Object key) {
+        @SuppressWarnings("unchecked")
+        K probeKey = (K) Objects.requireNonNull(key);
+        if (!inRange(probeKey))
+            return null;
+        return tree.get(new Mapping<>(probeKey, null));
+    }
+
+    private Mapping<K, V> insertIfAbsent(Mapping<K, V> mapping) {
+        return uninterruptibly(() -> tree.insertIfAbsent(mapping));
+    }
+
+    /* Takes a mapping whose value has just been set to null out of the tree. Keys are unique in the tree and no new
+     * mapping for this key can be inserted while the dead one is there, so removing by key removes exactly this one. */
+    private void unlink(Mapping<K, V> mapping) {
+        uninterruptibly(() -> tree.remove(mapping));
+    }
+
+    /* Waits for the remove that killed a mapping to unlink it, so the key can be inserted again. */
+    private void awaitUnlinked(Mapping<K, V> mapping) {
+        int spins = 0;
+        while (tree.get(mapping) == mapping) {
+            if (++spins < SPINS_BEFORE_YIELD)
+                Thread.onSpinWait();
+            else
+                Thread.yield();
+        }
+    }
+
+    /* The tree only throws InterruptedException before it has changed anything, so the call can simply be made again;
+     * the interrupt is passed on to the caller afterwards. The unlink of a dead mapping in particular must not be
+     * given up half way, or the key could never be inserted again. */
+    private static <T> T uninterruptibly(TreeCall<T> call) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return call.run();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    /***
+     * The first live entry from a key onwards, in the order of this view.
+     * @param key where to start, or null to start at the first key of the view
+     * @param inclusive whether the key itself may be returned
+     * @param forward true to go towards the end of the view, false towards its start
+     */
+    private Map.Entry<K, V> step(K key, boolean inclusive, boolean forward) {
+        Iterator<Mapping<K, V>> mappings;
+        if (forward != descending)
+            mappings = mappings(tighterLow(key), key == null ? lowInclusive : tighterLowInclusive(key, inclusive), high, highInclusive, true);
+        else
+            mappings = mappings(low, lowInclusive, tighterHigh(key), key == null ? highInclusive : tighterHighInclusive(key, inclusive), false);
+        while (mappings.hasNext()) {
+            Mapping<K, V> mapping = mappings.next();
+            V value = mapping.value;
+            if (value != null)
+                return new AbstractMap.SimpleImmutableEntry<>(mapping.key, value);
+        }
+        return null;
+    }
+
+    private Map.Entry<K, V> poll(boolean first) {
+        while (true) {
+            Map.Entry<K, V> entry = first ? firstEntry() : lastEntry();
+            if (entry == null || remove(entry.getKey(), entry.getValue()))
+                return entry;
+        }
+    }
+
+    private K tighterLow(K key) {
+        if (key == null || (low != null && key.compareTo(low) < 0))
+            return low;
+        return key;
+    }
+
+    private boolean tighterLowInclusive(K key, boolean inclusive) {
+        if (low == null)
+            return inclusive;
+        int comparison = key.compareTo(low);
+        if (comparison < 0)
+            return lowInclusive;
+        return comparison > 0 ? inclusive : inclusive && lowInclusive;
+    }
+
+    private K tighterHigh(K key) {
+        if (key == null || (high != null && key.compareTo(high) > 0))
+            return high;
+        return key;
+    }
+
+    private boolean tighterHighInclusive(K key, boolean inclusive) {
+        if (high == null)
+            return inclusive;
+        int comparison = key.compareTo(high);
+        if (comparison > 0)
+            return highInclusive;
+        return comparison < 0 ? inclusive : inclusive && highInclusive;
+    }
+
+    /* Every mapping of this view, dead or alive, in the order of the view. */
+    private Iterator<Mapping<K, V>> mappings() {
+        return mappings(low, lowInclusive, high, highInclusive, !descending);
+    }
+
+    private Iterator<Mapping<K, V>> mappings(K from, boolean fromInclusive, K to, boolean toInclusive, boolean ascending) {
+        if (from != null && to != null) {
+            int comparison = from.compareTo(to);
+            if (comparison > 0 || (comparison == 0 && !(fromInclusive && toInclusive)))
+                return Collections.emptyIterator();
+        }
+        ConcurrentBinarySearchTree<Mapping<K, V>>.Range range = tree.subSet(
+                from == null ? null : new Mapping<>(from, null), fromInclusive,
+                to == null ? null : new Mapping<>(to, null), toInclusive);
+        return ascending ? range.iterator() : range.descendingIterator();
+    }
+
+    private boolean tooLow(K key) {
+        if (low == null)
+            return false;
+        int comparison = key.compareTo(low);
+        return comparison < 0 || (comparison == 0 && !lowInclusive);
+    }
+
+    private boolean tooHigh(K key) {
+        if (high == null)
+            return false;
+        int comparison = key.compareTo(high);
+        return comparison > 0 || (comparison == 0 && !highInclusive);
+    }
+
+    private boolean inRange(K key) {
+        return !tooLow(key) && !tooHigh(key);
+    }
+
+    private K inRangeKey(K key) {
+        Objects.requireNonNull(key);
+        if (!inRange(key))
+            throw new IllegalArgumentException("key out of range");
+        return key;
+    }
+
+    /* A view of part of this one; from and to are given in the order of this view. */
+    private ConcurrentBinarySearchTreeMap<K, V> view(K from, boolean fromInclusive, K to, boolean toInclusive) {
+        if (descending) {
+            K key = from;
+            from = to;
+            to = key;
+            boolean inclusive = fromInclusive;
+            fromInclusive = toInclusive;
+            toInclusive = inclusive;
+        }
+        if (from != null && !inRange(from) && !(low != null && from.compareTo(low) == 0 && !fromInclusive))
+            throw new IllegalArgumentException("fromKey out of range");
+        if (to != null && !inRange(to) && !(high != null && to.compareTo(high) == 0 && !toInclusive))
+            throw new IllegalArgumentException("toKey out of range");
+        if (from != null && to != null && from.compareTo(to) > 0)
+            throw new IllegalArgumentException("fromKey > toKey");
+        return new ConcurrentBinarySearchTreeMap<>(tree,
+                from == null ? low : from, from == null ? lowInclusive : fromInclusive,
+                to == null ? high : to, to == null ? highInclusive : toInclusive, descending);
+    }
+
+    private static <K> K keyOf(Map.Entry<K, ?> entry) {
+        return entry == null ? null : entry.getKey();
+    }
+
+    /***
+     * Walks the live entries of this view in its order. Removing through the iterator removes the last key returned.
+     */
+    private abstract class ViewIterator<T> implements Iterator<T> {
+        private final Iterator<Mapping<K, V>> mappings = mappings();
+        private K nextKey, lastKey;
+        private V nextValue;
+
+        private ViewIterator() {
+            advance();
+        }
+
+        private void advance() {
+            nextKey = null;
+            while (mappings.hasNext()) {
+                Mapping<K, V> mapping = mappings.next();
+                V value = mapping.value;
+                if (value != null) {
+                    nextKey = mapping.key;
+                    nextValue = value;
+                    return;
+                }
+            }
+        }
+
+        abstract T make(K key, V value);
+
+        @Override
+        public boolean hasNext() {
+            return nextKey != null;
+        }
+
+        @Override
+        public T next() {
+            if (nextKey == null)
+                throw new NoSuchElementException();
+            lastKey = nextKey;
+            T result = make(nextKey, nextValue);
+            advance();
+            return result;
+        }
+
+        @Override
+        public void remove() {
+            if (lastKey == null)
+                throw new IllegalStateException();
+            ConcurrentBinarySearchTreeMap.this.remove(lastKey);
+            lastKey = null;
+        }
+    }
+
+    private final class EntrySet extends AbstractSet<Map.Entry<K, V>> {
+        @Override
+        public Iterator<Map.Entry<K, V>> iterator() {
+            return new ViewIterator<>() {
+                Map.Entry<K, V> make(K key, V value) {
+                    return new AbstractMap.SimpleImmutableEntry<>(key, value);
+                }
+            };
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            if (!(o instanceof Map.Entry))
+                return false;
+            Map.Entry<?, ?> entry = (Map.Entry<?, ?>) o;
+            V value = get(entry.getKey());
+            return value != null && value.equals(entry.getValue());
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            if (!(o instanceof Map.Entry))
+                return false;
+            Map.Entry<?, ?> entry = (Map.Entry<?, ?>) o;
+            return ConcurrentBinarySearchTreeMap.this.remove(entry.getKey(), entry.getValue());
+        }
+
+        @Override
+        public int size() {
+            return ConcurrentBinarySearchTreeMap.this.size();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return ConcurrentBinarySearchTreeMap.this.isEmpty();
+        }
+
+        @Override
+        public void clear() {
+            ConcurrentBinarySearchTreeMap.this.clear();
+        }
+    }
+
+    private final class Values extends AbstractCollection<V> {
+        @Override
+        public Iterator<V> iterator() {
+            return new ViewIterator<>() {
+                V make(K key, V value) {
+                    return value;
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return ConcurrentBinarySearchTreeMap.this.size();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return ConcurrentBinarySearchTreeMap.this.isEmpty();
+        }
+
+        @Override
+        public void clear() {
+            ConcurrentBinarySearchTreeMap.this.clear();
+        }
+    }
+
+    private final class KeySet extends AbstractSet<K> implements NavigableSet<K> {
+        @Override
+        public Iterator<K> iterator() {
+            return new ViewIterator<>() {
+                K make(K key, V value) {
+                    return key;
+                }
+            };
+        }
+
+        @Override
+        public Iterator<K> descendingIterator() {
+            return descendingSet().iterator();
+        }
+
+        @Override
+        public NavigableSet<K> descendingSet() {
+            return descendingMap().navigableKeySet();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return containsKey(o);
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            return ConcurrentBinarySearchTreeMap.this.remove(o) != null;
+        }
+
+        @Override
+        public int size() {
+            return ConcurrentBinarySearchTreeMap.this.size();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return ConcurrentBinarySearchTreeMap.this.isEmpty();
+        }
+
+        @Override
+        public void clear() {
+            ConcurrentBinarySearchTreeMap.this.clear();
+        }
+
+        @Override
+        public K lower(K key) {
+            return lowerKey(key);
+        }
+
+        @Override
+        public K floor(K key) {
+            return floorKey(key);
+        }
+
+        @Override
+        public K ceiling(K key) {
+            return ceilingKey(key);
+        }
+
+        @Override
+        public K higher(K key) {
+            return higherKey(key);
+        }
+
+        @Override
+        public K pollFirst() {
+            return keyOf(pollFirstEntry());
+        }
+
+        @Override
+        public K pollLast() {
+            return keyOf(pollLastEntry());
+        }
+
+        @Override
+        public K first() {
+            return firstKey();
+        }
+
+        @Override
+        public K last() {
+            return lastKey();
+        }
+
+        @Override
+        public Comparator<? super K> comparator() {
+            return ConcurrentBinarySearchTreeMap.this.comparator();
+        }
+
+        @Override
+        public NavigableSet<K> subSet(K fromElement, boolean fromInclusive, K toElement, boolean toInclusive) {
+            return subMap(fromElement, fromInclusive, toElement, toInclusive).navigableKeySet();
+        }
+
+        @Override
+        public NavigableSet<K> headSet(K toElement, boolean inclusive) {
+            return headMap(toElement, inclusive).navigableKeySet();
+        }
+
+        @Override
+        public NavigableSet<K> tailSet(K fromElement, boolean inclusive) {
+            return tailMap(fromElement, inclusive).navigableKeySet();
+        }
+
+        @Override
+        public SortedSet<K> subSet(K fromElement, K toElement) {
+            return subSet(fromElement, true, toElement, false);
+        }
+
+        @Override
+        public SortedSet<K> headSet(K toElement) {
+            return headSet(toElement, false);
+        }
+
+        @Override
+        public SortedSet<K> tailSet(K fromElement) {
+            return tailSet(fromElement, true);
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package src;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+
+/***
+ * LatencyHistogram that any number of threads can record into at once. The buckets are kept in a few stripes, and a
+ * thread always records into the stripe its identity hashes to, so threads on different cores mostly increment
+ * different cache lines. Reading it adds the stripes up into a plain LatencyHistogram, which may or may not include
+ * values recorded while it is being read.
+ */
+class ConcurrentLatencyHistogram {
+    private final AtomicLongArray[] stripes;
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    ConcurrentLatencyHistogram() {
+        int stripeCount = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors()) * 2 - 1) << 1;
+        stripes = new AtomicLongArray[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new AtomicLongArray(LatencyHistogram.BUCKETS);
+        }
+    }
+
+    void record(long nanos) {
+        if (nanos < 0)
+            nanos = 0;
+        int hash = System.identityHashCode(Thread.currentThread());
+        stripes[(hash ^ hash >>> 16) & (stripes.length - 1)].getAndIncrement(LatencyHistogram.bucketOf(nanos));
+        max.accumulate(nanos);
+    }
+
+    LatencyHistogram snapshot() {
+        long[] counts = new long[LatencyHistogram.BUCKETS];
+        for (AtomicLongArray stripe : stripes) {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += stripe.get(i);
+            }
+        }
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.add(counts, max.get());
+        return histogram;
+    }
+}
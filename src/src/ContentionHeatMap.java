@@ -0,0 +1,114 @@
+package src;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/***
+ * Report of where in a tree writers get in each other's way, built from the per-node counts a tree keeps while its
+ * metrics are enabled. It walks the tree level by level over the same PrintableNode links TreePrinter draws from, and
+ * renders the hottest nodes, ranked by conflicts and then by acquisitions, and a table of how acquisitions and
+ * conflicts are spread over the depths of the tree, with a bar per depth scaled to the most contended one.
+ * A node with many conflicts near the top of the tree is a natural boundary to shard at; a long run of depths with
+ * one or two nodes each is a degenerate subtree.
+ */
+public class ContentionHeatMap {
+    private static final int BAR_WIDTH = 40;
+
+    /** Node that keeps counts of how writers used it */
+    public interface HeatNode extends TreePrinter.PrintableNode {
+        /** Estimated number of times a writer locked the node */
+        long getAcquisitions();
+
+        /** Number of times a writer found the node held, or lost the race to lock it */
+        long getConflicts();
+    }
+
+    private static final class Hot {
+        private final String text;
+        private final int depth;
+        private final long acquisitions;
+        private final long conflicts;
+
+        private Hot(String text, int depth, long acquisitions, long conflicts) {
+            this.text = text;
+            this.depth = depth;
+            this.acquisitions = acquisitions;
+            this.conflicts = conflicts;
+        }
+    }
+
+    private static final Comparator<Hot> BY_HEAT = Comparator.<Hot>comparingLong(hot -> hot.conflicts)
+            .thenComparingLong(hot -> hot.acquisitions);
+
+    /***
+     * @param root root of the tree, or null for an empty one
+     * @param topK how many of the hottest nodes to list
+     */
+    public static String render(HeatNode root, int topK) {
+        List<long[]> depths = new ArrayList<>();
+        PriorityQueue<Hot> hottest = new PriorityQueue<>(BY_HEAT);
+        List<HeatNode> level = new ArrayList<>();
+        List<HeatNode> next = new ArrayList<>();
+        if (root != null)
+            level.add(root);
+        while (!level.isEmpty()) {
+            // nodes, acquisitions and conflicts at this depth
+            long[] totals = new long[3];
+            for (HeatNode node : level) {
+                // the tree may be changing underneath, so every link and count is read once and then only the copy used
+                long acquisitions = node.getAcquisitions();
+                long conflicts = node.getConflicts();
+                totals[0]++;
+                totals[1] += acquisitions;
+                totals[2] += conflicts;
+                if (topK > 0 && (acquisitions > 0 || conflicts > 0)) {
+                    hottest.add(new Hot(node.getText(), depths.size() + 1, acquisitions, conflicts));
+                    if (hottest.size() > topK)
+                        hottest.poll();
+                }
+                TreePrinter.PrintableNode left = node.getLeft();
+                TreePrinter.PrintableNode right = node.getRight();
+                if (left != null)
+                    next.add((HeatNode) left);
+                if (right != null)
+                    next.add((HeatNode) right);
+            }
+            depths.add(totals);
+            List<HeatNode> done = level;
+            level = next;
+            next = done;
+            next.clear();
+        }
+
+        StringBuilder report = new StringBuilder();
+        report.append("Hottest nodes\n");
+        report.append(String.format("%6s  %-20s %6s %14s %10s%n", "rank", "element", "depth", "acquisitions", "conflicts"));
+        List<Hot> ranked = new ArrayList<>(hottest);
+        ranked.sort(BY_HEAT.reversed());
+        for (int i = 0; i < ranked.size(); i++) {
+            Hot hot = ranked.get(i);
+            report.append(String.format("%6d  %-20s %6d %14d %10d%n", i + 1, hot.text, hot.depth, hot.acquisitions, hot.conflicts));
+        }
+        if (ranked.isEmpty())
+            report.append("  (nothing recorded)\n");
+
+        report.append("Contention by depth\n");
+        report.append(String.format("%6s %8s %14s %10s  %s%n", "depth", "nodes", "acquisitions", "conflicts", "heat"));
+        long maxConflicts = 0, maxAcquisitions = 0;
+        for (long[] totals : depths) {
+            maxAcquisitions = Math.max(maxAcquisitions, totals[1]);
+            maxConflicts = Math.max(maxConflicts, totals[2]);
+        }
+        for (int depth = 0; depth < depths.size(); depth++) {
+            long[] totals = depths.get(depth);
+            // with no conflicts at all, the bars show where the acquisitions are instead
+            long heat = maxConflicts > 0 ? totals[2] : totals[1];
+            long max = maxConflicts > 0 ? maxConflicts : maxAcquisitions;
+            int width = max == 0 ? 0 : (int) Math.round((double) heat * BAR_WIDTH / max);
+            report.append(String.format("%6d %8d %14d %10d  %s%n", depth + 1, totals[0], totals[1], totals[2], "#".repeat(width)));
+        }
+        return report.toString();
+    }
+}
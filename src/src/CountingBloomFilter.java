@@ -0,0 +1,126 @@
+package src;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/***
+ * Concurrent counting Bloom filter: answers for certain that an element is absent, or says it might be present.
+ * Every element is hashed to a few 4-bit counters, sixteen to a long, which add raises and remove lowers with a
+ * compare-and-set on the word they share, so elements can be taken out again. A counter that reaches its maximum stays
+ * there for good, since it can no longer tell how many elements it stands for; it only makes the filter a little less
+ * sharp, never wrong.
+ * Elements that compare equal have to have equal hash codes, or one could be let through for the other.
+ * With ten counters per expected element and seven hashes, about one in a hundred absent elements gets through.
+ */
+class CountingBloomFilter<E> {
+    private static final int COUNTERS_PER_ELEMENT = 10;
+    private static final int HASHES = 7;
+    private static final int COUNTER_BITS = 4;
+    private static final long COUNTER_MASK = (1L << COUNTER_BITS) - 1;
+    private static final int COUNTERS_PER_WORD = Long.SIZE / COUNTER_BITS;
+
+    private final AtomicLongArray words;
+    private final int counterMask;
+
+    /* Outcomes of the lookups the owner reports back: absent elements the filter turned away and those it let through. */
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder falsePositives = new LongAdder();
+
+    /***
+     * @param expectedElements how many elements the filter is sized for; more make it let through more absent ones
+     */
+    CountingBloomFilter(int expectedElements) {
+        if (expectedElements < 1)
+            throw new IllegalArgumentException("expectedElements must be positive");
+        long counters = Long.highestOneBit((long) expectedElements * COUNTERS_PER_ELEMENT - 1) << 1;
+        counters = Math.max(counters, COUNTERS_PER_WORD);
+        if (counters > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("expectedElements is too large: " + expectedElements);
+        words = new AtomicLongArray((int) (counters / COUNTERS_PER_WORD));
+        counterMask = (int) counters - 1;
+    }
+
+    void add(E element) {
+        long hash = hash(element);
+        for (int i = 0; i < HASHES; i++) {
+            step(counterIndex(hash, i), 1);
+        }
+    }
+
+    /***
+     * Takes out an element that was added before; removing one that was never added would make the filter wrong.
+     */
+    void remove(E element) {
+        long hash = hash(element);
+        for (int i = 0; i < HASHES; i++) {
+            step(counterIndex(hash, i), -1);
+        }
+    }
+
+    /***
+     * @return false if the element is certainly absent
+     */
+    boolean mightContain(E element) {
+        long hash = hash(element);
+        for (int i = 0; i < HASHES; i++) {
+            if (counter(counterIndex(hash, i)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    void recordRejected() {
+        rejected.increment();
+    }
+
+    void recordFalsePositive() {
+        falsePositives.increment();
+    }
+
+    /***
+     * @return the share of lookups for absent elements that the filter let through, 0 before there were any
+     */
+    double falsePositiveRate() {
+        long passed = falsePositives.sum();
+        long total = passed + rejected.sum();
+        return total == 0 ? 0 : (double) passed / total;
+    }
+
+    private int counter(int index) {
+        return (int) (words.get(index / COUNTERS_PER_WORD) >>> shift(index) & COUNTER_MASK);
+    }
+
+    /* Moves one counter up or down by one, leaving it alone once it has saturated. A counter at zero is not lowered any
+     * further, where it would borrow from its neighbour. */
+    private void step(int index, int delta) {
+        int word = index / COUNTERS_PER_WORD;
+        int shift = shift(index);
+        while (true) {
+            long current = words.get(word);
+            long counter = current >>> shift & COUNTER_MASK;
+            if (counter == COUNTER_MASK || counter == 0 && delta < 0)
+                return;
+            if (words.compareAndSet(word, current, current + ((long) delta << shift)))
+                return;
+        }
+    }
+
+    private static int shift(int index) {
+        return index % COUNTERS_PER_WORD * COUNTER_BITS;
+    }
+
+    /* Double hashing: the i-th counter is h1 + i * h2, with h2 odd so that the indices do not repeat early. */
+    private int counterIndex(long hash, int i) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        return (h1 + i * h2) & counterMask;
+    }
+
+    /* Spreads the 32 bits of hashCode over 64, so poor hash codes such as small Integers still land far apart. */
+    private static long hash(Object element) {
+        long h = element.hashCode() * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 32;
+        h *= 0xBF58476D1CE4E5B9L;
+        return h ^ h >>> 29;
+    }
+}
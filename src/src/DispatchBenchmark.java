@@ -0,0 +1,106 @@
+package src;
+
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/***
+ * Compares three ways of running many small tree operations concurrently: a new platform thread per operation, as
+ * Inserter and Remover do, an OperationDispatcher on its default executor (a virtual thread per operation where the
+ * JVM has them), and an OperationDispatcher on a fixed pool with one thread per core. Each run inserts the keys and
+ * then removes them again, and waits for every operation to finish before the clock stops.
+ * Usage: DispatchBenchmark [operations, default 20000] [rounds, default 3]
+ */
+public class DispatchBenchmark {
+
+    private interface Run {
+        void apply(ConcurrentBinarySearchTree<Integer> tree, int[] keys) throws InterruptedException;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int operationCount = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        Random random = new Random(42);
+        int[] keys = new int[operationCount / 2];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = random.nextInt();
+        }
+
+        ExecutorService probe = OperationDispatcher.newDefaultExecutor();
+        boolean virtual = CompletableFuture.supplyAsync(() -> isVirtual(Thread.currentThread()), probe).join();
+        probe.shutdown();
+        System.out.println(operationCount + " operations, " + Runtime.getRuntime().availableProcessors()
+                + " cores, default executor " + (virtual ? "uses virtual threads" : "is a fixed pool (no virtual threads in this JVM)"));
+        for (int round = 1; round <= rounds; round++) {
+            System.out.println("round " + round);
+            measure("thread per operation", keys, DispatchBenchmark::threadPerOperation);
+            measure("dispatcher, default", keys, DispatchBenchmark::defaultDispatcher);
+            measure("dispatcher, pool", keys, DispatchBenchmark::pooledDispatcher);
+        }
+    }
+
+    private static void measure(String name, int[] keys, Run run) throws InterruptedException {
+        ConcurrentBinarySearchTree<Integer> tree = new ConcurrentBinarySearchTree<>(false);
+        long start = System.nanoTime();
+        run.apply(tree, keys);
+        long nanos = System.nanoTime() - start;
+        if (!tree.isEmpty())
+            throw new IllegalStateException(name + " left " + tree.size() + " elements behind");
+        System.out.println(String.format("  %-22s %8.1f ms  %10.0f ops/s", name, nanos / 1e6, 2.0 * keys.length / (nanos / 1e9)));
+    }
+
+    private static void threadPerOperation(ConcurrentBinarySearchTree<Integer> tree, int[] keys) throws InterruptedException {
+        Thread[] threads = new Thread[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            threads[i] = new Inserter(tree, keys[i]);
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (int i = 0; i < keys.length; i++) {
+            threads[i] = new Remover(tree, keys[i]);
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    private static void defaultDispatcher(ConcurrentBinarySearchTree<Integer> tree, int[] keys) throws InterruptedException {
+        try (OperationDispatcher<Integer> dispatcher = new OperationDispatcher<>(tree)) {
+            insertThenRemove(dispatcher, keys);
+        }
+    }
+
+    private static void pooledDispatcher(ConcurrentBinarySearchTree<Integer> tree, int[] keys) throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try (OperationDispatcher<Integer> dispatcher = new OperationDispatcher<>(tree, pool)) {
+            insertThenRemove(dispatcher, keys);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static void insertThenRemove(OperationDispatcher<Integer> dispatcher, int[] keys) {
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            futures[i] = dispatcher.insertAsync(keys[i]);
+        }
+        CompletableFuture.allOf(futures).join();
+        for (int i = 0; i < keys.length; i++) {
+            futures[i] = dispatcher.removeAsync(keys[i]);
+        }
+        CompletableFuture.allOf(futures).join();
+    }
+
+    /* Thread.isVirtual only exists from Java 21 on. */
+    private static boolean isVirtual(Thread thread) {
+        try {
+            return (Boolean) Thread.class.getMethod("isVirtual").invoke(thread);
+        } catch (ReflectiveOperationException e) {
+            return false;
+        }
+    }
+}
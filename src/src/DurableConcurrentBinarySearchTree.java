@@ -0,0 +1,709 @@
+package src;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/***
+ * A ConcurrentBinarySearchTree kept on disk as a write-ahead log plus sorted snapshots, so that it can be opened again
+ * after a restart without replaying every insert it ever saw.
+ * Every insert and every remove that removed something is appended to the log, and the call returns once its record is
+ * on disk. Writers do not each force the log: the first writer to wait writes and forces everything appended so far in
+ * one go while the others wait for it, and whoever waits next does the same for whatever came in meanwhile, so the
+ * number of forces per second stays flat however many writers there are.
+ * A checkpoint starts a new log file and writes a snapshot of the tree as it was at that point, in ascending order,
+ * through memory mapped windows of the snapshot file. Once the snapshot is on disk the log files it covers are deleted.
+ * The checkpoints the size of the log calls for are taken by a daemon thread of their own, so no writer ever waits for
+ * a snapshot to be written.
+ * Opening the directory again loads the latest snapshot with bulkLoad, a single balanced build in one pass, and then
+ * replays only the log files written after it. A record cut off by a crash at the end of the last log is dropped.
+ * Elements that compare equal always go to the same lock stripe, so the log has the writes to any one element in the
+ * order the tree saw them; writes to elements that differ commute. Lookups read the tree directly and may see a write
+ * whose record is not on disk yet. Elements that compare equal must have equal hash codes.
+ * @param <E>
+ */
+public class DurableConcurrentBinarySearchTree<E extends Comparable<E>> implements AutoCloseable {
+    private static final int MAGIC = 0x43425354;
+    private static final int FORMAT_VERSION = 1;
+    private static final int SNAPSHOT_HEADER_BYTES = Integer.BYTES + Integer.BYTES + Long.BYTES;
+    private static final byte INSERT = 1;
+    private static final byte REMOVE = 2;
+    /* Length, operation and checksum around every element in the log. */
+    private static final int RECORD_OVERHEAD = Integer.BYTES + 1 + Integer.BYTES;
+    private static final int MAX_ELEMENT_BYTES = 1 << 16;
+    private static final long MAP_WINDOW = 1L << 30;
+    private static final int STRIPES = 64;
+    private static final long DEFAULT_CHECKPOINT_BYTES = 64L << 20;
+    private static final String LOG_PREFIX = "wal-";
+    private static final String LOG_SUFFIX = ".log";
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String SNAPSHOT_SUFFIX = ".dat";
+
+    private final Path directory;
+    private final ElementCodec<E> codec;
+    private final ConcurrentBinarySearchTree<E> tree;
+    private final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+    private final long checkpointBytes;
+    private final AtomicBoolean checkpointing = new AtomicBoolean();
+    private final Object checkpointLock = new Object();
+    private volatile boolean closed;
+
+    /* The thread taking the last checkpoint the log size called for, and how that checkpoint failed, if it did. */
+    private volatile Thread checkpointer;
+    private volatile IOException checkpointFailure;
+
+    /* The log. Everything below is guarded by logLock. Records are appended to pending; a flushing writer swaps it
+     * for spare, writes and forces it outside the lock and then moves durableLsn up to the last record it held. */
+    private final Object logLock = new Object();
+    private ByteBuffer pending = ByteBuffer.allocate(1 << 16);
+    private ByteBuffer spare = ByteBuffer.allocate(1 << 16);
+    private final CRC32 checksum = new CRC32();
+    private FileChannel log;
+    private long segment;
+    private volatile long segmentBytes;
+    private long appendedLsn;
+    private long durableLsn;
+    private boolean flushing;
+    private IOException failure;
+
+    private DurableConcurrentBinarySearchTree(Path directory, ElementCodec<E> codec, ConcurrentBinarySearchTree<E> tree, long checkpointBytes) {
+        this.directory = directory;
+        this.codec = codec;
+        this.tree = tree;
+        this.checkpointBytes = checkpointBytes;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+    }
+
+    /***
+     * Opens the tree kept in the directory, or a new empty one if there is none, into a quiet tree without subtree
+     * counts, and checkpoints every 64 MB of log.
+     */
+    public static <E extends Comparable<E>> DurableConcurrentBinarySearchTree<E> open(Path directory, ElementCodec<E> codec)
+            throws IOException, InterruptedException {
+        return open(directory, codec, new ConcurrentBinarySearchTree<E>(false), DEFAULT_CHECKPOINT_BYTES);
+    }
+
+    /***
+     * @param tree an empty tree, made with whatever options it should have, to load into
+     * @param checkpointBytes how much log to write before a checkpoint is taken in the background; 0 leaves
+     *                        checkpoints to the caller
+     */
+    public static <E extends Comparable<E>> DurableConcurrentBinarySearchTree<E> open(Path directory, ElementCodec<E> codec,
+            ConcurrentBinarySearchTree<E> tree, long checkpointBytes) throws IOException, InterruptedException {
+        if (!tree.isEmpty())
+            throw new IllegalArgumentException("the tree to load into must be empty");
+        if (checkpointBytes < 0)
+            throw new IllegalArgumentException("checkpointBytes must not be negative");
+        Files.createDirectories(directory);
+        DurableConcurrentBinarySearchTree<E> durable = new DurableConcurrentBinarySearchTree<>(directory, codec, tree, checkpointBytes);
+        durable.recover();
+        return durable;
+    }
+
+    /***
+     * The tree itself, for lookups, iteration and snapshots. Writes made to it directly are not logged.
+     */
+    public ConcurrentBinarySearchTree<E> getTree() {
+        return tree;
+    }
+
+    public boolean contains(E element) {
+        return tree.contains(element);
+    }
+
+    /***
+     * Inserts the element and returns once the insert is in the log on disk.
+     * @throws IOException if the log could not be written; the log then takes no more writes. An insert that found the
+     *                     log failed already leaves the tree as it was. One whose record was appended, but lost with
+     *                     the write that failed, stays in the tree, and is only there after a restart if enough of that
+     *                     write reached the disk.
+     */
+    public void insert(E element) throws IOException, InterruptedException {
+        checkSize(element);
+        ReentrantLock stripe = stripeFor(element);
+        long lsn;
+        stripe.lock();
+        try {
+            ensureOpen();
+            tree.insert(element);
+            try {
+                lsn = append(INSERT, element);
+            } catch (IOException e) {
+                undo(INSERT, element);
+                throw e;
+            }
+        } finally {
+            stripe.unlock();
+        }
+        awaitDurable(lsn);
+        maybeCheckpoint();
+    }
+
+    /***
+     * Removes one element equal to the given one and returns once the remove is in the log on disk. A remove that finds
+     * nothing still waits for the writes logged before it, so its answer never rests on a write that could be lost.
+     * @return true if an element equal to the given one was found and removed
+     * @throws IOException if the log could not be written; the log then takes no more writes, and the element is put
+     *                     back or not the way insert describes
+     */
+    public boolean remove(E element) throws IOException, InterruptedException {
+        ReentrantLock stripe = stripeFor(element);
+        long lsn;
+        boolean removed;
+        stripe.lock();
+        try {
+            ensureOpen();
+            removed = tree.remove(element);
+            if (removed) {
+                try {
+                    lsn = append(REMOVE, element);
+                } catch (IOException e) {
+                    undo(REMOVE, element);
+                    throw e;
+                }
+            } else {
+                synchronized (logLock) {
+                    lsn = appendedLsn;
+                }
+            }
+        } finally {
+            stripe.unlock();
+        }
+        awaitDurable(lsn);
+        maybeCheckpoint();
+        return removed;
+    }
+
+    /***
+     * Inserts every element of the batch with ConcurrentBinarySearchTree.insertAll and logs them all before returning.
+     * Holds every lock stripe meanwhile, so it is meant for loading rather than for mixing with single writes.
+     * @throws IOException if the log could not be written, with the whole batch put back or not the way insert
+     *                     describes
+     */
+    public void insertAll(Collection<? extends E> batch) throws IOException {
+        for (E element : batch) {
+            checkSize(element);
+        }
+        long lsn = 0;
+        lockAll();
+        try {
+            ensureOpen();
+            tree.insertAll(batch);
+            // the batch goes into the log whole or, if the log failed meanwhile, not at all
+            synchronized (logLock) {
+                try {
+                    for (E element : batch) {
+                        lsn = append(INSERT, element);
+                    }
+                } catch (IOException e) {
+                    tree.removeAll(batch);
+                    throw e;
+                }
+            }
+        } finally {
+            unlockAll();
+        }
+        awaitDurable(lsn);
+        maybeCheckpoint();
+    }
+
+    /***
+     * Starts a new log file, writes a snapshot of the tree as of that moment and then deletes the older log files and
+     * snapshots it replaces. Writers are only held back while the log is switched over and the tree's snapshot is
+     * taken, which takes constant time; the snapshot is written out while they carry on, copying the nodes they change
+     * as any snapshot of the tree makes them do.
+     */
+    public void checkpoint() throws IOException {
+        synchronized (checkpointLock) {
+            long covered;
+            ConcurrentBinarySearchTree<E>.Snapshot snapshot;
+            lockAll();
+            try {
+                ensureOpen();
+                synchronized (logLock) {
+                    covered = segment;
+                    flushAll();
+                    log.close();
+                    openSegment(covered + 1);
+                }
+                snapshot = tree.snapshot();
+            } finally {
+                unlockAll();
+            }
+            writeSnapshot(snapshot, covered);
+            deleteUpTo(covered);
+        }
+    }
+
+    /***
+     * Waits for a checkpoint running in the background, forces whatever is still pending to disk and closes the log.
+     * The tree stays readable.
+     * @throws IOException if the log could not be written, or the last checkpoint taken in the background failed; the
+     *                     log files it would have replaced are still there then, so nothing is lost
+     */
+    @Override
+    public void close() throws IOException {
+        Thread running = checkpointer;
+        if (running != null) {
+            boolean interrupted = false;
+            while (running.isAlive()) {
+                try {
+                    running.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+        synchronized (checkpointLock) {
+            lockAll();
+            try {
+                if (closed)
+                    return;
+                closed = true;
+                synchronized (logLock) {
+                    try {
+                        flushAll();
+                    } finally {
+                        log.close();
+                    }
+                }
+            } finally {
+                unlockAll();
+            }
+        }
+        IOException failed = checkpointFailure;
+        if (failed != null)
+            throw failed;
+    }
+
+    // log support sub-methods
+
+    /***
+     * Appends one record to the pending buffer; the caller holds the element's stripe.
+     * @throws IOException if the log has failed, so that the record would never reach the disk
+     */
+    private long append(byte operation, E element) throws IOException {
+        int size = codec.sizeOf(element);
+        synchronized (logLock) {
+            if (failure != null)
+                throw failure;
+            if (pending.remaining() < size + RECORD_OVERHEAD) {
+                ByteBuffer larger = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + size + RECORD_OVERHEAD));
+                pending.flip();
+                larger.put(pending);
+                pending = larger;
+            }
+            pending.putInt(size + 1);
+            int start = pending.position();
+            pending.put(operation);
+            codec.write(element, pending);
+            if (pending.position() - start != size + 1)
+                throw new IllegalStateException("codec wrote " + (pending.position() - start - 1) + " bytes for an element of " + size);
+            checksum.reset();
+            checksum.update(pending.array(), start, size + 1);
+            pending.putInt((int) checksum.getValue());
+            segmentBytes += size + RECORD_OVERHEAD;
+            return ++appendedLsn;
+        }
+    }
+
+    /***
+     * Waits until the record with the given number is on disk, writing and forcing the log itself if nobody else is.
+     * The wait is not cut short by an interrupt, since the write it waits for has been made already; the interrupt is
+     * set again on the way out.
+     */
+    private void awaitDurable(long lsn) throws IOException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                ByteBuffer batch;
+                long batchLsn;
+                FileChannel target;
+                synchronized (logLock) {
+                    while (durableLsn < lsn && flushing && failure == null) {
+                        try {
+                            logLock.wait();
+                        } catch (InterruptedException e) {
+                            interrupted = true;
+                        }
+                    }
+                    if (failure != null)
+                        throw failure;
+                    if (durableLsn >= lsn)
+                        return;
+                    flushing = true;
+                    batch = pending;
+                    pending = spare;
+                    spare = null;
+                    batchLsn = appendedLsn;
+                    target = log;
+                }
+                IOException error = null;
+                try {
+                    batch.flip();
+                    while (batch.hasRemaining()) {
+                        target.write(batch);
+                    }
+                    target.force(false);
+                } catch (IOException e) {
+                    error = e;
+                }
+                synchronized (logLock) {
+                    flushing = false;
+                    batch.clear();
+                    spare = batch;
+                    if (error == null)
+                        durableLsn = batchLsn;
+                    else
+                        failure = error;
+                    logLock.notifyAll();
+                }
+            }
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    /* Writes and forces everything pending, once no flush is running; the caller holds logLock and every stripe. */
+    private void flushAll() throws IOException {
+        boolean interrupted = false;
+        while (flushing && failure == null) {
+            try {
+                logLock.wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        if (failure != null)
+            throw failure;
+        try {
+            pending.flip();
+            while (pending.hasRemaining()) {
+                log.write(pending);
+            }
+            pending.clear();
+            log.force(false);
+        } catch (IOException e) {
+            failure = e;
+            throw e;
+        }
+        durableLsn = appendedLsn;
+        logLock.notifyAll();
+    }
+
+    private void openSegment(long number) throws IOException {
+        log = FileChannel.open(directory.resolve(name(LOG_PREFIX, number, LOG_SUFFIX)),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        segment = number;
+        segmentBytes = 0;
+        forceDirectory();
+    }
+
+    /***
+     * Takes back a change to the tree whose record never made it into the log. The caller still holds the element's
+     * stripe, so no other logged write has touched an equal element since. An interrupt does not stop it; it is set
+     * again on the way out.
+     */
+    private void undo(byte operation, E element) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                if (operation == INSERT)
+                    tree.remove(element);
+                else
+                    tree.insert(element);
+                break;
+            } catch (InterruptedException e) {
+                // the tree gives up before it changes anything, so trying again is safe
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /* Hands a checkpoint to a thread of its own once the log has grown past checkpointBytes, unless one is running. */
+    private void maybeCheckpoint() {
+        if (checkpointBytes == 0 || segmentBytes < checkpointBytes || closed || !checkpointing.compareAndSet(false, true))
+            return;
+        Thread thread = new Thread(this::checkpointInBackground, "tree-checkpoint");
+        thread.setDaemon(true);
+        checkpointer = thread;
+        thread.start();
+    }
+
+    private void checkpointInBackground() {
+        try {
+            if (segmentBytes >= checkpointBytes && !closed) {
+                checkpoint();
+                checkpointFailure = null;
+            }
+        } catch (IOException e) {
+            checkpointFailure = e;
+        } catch (IllegalStateException e) {
+            // closed meanwhile; close flushed the log, which is all a checkpoint would have saved
+        } finally {
+            checkpointing.set(false);
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed)
+            throw new IllegalStateException("the durable tree is closed");
+        synchronized (logLock) {
+            if (failure != null)
+                throw failure;
+        }
+    }
+
+    private void checkSize(E element) {
+        if (codec.sizeOf(element) > MAX_ELEMENT_BYTES)
+            throw new IllegalArgumentException("elements may take at most " + MAX_ELEMENT_BYTES + " bytes: " + element);
+    }
+
+    private ReentrantLock stripeFor(E element) {
+        int hash = element.hashCode() * 0x9E3779B9;
+        return stripes[hash >>> 26];
+    }
+
+    private void lockAll() {
+        for (ReentrantLock stripe : stripes) {
+            stripe.lock();
+        }
+    }
+
+    private void unlockAll() {
+        for (int i = STRIPES - 1; i >= 0; i--) {
+            stripes[i].unlock();
+        }
+    }
+
+    // snapshot support sub-methods
+
+    /* Writes the snapshot to a temporary file through memory mapped windows and moves it into place once it is on
+     * disk, so a crash half way leaves the previous snapshot as the latest one. */
+    private void writeSnapshot(ConcurrentBinarySearchTree<E>.Snapshot snapshot, long covered) throws IOException {
+        long count = 0;
+        long bytes = SNAPSHOT_HEADER_BYTES;
+        for (E element : snapshot) {
+            count++;
+            bytes += codec.sizeOf(element);
+        }
+        Path temporary = directory.resolve(name(SNAPSHOT_PREFIX, covered, SNAPSHOT_SUFFIX + ".tmp"));
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long windowStart = 0;
+            MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.min(MAP_WINDOW, bytes));
+            window.putInt(MAGIC);
+            window.putInt(FORMAT_VERSION);
+            window.putLong(count);
+            for (E element : snapshot) {
+                int size = codec.sizeOf(element);
+                if (window.remaining() < size) {
+                    window.force();
+                    windowStart += window.position();
+                    window = channel.map(FileChannel.MapMode.READ_WRITE, windowStart, Math.min(MAP_WINDOW, bytes - windowStart));
+                }
+                codec.write(element, window);
+            }
+            window.force();
+            channel.force(true);
+        }
+        Files.move(temporary, directory.resolve(name(SNAPSHOT_PREFIX, covered, SNAPSHOT_SUFFIX)), StandardCopyOption.ATOMIC_MOVE);
+        forceDirectory();
+    }
+
+    /* Deletes the snapshots and log files that the snapshot covering the given log file replaces. */
+    private void deleteUpTo(long covered) throws IOException {
+        for (Path path : list(LOG_PREFIX, LOG_SUFFIX).headMap(covered, true).values()) {
+            Files.deleteIfExists(path);
+        }
+        for (Path path : list(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX).headMap(covered, false).values()) {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    // recovery support sub-methods
+
+    private void recover() throws IOException, InterruptedException {
+        TreeMap<Long, Path> snapshots = list(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+        long covered = 0;
+        if (!snapshots.isEmpty()) {
+            covered = snapshots.lastKey();
+            loadSnapshot(snapshots.lastEntry().getValue());
+        }
+        TreeMap<Long, Path> logs = list(LOG_PREFIX, LOG_SUFFIX);
+        long last = covered;
+        for (Map.Entry<Long, Path> entry : logs.tailMap(covered, false).entrySet()) {
+            replay(entry.getValue(), entry.getKey() == logs.lastKey());
+            last = entry.getKey();
+        }
+        openSegment(last + 1);
+    }
+
+    private void loadSnapshot(Path path) throws IOException, InterruptedException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            if (fileSize < SNAPSHOT_HEADER_BYTES)
+                throw new IOException("snapshot too short: " + path);
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, SNAPSHOT_HEADER_BYTES);
+            if (header.getInt() != MAGIC || header.getInt() != FORMAT_VERSION)
+                throw new IOException("not a snapshot of this format: " + path);
+            long count = header.getLong();
+            if (count > Integer.MAX_VALUE)
+                throw new IOException("snapshot holds more elements than a tree can bulk load: " + count);
+            tree.bulkLoad(new SnapshotElements(channel, fileSize, (int) count));
+        }
+    }
+
+    /* The elements of a snapshot file, decoded straight from memory mapped windows of it each time they are iterated
+     * over, so loading never holds them all in a list. */
+    private final class SnapshotElements extends AbstractCollection<E> {
+        private final FileChannel channel;
+        private final long fileSize;
+        private final int count;
+
+        private SnapshotElements(FileChannel channel, long fileSize, int count) {
+            this.channel = channel;
+            this.fileSize = fileSize;
+            this.count = count;
+        }
+
+        @Override
+        public int size() {
+            return count;
+        }
+
+        @Override
+        public Iterator<E> iterator() {
+            return new Iterator<E>() {
+                private long windowStart = SNAPSHOT_HEADER_BYTES;
+                private MappedByteBuffer window;
+                private int read;
+
+                @Override
+                public boolean hasNext() {
+                    return read < count;
+                }
+
+                @Override
+                public E next() {
+                    if (!hasNext())
+                        throw new NoSuchElementException();
+                    try {
+                        // a new window starts at the next element whenever one might not fit in what is left of this one
+                        if (window == null || window.remaining() < MAX_ELEMENT_BYTES && windowStart + window.limit() < fileSize) {
+                            if (window != null)
+                                windowStart += window.position();
+                            window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, Math.min(MAP_WINDOW, fileSize - windowStart));
+                        }
+                        read++;
+                        return codec.read(window);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+            };
+        }
+    }
+
+    /***
+     * Applies the records of one log file to the tree. A torn or corrupt record at the end of the last file is where a
+     * crash cut the log short, and the file is cut back to the last whole record; anywhere else it is an error.
+     */
+    private void replay(Path path, boolean lastFile) throws IOException, InterruptedException {
+        long good = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16))) {
+            CRC32 crc = new CRC32();
+            while (true) {
+                int length;
+                byte[] record;
+                try {
+                    length = in.readInt();
+                    if (length < 1 || length > MAX_ELEMENT_BYTES + 1)
+                        break;
+                    record = new byte[length];
+                    in.readFully(record);
+                    crc.reset();
+                    crc.update(record, 0, length);
+                    if (in.readInt() != (int) crc.getValue())
+                        break;
+                } catch (EOFException e) {
+                    break;
+                }
+                ByteBuffer buffer = ByteBuffer.wrap(record, 1, length - 1);
+                E element = codec.read(buffer);
+                if (record[0] == INSERT)
+                    tree.insert(element);
+                else if (record[0] == REMOVE)
+                    tree.remove(element);
+                else
+                    break;
+                good += Integer.BYTES + length + Integer.BYTES;
+            }
+        }
+        if (good < Files.size(path)) {
+            if (!lastFile)
+                throw new IOException("corrupt record at offset " + good + " of " + path);
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                channel.truncate(good);
+                channel.force(true);
+            }
+        }
+    }
+
+    /* Files in the directory with the given prefix and suffix, by the number between them. */
+    private TreeMap<Long, Path> list(String prefix, String suffix) throws IOException {
+        TreeMap<Long, Path> files = new TreeMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, prefix + "*" + suffix)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                try {
+                    files.put(Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length())), path);
+                } catch (NumberFormatException e) {
+                    // not one of ours
+                }
+            }
+        }
+        return files;
+    }
+
+    private static String name(String prefix, long number, String suffix) {
+        return String.format("%s%016d%s", prefix, number, suffix);
+    }
+
+    /* Makes a file created, renamed or deleted in the directory stick; not every platform can force a directory. */
+    private void forceDirectory() {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // the entries still get to disk with the next sync of the file system
+        }
+    }
+}
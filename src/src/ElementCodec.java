@@ -0,0 +1,47 @@
+package src;
+
+import java.nio.ByteBuffer;
+
+/***
+ * Turns elements into bytes and back, for the log and snapshot files of a DurableConcurrentBinarySearchTree. An element
+ * has to come back equal to the one written, and read must take exactly the bytes write put.
+ * @param <E>
+ */
+public interface ElementCodec<E> {
+    ElementCodec<Integer> INTEGER = new ElementCodec<Integer>() {
+        public int sizeOf(Integer element) {
+            return Integer.BYTES;
+        }
+
+        public void write(Integer element, ByteBuffer buffer) {
+            buffer.putInt(element);
+        }
+
+        public Integer read(ByteBuffer buffer) {
+            return buffer.getInt();
+        }
+    };
+
+    ElementCodec<Long> LONG = new ElementCodec<Long>() {
+        public int sizeOf(Long element) {
+            return Long.BYTES;
+        }
+
+        public void write(Long element, ByteBuffer buffer) {
+            buffer.putLong(element);
+        }
+
+        public Long read(ByteBuffer buffer) {
+            return buffer.getLong();
+        }
+    };
+
+    /***
+     * @return how many bytes write puts for the element
+     */
+    int sizeOf(E element);
+
+    void write(E element, ByteBuffer buffer);
+
+    E read(ByteBuffer buffer);
+}
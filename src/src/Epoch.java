@@ -0,0 +1,60 @@
+package src;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/***
+ * Lets writers run freely while allowing a rare exclusive action, such as taking a snapshot, that has to see no writer
+ * half way through an operation. A writer brackets each operation with enter and exit; quiesce closes the gate to new
+ * writers, waits for the ones already inside to leave, runs the action and opens the gate again.
+ * Entering and leaving only bump striped counters, so writers on different cores do not contend on a shared word.
+ * Calls do not nest: a writer that is inside must not enter again, or a concurrent quiesce would wait on it forever.
+ */
+class Epoch {
+    private static final int SPINS_BEFORE_YIELD = 64;
+
+    private final LongAdder entered = new LongAdder();
+    private final LongAdder exited = new LongAdder();
+    private volatile boolean closed;
+
+    void enter() {
+        while (true) {
+            entered.increment();
+            if (!closed)
+                return;
+            // a quiesce is running; step back out so it can finish, and wait for the gate to open
+            exited.increment();
+            int spins = 0;
+            while (closed) {
+                if (++spins < SPINS_BEFORE_YIELD)
+                    Thread.onSpinWait();
+                else
+                    Thread.yield();
+            }
+        }
+    }
+
+    void exit() {
+        exited.increment();
+    }
+
+    /***
+     * Runs the action while no writer is inside. Concurrent calls are run one after the other.
+     */
+    synchronized void quiesce(Runnable action) {
+        closed = true;
+        try {
+            int spins = 0;
+            // exits are summed before entries: a writer that enters and leaves between the two sums then only makes the
+            // entries larger, so equal sums really mean that everybody who got in has left
+            while (exited.sum() != entered.sum()) {
+                if (++spins < SPINS_BEFORE_YIELD)
+                    Thread.onSpinWait();
+                else
+                    Thread.yield();
+            }
+            action.run();
+        } finally {
+            closed = false;
+        }
+    }
+}
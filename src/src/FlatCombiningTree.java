@@ -0,0 +1,211 @@
+package src;
+
+import java.util.ArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/***
+ * Flat combining front end for a ConcurrentBinarySearchTree. Instead of every thread walking down from the root on its
+ * own, a thread publishes its insert or remove in a slot of a shared array and then either waits for it to be done or,
+ * if nobody else is combining, becomes the combiner: it collects every published operation, sorts them and applies
+ * all the inserts with one insertAll and all the removes with one batch remove, each a single walk down the tree for
+ * the whole batch. On small trees, where every operation goes through the same few nodes at the top, this turns many
+ * threads fighting over those nodes into one thread passing them once per batch.
+ * Slots are claimed per operation, not per thread, so threads that come and go leave nothing behind. When every slot
+ * is taken the operation goes straight to the tree. Lookups always go straight to the tree, since they take no locks.
+ * Operations published in the same batch overlap in time, so applying the inserts before the removes is one valid order
+ * for them; a thread never has two operations in one batch.
+ * If applying a batch throws, for example because an element cannot be compared, every operation in that batch fails
+ * with the same exception, thrown in the thread that published it; the batch may have been applied in part. The other
+ * batches of the same round are still applied.
+ * With the tree's metrics enabled, a combined operation is recorded as one insert or remove, timed from publishing it
+ * to reading its result, since the tree does not time the elements of a batch one by one.
+ * @param <E>
+ */
+public class FlatCombiningTree<E extends Comparable<E>> {
+    private static final int SPINS_BEFORE_YIELD = 64;
+
+    /* Slot states. A thread claims a free slot, fills it in and publishes it; the combiner marks it done and the thread
+     * frees it again once it has read the result. */
+    private static final int FREE = 0;
+    private static final int CLAIMED = 1;
+    private static final int PUBLISHED = 2;
+    private static final int DONE = 3;
+
+    /* How often the combiner looks over the slots again for operations that came in while it was applying a batch. */
+    private static final int COMBINING_PASSES = 3;
+
+    private final ConcurrentBinarySearchTree<E> tree;
+    private final AtomicBoolean combining = new AtomicBoolean();
+    private final AtomicIntegerArray states;
+    private final Object[] elements;
+    private final boolean[] inserts;
+    private final boolean[] results;
+    private final Throwable[] failures;
+
+    public FlatCombiningTree(ConcurrentBinarySearchTree<E> tree) {
+        this(tree, 2 * Runtime.getRuntime().availableProcessors());
+    }
+
+    /***
+     * @param slots how many operations can be published at once
+     */
+    public FlatCombiningTree(ConcurrentBinarySearchTree<E> tree, int slots) {
+        if (slots < 1)
+            throw new IllegalArgumentException("slots must be positive");
+        this.tree = tree;
+        states = new AtomicIntegerArray(slots);
+        elements = new Object[slots];
+        inserts = new boolean[slots];
+        results = new boolean[slots];
+        failures = new Throwable[slots];
+    }
+
+    public void insert(E element) throws InterruptedException {
+        apply(element, true);
+    }
+
+    /***
+     * @return true if an element equal to the given one was found and removed
+     */
+    public boolean remove(E element) throws InterruptedException {
+        return apply(element, false);
+    }
+
+    public boolean contains(E element) {
+        return tree.contains(element);
+    }
+
+    public ConcurrentBinarySearchTree<E> getTree() {
+        return tree;
+    }
+
+    /* Publishes one operation and waits until some combiner, possibly this thread, has applied it. A published operation
+     * will be applied whatever happens, so the wait is not cut short by an interrupt; that stays set for the caller. */
+    private boolean apply(E element, boolean insert) throws InterruptedException {
+        int slot = claimSlot();
+        if (slot < 0) {
+            if (!insert)
+                return tree.remove(element);
+            tree.insert(element);
+            return true;
+        }
+        TreeMetrics recorder = tree.getMetrics();
+        long start = recorder == null ? 0 : System.nanoTime();
+        // the plain writes are published by the volatile write of the state, and read after the combiner's volatile read
+        elements[slot] = element;
+        inserts[slot] = insert;
+        states.set(slot, PUBLISHED);
+        int spins = 0;
+        while (states.get(slot) != DONE) {
+            if (combining.compareAndSet(false, true)) {
+                try {
+                    combine();
+                } finally {
+                    combining.set(false);
+                }
+            } else if (++spins < SPINS_BEFORE_YIELD) {
+                Thread.onSpinWait();
+            } else {
+                Thread.yield();
+            }
+        }
+        boolean result = results[slot];
+        Throwable failure = failures[slot];
+        elements[slot] = null;
+        failures[slot] = null;
+        states.set(slot, FREE);
+        if (failure instanceof RuntimeException)
+            throw (RuntimeException) failure;
+        if (failure instanceof Error)
+            throw (Error) failure;
+        if (recorder != null) {
+            if (insert)
+                recorder.recordInsert(System.nanoTime() - start);
+            else
+                recorder.recordRemove(System.nanoTime() - start);
+        }
+        return result;
+    }
+
+    private int claimSlot() {
+        int slots = states.length();
+        int start = ThreadLocalRandom.current().nextInt(slots);
+        for (int i = 0; i < slots; i++) {
+            int slot = (start + i) % slots;
+            if (states.get(slot) == FREE && states.compareAndSet(slot, FREE, CLAIMED))
+                return slot;
+        }
+        return -1;
+    }
+
+    /* Applies everything published, a few times over. Only ever run by the thread holding the combining flag. The tree's
+     * batch methods do not stop half way when interrupted, and a batch that throws is marked done with the failure, so
+     * the threads waiting on a batch are never left hanging. */
+    private void combine() {
+        ArrayList<Integer> insertSlots = new ArrayList<>();
+        ArrayList<Integer> removeSlots = new ArrayList<>();
+        for (int pass = 0; pass < COMBINING_PASSES; pass++) {
+            insertSlots.clear();
+            removeSlots.clear();
+            for (int slot = 0; slot < states.length(); slot++) {
+                if (states.get(slot) == PUBLISHED)
+                    (inserts[slot] ? insertSlots : removeSlots).add(slot);
+            }
+            if (insertSlots.isEmpty() && removeSlots.isEmpty())
+                break;
+            applyInserts(insertSlots);
+            applyRemoves(removeSlots);
+        }
+    }
+
+    private void applyInserts(ArrayList<Integer> slots) {
+        if (slots.isEmpty())
+            return;
+        ArrayList<E> batch = new ArrayList<>(slots.size());
+        for (int slot : slots) {
+            batch.add(elementAt(slot));
+        }
+        Throwable failure = null;
+        try {
+            tree.insertAll(batch);
+        } catch (RuntimeException | Error e) {
+            failure = e;
+        }
+        for (int slot : slots) {
+            results[slot] = failure == null;
+            failures[slot] = failure;
+            states.set(slot, DONE);
+        }
+    }
+
+    private void applyRemoves(ArrayList<Integer> slots) {
+        if (slots.isEmpty())
+            return;
+        boolean[] removed = new boolean[slots.size()];
+        Throwable failure = null;
+        try {
+            slots.sort((a, b) -> elementAt(a).compareTo(elementAt(b)));
+            @SuppressWarnings("unchecked")
+            E[] batch = (E[]) new Comparable<?>[slots.size()];
+            for (int i = 0; i < batch.length; i++) {
+                batch[i] = elementAt(slots.get(i));
+            }
+            tree.removeSorted(batch, removed);
+        } catch (RuntimeException | Error e) {
+            failure = e;
+        }
+        for (int i = 0; i < removed.length; i++) {
+            int slot = slots.get(i);
+            results[slot] = removed[i];
+            failures[slot] = failure;
+            states.set(slot, DONE);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private E elementAt(int slot) {
+        return (E) elements[slot];
+    }
+}
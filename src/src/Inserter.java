@@ -12,7 +12,8 @@ public class Inserter extends Thread {
 
     @Override
     public void run() {
-        System.out.println("Looking to insert " + writingData + " into tree");
+        if (treeToWrite.isVerbose())
+            System.out.println("Looking to insert " + writingData + " into tree");
         try {
             treeToWrite.insert(writingData);
         } catch (InterruptedException e) {
@@ -0,0 +1,464 @@
+package src;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/***
+ * Concurrent binary search tree of int keys that never boxes them.
+ * It works like ConcurrentBinarySearchTree, with optimistic lock coupling on a version per node, but a node is not an
+ * object: it is a slot number, and its key, its two child links and its version are four consecutive ints in a large
+ * int array. That is 16 bytes per key against well over 50 for a node object plus its Integer, everything a step of a
+ * search needs is on one cache line, and a comparison reads the key straight out of the array instead of following a
+ * pointer to it.
+ * Rep Invariant:
+ *  Keys in the left subtree of a slot are smaller than its key and keys in the right subtree are larger; there are no
+ *  duplicates. Slot 0 is a sentinel above the tree whose right child is the root, so 0 is also the "no child" link.
+ * Features:
+ *  Slots of removed keys go on a free list and are handed out again, so a reader may find itself on a slot that now
+ *  holds something else. Unlike the object tree, readers here therefore validate every step against the versions they
+ *  read, the same way writers do, and start over if anything they passed changed.
+ */
+public class IntConcurrentBinarySearchTree {
+    private static final VarHandle INTS = MethodHandles.arrayElementVarHandle(int[].class);
+    private static final int SPINS_BEFORE_YIELD = 64;
+
+    private static final int CHUNK_SHIFT = 12;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private static final int ROOT_HOLDER = 0;
+    private static final int NONE = 0;
+
+    /* Outcomes of one optimistic pass. */
+    private static final int DONE = 0;
+    private static final int NOT_FOUND = 1;
+    private static final int RETRY = 2;
+
+    /* Layout of a slot within its chunk. The version is even while nobody holds the slot and odd while a writer does,
+     * and it keeps counting when a slot is reused, so a version read before the slot was freed never matches again. */
+    private static final int SLOT_INTS = 4;
+    private static final int KEY = 0;
+    private static final int LEFT = 1;
+    private static final int RIGHT = 2;
+    private static final int VERSION = 3;
+
+    /* Each chunk holds CHUNK_SIZE slots. Chunks are never moved once created, only the directory pointing at them
+     * grows. */
+    private volatile int[][] chunks = new int[][]{new int[CHUNK_SIZE * SLOT_INTS]};
+    private final Object chunkLock = new Object();
+    private final AtomicInteger nextSlot = new AtomicInteger(ROOT_HOLDER + 1);
+    /* Head of the stack of freed slots, linked through their left child links. The upper half counts pops and pushes so
+     * a head that was popped and pushed back in between is not mistaken for an unchanged one. */
+    private final AtomicLong freeSlots = new AtomicLong(NONE);
+
+    public IntConcurrentBinarySearchTree() {
+    }
+
+    public boolean isEmpty() {
+        return child(ROOT_HOLDER, false) == NONE;
+    }
+
+    /***
+     * @param key the key to look for
+     * @return true if the key is in the tree
+     */
+    public boolean contains(int key) {
+        int result;
+        while ((result = containsOptimistically(key)) == RETRY) {
+            Thread.onSpinWait();
+        }
+        return result == DONE;
+    }
+
+    /***
+     * @param key the key to add
+     * @return false if the key was already in the tree
+     */
+    public boolean insert(int key) throws InterruptedException {
+        int newSlot = allocate(key);
+        int result = RETRY;
+        try {
+            while ((result = insertOptimistically(key, newSlot)) == RETRY) {
+                Thread.onSpinWait();
+            }
+        } finally {
+            // the slot is only kept once it is linked in, so also give it back when interrupted
+            if (result != DONE)
+                free(newSlot);
+        }
+        return result == DONE;
+    }
+
+    /***
+     * @param key the key to remove
+     * @return true if the key was found and removed
+     */
+    public boolean remove(int key) throws InterruptedException {
+        int result;
+        while ((result = removeOptimistically(key)) == RETRY) {
+            Thread.onSpinWait();
+        }
+        return result == DONE;
+    }
+
+    // slot access
+
+    private int[] chunk(int slot) {
+        return chunks[slot >>> CHUNK_SHIFT];
+    }
+
+    private static int offset(int slot, int field) {
+        return (slot & CHUNK_MASK) * SLOT_INTS + field;
+    }
+
+    private int key(int slot) {
+        return (int) INTS.getVolatile(chunk(slot), offset(slot, KEY));
+    }
+
+    private void setKey(int slot, int key) {
+        INTS.setVolatile(chunk(slot), offset(slot, KEY), key);
+    }
+
+    private int child(int slot, boolean left) {
+        return (int) INTS.getVolatile(chunk(slot), offset(slot, left ? LEFT : RIGHT));
+    }
+
+    private void setChild(int slot, boolean left, int child) {
+        INTS.setVolatile(chunk(slot), offset(slot, left ? LEFT : RIGHT), child);
+    }
+
+    private int version(int slot) {
+        return (int) INTS.getVolatile(chunk(slot), offset(slot, VERSION));
+    }
+
+    /* Locks the slot, but only if it is still at the version the caller validated its reads against. */
+    private boolean grab(int slot, int expectedVersion) {
+        return (expectedVersion & 1) == 0 && INTS.compareAndSet(chunk(slot), offset(slot, VERSION), expectedVersion, expectedVersion + 1);
+    }
+
+    private void letGo(int slot) {
+        INTS.getAndAdd(chunk(slot), offset(slot, VERSION), 1);
+    }
+
+    /* Waits, for writers, until nobody holds the slot and returns the even version seen. */
+    private int awaitUnlocked(int slot) throws InterruptedException {
+        int spins = 0;
+        int version;
+        while (((version = version(slot)) & 1) != 0) {
+            if (++spins < SPINS_BEFORE_YIELD) {
+                Thread.onSpinWait();
+            } else {
+                if (Thread.interrupted())
+                    throw new InterruptedException();
+                Thread.yield();
+            }
+        }
+        return version;
+    }
+
+    /* Same for readers, which are not interruptible. */
+    private int stableVersion(int slot) {
+        int spins = 0;
+        int version;
+        while (((version = version(slot)) & 1) != 0) {
+            if (++spins < SPINS_BEFORE_YIELD)
+                Thread.onSpinWait();
+            else
+                Thread.yield();
+        }
+        return version;
+    }
+
+    // slot allocation
+
+    /* Hands out a slot with no children, from the free list if there is one. */
+    private int allocate(int key) {
+        int slot = NONE;
+        while (true) {
+            long head = freeSlots.get();
+            int candidate = (int) head;
+            if (candidate == NONE)
+                break;
+            if (freeSlots.compareAndSet(head, nextStamp(head) | (child(candidate, true) & 0xFFFFFFFFL))) {
+                slot = candidate;
+                break;
+            }
+        }
+        if (slot == NONE) {
+            slot = nextSlot.getAndIncrement();
+            if (slot < 0)
+                throw new IllegalStateException("tree is full");
+            ensureChunk(slot);
+        }
+        setKey(slot, key);
+        setChild(slot, true, NONE);
+        setChild(slot, false, NONE);
+        return slot;
+    }
+
+    /* The slot must be unlinked and let go of already, so its version has moved past anything a reader saw. */
+    private void free(int slot) {
+        while (true) {
+            long head = freeSlots.get();
+            setChild(slot, true, (int) head);
+            if (freeSlots.compareAndSet(head, nextStamp(head) | slot))
+                return;
+        }
+    }
+
+    private static long nextStamp(long head) {
+        return ((head >>> 32) + 1) << 32;
+    }
+
+    private void ensureChunk(int slot) {
+        int chunkIndex = slot >>> CHUNK_SHIFT;
+        int[][] current = chunks;
+        if (chunkIndex < current.length && current[chunkIndex] != null)
+            return;
+        synchronized (chunkLock) {
+            current = chunks;
+            if (chunkIndex >= current.length) {
+                int[][] grown = new int[Math.max(current.length * 2, chunkIndex + 1)][];
+                System.arraycopy(current, 0, grown, 0, current.length);
+                current = grown;
+            }
+            if (current[chunkIndex] == null)
+                current[chunkIndex] = new int[CHUNK_SIZE * SLOT_INTS];
+            chunks = current;
+        }
+    }
+
+    // search support sub-methods
+
+    /***
+     * One optimistic descent. Every child is only trusted once its parent is known to still be at the version read
+     * before the child link, and a key only once its own slot is. A miss also needs the slots we last turned left and
+     * right at to be unchanged, since a relocating remove may have moved the key up past us.
+     */
+    private int containsOptimistically(int key) {
+        int parent = ROOT_HOLDER;
+        int parentVersion = stableVersion(parent);
+        int lowerBound = NONE, upperBound = NONE;
+        int lowerBoundVersion = 0, upperBoundVersion = 0;
+        boolean goLeft = false;
+        while (true) {
+            int current = child(parent, goLeft);
+            if (current == NONE) {
+                if (version(parent) != parentVersion || !unchanged(lowerBound, lowerBoundVersion, NONE) || !unchanged(upperBound, upperBoundVersion, NONE))
+                    return RETRY;
+                return NOT_FOUND;
+            }
+            int currentVersion = stableVersion(current);
+            if (version(parent) != parentVersion)
+                return RETRY;
+            int currentKey = key(current);
+            if (version(current) != currentVersion)
+                return RETRY;
+            if (key == currentKey)
+                return DONE;
+            goLeft = key < currentKey;
+            if (goLeft) {
+                upperBound = current;
+                upperBoundVersion = currentVersion;
+            } else {
+                lowerBound = current;
+                lowerBoundVersion = currentVersion;
+            }
+            parent = current;
+            parentVersion = currentVersion;
+        }
+    }
+
+    /* True if a bounding slot we passed still has the version we saw, or is the slot the caller now holds itself. */
+    private boolean unchanged(int boundSlot, int boundVersion, int heldSlot) {
+        return boundSlot == NONE || boundSlot == heldSlot || version(boundSlot) == boundVersion;
+    }
+
+    // insert support sub-methods
+
+    /***
+     * One optimistic descent, as in ConcurrentBinarySearchTree. The new slot is not linked anywhere yet, so if the key
+     * turns out to be present the caller can put it straight back on the free list.
+     */
+    private int insertOptimistically(int key, int newSlot) throws InterruptedException {
+        int parent = ROOT_HOLDER;
+        int parentVersion = awaitUnlocked(parent);
+        int lowerBound = NONE, upperBound = NONE;
+        int lowerBoundVersion = 0, upperBoundVersion = 0;
+        boolean goLeft = false;
+        while (true) {
+            int current = child(parent, goLeft);
+            if (current == NONE) {
+                if (!grab(parent, parentVersion))
+                    return RETRY;
+                if (!unchanged(lowerBound, lowerBoundVersion, parent) || !unchanged(upperBound, upperBoundVersion, parent)) {
+                    letGo(parent);
+                    return RETRY;
+                }
+                setChild(parent, goLeft, newSlot);
+                letGo(parent);
+                return DONE;
+            }
+            int currentVersion = awaitUnlocked(current);
+            if (version(parent) != parentVersion)
+                return RETRY;
+            int currentKey = key(current);
+            if (key == currentKey) {
+                if (version(current) != currentVersion)
+                    return RETRY;
+                return NOT_FOUND;
+            }
+            goLeft = key < currentKey;
+            if (goLeft) {
+                upperBound = current;
+                upperBoundVersion = currentVersion;
+            } else {
+                lowerBound = current;
+                lowerBoundVersion = currentVersion;
+            }
+            parent = current;
+            parentVersion = currentVersion;
+        }
+    }
+
+    // remove support sub-methods
+
+    private int removeOptimistically(int key) throws InterruptedException {
+        int parent = ROOT_HOLDER;
+        int parentVersion = awaitUnlocked(parent);
+        int lowerBound = NONE, upperBound = NONE;
+        int lowerBoundVersion = 0, upperBoundVersion = 0;
+        boolean goLeft = false;
+        while (true) {
+            int current = child(parent, goLeft);
+            if (current == NONE) {
+                if (version(parent) != parentVersion || !unchanged(lowerBound, lowerBoundVersion, NONE) || !unchanged(upperBound, upperBoundVersion, NONE))
+                    return RETRY;
+                return NOT_FOUND;
+            }
+            int currentVersion = awaitUnlocked(current);
+            if (version(parent) != parentVersion)
+                return RETRY;
+            int currentKey = key(current);
+            if (key == currentKey)
+                return compareForRemove(current, currentVersion, parent, parentVersion);
+            goLeft = key < currentKey;
+            if (goLeft) {
+                upperBound = current;
+                upperBoundVersion = currentVersion;
+            } else {
+                lowerBound = current;
+                lowerBoundVersion = currentVersion;
+            }
+            parent = current;
+            parentVersion = currentVersion;
+        }
+    }
+
+    /***
+     * Removes the slot we found, provided neither it nor (for a leaf) its parent moved since we validated them. A slot
+     * with children takes over the key of its in order successor or predecessor, and that slot is unlinked instead.
+     */
+    private int compareForRemove(int slotToRemove, int slotVersion, int parent, int parentVersion) throws InterruptedException {
+        if (!grab(slotToRemove, slotVersion))
+            return RETRY;
+        if (child(slotToRemove, false) != NONE) {
+            relocateFrom(slotToRemove, false);
+        } else if (child(slotToRemove, true) != NONE) {
+            relocateFrom(slotToRemove, true);
+        } else {
+            if (!grab(parent, parentVersion)) {
+                letGo(slotToRemove);
+                return RETRY;
+            }
+            setChild(parent, child(parent, true) == slotToRemove, NONE);
+            letGo(slotToRemove);
+            letGo(parent);
+            free(slotToRemove);
+        }
+        return DONE;
+    }
+
+    /***
+     * Finds the in order successor (fromLeft false) or predecessor (fromLeft true) of a slot we hold, locks it and its
+     * parent, copies its key into the slot to remove and unlinks it. See ConcurrentBinarySearchTree.relocateFrom.
+     * @param slotToRemove held by the caller, and released here on the way out
+     */
+    private void relocateFrom(int slotToRemove, boolean fromLeft) throws InterruptedException {
+        try {
+            while (true) {
+                int replacementParent = slotToRemove;
+                int replacementParentVersion = 0;
+                int replacement = child(slotToRemove, fromLeft);
+                int replacementVersion = awaitUnlocked(replacement);
+                boolean pathChanged = false;
+                int next;
+                while ((next = child(replacement, !fromLeft)) != NONE) {
+                    int nextVersion = awaitUnlocked(next);
+                    if (version(replacement) != replacementVersion) {
+                        pathChanged = true;
+                        break;
+                    }
+                    replacementParent = replacement;
+                    replacementParentVersion = replacementVersion;
+                    replacement = next;
+                    replacementVersion = nextVersion;
+                }
+                if (pathChanged)
+                    continue;
+                if (replacementParent != slotToRemove && !grab(replacementParent, replacementParentVersion))
+                    continue;
+                if (!grab(replacement, replacementVersion)) {
+                    if (replacementParent != slotToRemove)
+                        letGo(replacementParent);
+                    continue;
+                }
+                setKey(slotToRemove, key(replacement));
+                boolean replacementIsLeftChild = replacementParent == slotToRemove ? fromLeft : !fromLeft;
+                setChild(replacementParent, replacementIsLeftChild, child(replacement, fromLeft));
+                letGo(replacement);
+                if (replacementParent != slotToRemove)
+                    letGo(replacementParent);
+                free(replacement);
+                return;
+            }
+        } finally {
+            letGo(slotToRemove);
+        }
+    }
+
+    /***
+     * Checks, while no writer is running, that the keys are in strictly increasing order.
+     */
+    public boolean isBST() {
+        return isBSTFrom(child(ROOT_HOLDER, false), Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    private boolean isBSTFrom(int slot, long lowerExclusive, long upperExclusive) {
+        if (slot == NONE)
+            return true;
+        int slotKey = key(slot);
+        return slotKey > lowerExclusive && slotKey < upperExclusive
+                && isBSTFrom(child(slot, true), lowerExclusive, slotKey)
+                && isBSTFrom(child(slot, false), slotKey, upperExclusive);
+    }
+
+    public void inOrderPrint() {
+        int root = child(ROOT_HOLDER, false);
+        if (root != NONE) {
+            System.out.print("[ ");
+            inOrderPrintFrom(root);
+            System.out.println(" ]");
+        }
+    }
+
+    private void inOrderPrintFrom(int slot) {
+        if (slot != NONE) {
+            inOrderPrintFrom(child(slot, true));
+            System.out.print(key(slot) + ", ");
+            inOrderPrintFrom(child(slot, false));
+        }
+    }
+}
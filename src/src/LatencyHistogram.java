@@ -0,0 +1,88 @@
+package src;
+
+/***
+ * Fixed size histogram of latencies in nanoseconds. Values below 16 get a bucket each; above that every power of two is
+ * split into 8 buckets, so a percentile read back from it is at most 12.5% above the true value. Recording is a shift
+ * and an array increment and never allocates. Not thread safe: each thread records into its own histogram and they are
+ * added together afterwards, or records into a ConcurrentLatencyHistogram that hands out copies of itself as one.
+ */
+class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int LINEAR_LIMIT = 2 * SUB_BUCKETS;
+    static final int BUCKETS = LINEAR_LIMIT + (63 - 4) * SUB_BUCKETS;
+
+    private final long[] counts = new long[BUCKETS];
+    private long totalCount;
+    private long maxValue;
+
+    void record(long nanos) {
+        if (nanos < 0)
+            nanos = 0;
+        counts[bucketOf(nanos)]++;
+        totalCount++;
+        if (nanos > maxValue)
+            maxValue = nanos;
+    }
+
+    void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] += other.counts[i];
+        }
+        totalCount += other.totalCount;
+        maxValue = Math.max(maxValue, other.maxValue);
+    }
+
+    /* Adds counts kept bucket by bucket somewhere else, in this class's bucket layout. */
+    void add(long[] bucketCounts, long max) {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] += bucketCounts[i];
+            totalCount += bucketCounts[i];
+        }
+        maxValue = Math.max(maxValue, max);
+    }
+
+    long count() {
+        return totalCount;
+    }
+
+    long max() {
+        return maxValue;
+    }
+
+    /***
+     * @param percentile between 0 and 100
+     * @return the upper end of the bucket the given percentile falls in, never more than the largest value recorded
+     */
+    long percentile(double percentile) {
+        if (totalCount == 0)
+            return 0;
+        long rank = (long) Math.ceil(percentile / 100.0 * totalCount);
+        if (rank < 1)
+            rank = 1;
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank)
+                return Math.min(upperBoundOf(i), maxValue);
+        }
+        return maxValue;
+    }
+
+    static int bucketOf(long value) {
+        if (value < LINEAR_LIMIT)
+            return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return LINEAR_LIMIT + (exponent - 4) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long upperBoundOf(int bucket) {
+        if (bucket < LINEAR_LIMIT)
+            return bucket;
+        int exponent = (bucket - LINEAR_LIMIT) / SUB_BUCKETS + 4;
+        int subBucket = (bucket - LINEAR_LIMIT) % SUB_BUCKETS;
+        long lowerBound = (long) (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+        return lowerBound + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+}
@@ -0,0 +1,387 @@
+package src;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.LongAdder;
+
+/***
+ * Lock-free binary search tree of int keys, after Ellen, Fatourou, Ruppert and van Breugel, "Non-blocking binary
+ * search trees" (PODC 2010).
+ * The tree is external: keys live in leaves, and internal nodes only route searches, so every internal node has exactly
+ * two children and an insert or a remove only ever swaps one child pointer. Nothing is ever locked. Instead every
+ * internal node has an update word, and a writer announces what it is about to do by flagging the parent it will change
+ * (and for a remove, marking the parent it will unlink) with a compare-and-set that points the word at a description
+ * of the whole operation. Any thread that runs into a flagged or marked node finishes that operation itself before
+ * trying its own, so a writer that is preempted or stalls half way never holds anyone up, unlike a thread holding a
+ * node in ConcurrentBinarySearchTree.
+ * Rep Invariant:
+ *  Keys in the left subtree of an internal node are smaller than its key and keys in the right subtree are at least
+ *  its key; leaf keys are distinct. The root and its first leaves hold two keys larger than any int, so every real leaf
+ *  has a parent and a grandparent.
+ * Features:
+ *  Searches read child pointers only and never retry. Writers allocate on every attempt, which is the price of never
+ *  locking: an insert allocates its leaf and a SearchResult once, and per attempt a sibling leaf, an internal node, an
+ *  InsertInfo, the Update that flags the parent and the one that cleans it again. A remove allocates a SearchResult
+ *  once, and per attempt a DeleteInfo and two or three Updates: the flag on the grandparent, the mark on the parent
+ *  once the flag is in, and the clean word that unflags the grandparent. A thread that helps another operation along
+ *  allocates the Updates of the steps it finishes.
+ */
+public class LockFreeBinarySearchTree implements BinarySearchTree<Integer> {
+    private static final VarHandle LEFT;
+    private static final VarHandle RIGHT;
+    private static final VarHandle UPDATE;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            LEFT = lookup.findVarHandle(Internal.class, "left", Node.class);
+            RIGHT = lookup.findVarHandle(Internal.class, "right", Node.class);
+            UPDATE = lookup.findVarHandle(Internal.class, "update", Update.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /* Keys of the sentinels, above every int key. */
+    private static final long INFINITY_1 = Long.MAX_VALUE - 1;
+    private static final long INFINITY_2 = Long.MAX_VALUE;
+
+    /* States of an update word. */
+    private static final int CLEAN = 0;
+    private static final int INSERT_FLAG = 1;
+    private static final int DELETE_FLAG = 2;
+    private static final int MARK = 3;
+
+    private static class Node {
+        final long key;
+
+        private Node(long key) {
+            this.key = key;
+        }
+    }
+
+    private static final class Leaf extends Node {
+        private Leaf(long key) {
+            super(key);
+        }
+    }
+
+    private static final class Internal extends Node {
+        private volatile Node left;
+        private volatile Node right;
+        private volatile Update update = UNTOUCHED;
+
+        private Internal(long key, Node left, Node right) {
+            super(key);
+            this.left = left;
+            this.right = right;
+        }
+    }
+
+    /* The value of an update word: a state and the operation it belongs to. Words are compared by identity, so every
+     * change of a word installs a new Update. */
+    private static final class Update {
+        private final int state;
+        private final Info info;
+
+        private Update(int state, Info info) {
+            this.state = state;
+            this.info = info;
+        }
+    }
+
+    /* The word every internal node starts out with. A word never returns to it once changed, so sharing it is safe. */
+    private static final Update UNTOUCHED = new Update(CLEAN, null);
+
+    private static class Info {
+    }
+
+    /* An insert replaces leaf with newInternal below parent. */
+    private static final class InsertInfo extends Info {
+        private final Internal parent;
+        private final Leaf leaf;
+        private final Internal newInternal;
+
+        private InsertInfo(Internal parent, Leaf leaf, Internal newInternal) {
+            this.parent = parent;
+            this.leaf = leaf;
+            this.newInternal = newInternal;
+        }
+    }
+
+    /* A remove replaces parent with the sibling of leaf below grandparent; parentUpdate is the word parent had when the
+     * remove read it, which marking it expects to find. */
+    private static final class DeleteInfo extends Info {
+        private final Internal grandparent;
+        private final Internal parent;
+        private final Leaf leaf;
+        private final Update parentUpdate;
+
+        private DeleteInfo(Internal grandparent, Internal parent, Leaf leaf, Update parentUpdate) {
+            this.grandparent = grandparent;
+            this.parent = parent;
+            this.leaf = leaf;
+            this.parentUpdate = parentUpdate;
+        }
+    }
+
+    /* Where a search ended up, with the update words it read on its way, before the child pointers it followed. */
+    private static final class SearchResult {
+        private Internal grandparent;
+        private Internal parent;
+        private Leaf leaf;
+        private Update grandparentUpdate;
+        private Update parentUpdate;
+    }
+
+    private final Internal root = new Internal(INFINITY_2, new Leaf(INFINITY_1), new Leaf(INFINITY_2));
+    private final LongAdder size = new LongAdder();
+
+    public LockFreeBinarySearchTree() {
+    }
+
+    /***
+     * @param key the key to look for
+     * @return true if the key is in the tree
+     */
+    public boolean contains(int key) {
+        Node node = root;
+        while (node instanceof Internal) {
+            Internal internal = (Internal) node;
+            node = key < internal.key ? internal.left : internal.right;
+        }
+        return node.key == key;
+    }
+
+    /***
+     * @param key the key to add
+     * @return false if the key was already in the tree
+     */
+    public boolean insert(int key) {
+        Leaf newLeaf = new Leaf(key);
+        SearchResult found = new SearchResult();
+        while (true) {
+            search(key, found);
+            Leaf leaf = found.leaf;
+            if (leaf.key == key)
+                return false;
+            if (found.parentUpdate.state != CLEAN) {
+                help(found.parentUpdate);
+                continue;
+            }
+            Leaf sibling = new Leaf(leaf.key);
+            Internal newInternal = key < leaf.key
+                    ? new Internal(leaf.key, newLeaf, sibling)
+                    : new Internal(key, sibling, newLeaf);
+            InsertInfo operation = new InsertInfo(found.parent, leaf, newInternal);
+            Update flag = new Update(INSERT_FLAG, operation);
+            if (UPDATE.compareAndSet(found.parent, found.parentUpdate, flag)) {
+                helpInsert(operation);
+                size.increment();
+                return true;
+            }
+            help(found.parent.update);
+        }
+    }
+
+    /***
+     * @param key the key to remove
+     * @return true if the key was found and removed
+     */
+    public boolean remove(int key) {
+        SearchResult found = new SearchResult();
+        while (true) {
+            search(key, found);
+            if (found.leaf.key != key)
+                return false;
+            if (found.grandparentUpdate.state != CLEAN) {
+                help(found.grandparentUpdate);
+                continue;
+            }
+            if (found.parentUpdate.state != CLEAN) {
+                help(found.parentUpdate);
+                continue;
+            }
+            DeleteInfo operation = new DeleteInfo(found.grandparent, found.parent, found.leaf, found.parentUpdate);
+            Update flag = new Update(DELETE_FLAG, operation);
+            if (UPDATE.compareAndSet(found.grandparent, found.grandparentUpdate, flag)) {
+                if (helpDelete(operation)) {
+                    size.decrement();
+                    return true;
+                }
+            } else {
+                help(found.grandparent.update);
+            }
+        }
+    }
+
+    // BinarySearchTree
+
+    @Override
+    public void insert(Integer element) {
+        insert(element.intValue());
+    }
+
+    @Override
+    public void remove(Integer element) {
+        remove(element.intValue());
+    }
+
+    @Override
+    public boolean contains(Integer element) {
+        return contains(element.intValue());
+    }
+
+    /***
+     * The key that routes searches at the top of the tree. Internal nodes hold copies of leaf keys, so it may be a key
+     * that has been removed since.
+     * @return the key, or null if the tree is empty
+     */
+    @Override
+    public Integer getRootElement() {
+        Node top = root.left;
+        if (top instanceof Internal)
+            top = ((Internal) top).left;
+        return top.key >= INFINITY_1 ? null : (int) top.key;
+    }
+
+    /***
+     * Sum of a striped counter of the inserts and removes that took effect, exact while no write is in progress.
+     */
+    @Override
+    public int size() {
+        return size.intValue();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return root.left instanceof Leaf;
+    }
+
+    /***
+     * Checks, while no writer is running, that every key is on the side of each internal node above it that the node
+     * routes it to, and that every internal node has both its children.
+     */
+    @Override
+    public boolean isBST() {
+        return isBSTFrom(root, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    private boolean isBSTFrom(Node node, long lowerInclusive, long upperInclusive) {
+        if (node == null || node.key < lowerInclusive || node.key > upperInclusive)
+            return false;
+        if (node instanceof Leaf)
+            return true;
+        Internal internal = (Internal) node;
+        return isBSTFrom(internal.left, lowerInclusive, internal.key - 1) && isBSTFrom(internal.right, internal.key, upperInclusive);
+    }
+
+    public void inOrderPrint() {
+        if (!isEmpty()) {
+            System.out.print("[ ");
+            inOrderPrintFrom(root.left);
+            System.out.println(" ]");
+        }
+    }
+
+    private void inOrderPrintFrom(Node node) {
+        if (node instanceof Internal) {
+            inOrderPrintFrom(((Internal) node).left);
+            inOrderPrintFrom(((Internal) node).right);
+        } else if (node.key < INFINITY_1) {
+            System.out.print(node.key + ", ");
+        }
+    }
+
+    // support sub-methods
+
+    /* Walks down to the leaf where the key is or would be, reading each internal node's update word before the child
+     * pointer it follows, so that a word found clean means that pointer was current when the word was read. */
+    private void search(long key, SearchResult result) {
+        Internal grandparent = null, parent = null;
+        Update grandparentUpdate = null, parentUpdate = null;
+        Node node = root;
+        while (node instanceof Internal) {
+            grandparent = parent;
+            grandparentUpdate = parentUpdate;
+            parent = (Internal) node;
+            parentUpdate = parent.update;
+            node = key < parent.key ? parent.left : parent.right;
+        }
+        result.grandparent = grandparent;
+        result.parent = parent;
+        result.leaf = (Leaf) node;
+        result.grandparentUpdate = grandparentUpdate;
+        result.parentUpdate = parentUpdate;
+    }
+
+    /* Finishes the operation an update word was found flagged or marked for. */
+    private void help(Update update) {
+        switch (update.state) {
+            case INSERT_FLAG:
+                helpInsert((InsertInfo) update.info);
+                break;
+            case MARK:
+                helpMarked((DeleteInfo) update.info);
+                break;
+            case DELETE_FLAG:
+                helpDelete((DeleteInfo) update.info);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void helpInsert(InsertInfo operation) {
+        swapChild(operation.parent, operation.leaf, operation.newInternal);
+        unflag(operation.parent, INSERT_FLAG, operation);
+    }
+
+    /***
+     * Tries to mark the parent for the remove whose flag is on the grandparent. Marking only succeeds if the parent's
+     * word is still the one the remove read, so nothing changed below the grandparent since. Otherwise the remove is
+     * backed out: whatever holds the parent is helped along and the grandparent is unflagged, and the remove starts
+     * over.
+     * @return true if the remove went through, by this thread or another
+     */
+    private boolean helpDelete(DeleteInfo operation) {
+        Update mark = new Update(MARK, operation);
+        Update current = operation.parent.update;
+        if (current == operation.parentUpdate && UPDATE.compareAndSet(operation.parent, operation.parentUpdate, mark))
+            current = mark;
+        else
+            current = operation.parent.update;
+        if (current.state == MARK && current.info == operation) {
+            helpMarked(operation);
+            return true;
+        }
+        help(current);
+        unflag(operation.grandparent, DELETE_FLAG, operation);
+        return false;
+    }
+
+    /* The parent is marked, so it can never change again: splice it out by pointing the grandparent at the leaf's
+     * sibling. */
+    private void helpMarked(DeleteInfo operation) {
+        Internal parent = operation.parent;
+        Node sibling = parent.right == operation.leaf ? parent.left : parent.right;
+        swapChild(operation.grandparent, parent, sibling);
+        unflag(operation.grandparent, DELETE_FLAG, operation);
+    }
+
+    /* Points whichever child pointer of parent leads towards the new node from the old node to the new one. Only the
+     * first helper succeeds; the rest find the old node gone. */
+    private void swapChild(Internal parent, Node oldChild, Node newChild) {
+        if (newChild.key < parent.key)
+            LEFT.compareAndSet(parent, oldChild, newChild);
+        else
+            RIGHT.compareAndSet(parent, oldChild, newChild);
+    }
+
+    /* Cleans a word that still holds the given flag for the operation; any other word was cleaned by a helper already. */
+    private void unflag(Internal node, int state, Info operation) {
+        Update current = node.update;
+        if (current.state == state && current.info == operation)
+            UPDATE.compareAndSet(node, current, new Update(CLEAN, operation));
+    }
+}
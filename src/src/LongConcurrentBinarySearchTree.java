@@ -0,0 +1,532 @@
+package src;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/***
+ * Concurrent binary search tree of long keys that never boxes them. The same tree as IntConcurrentBinarySearchTree,
+ * with a slot made of three consecutive longs in a large long array: the key, both child links packed into one long,
+ * and the version. That is 24 bytes per key against well over 50 for a node object plus its Long.
+ * For trees of hundreds of millions of keys the slots can also live off the heap, in direct buffers the tree allocates
+ * as it grows, so the garbage collector neither copies nor scans them; pass offHeap to the constructor. The tree works
+ * the same either way, only the accessors below look at where the slots are.
+ * Rep Invariant:
+ *  Keys in the left subtree of a slot are smaller than its key and keys in the right subtree are larger; there are no
+ *  duplicates. Slot 0 is a sentinel above the tree whose right child is the root, so 0 is also the "no child" link.
+ * Features:
+ *  Slots of removed keys go on a free list and are handed out again, so a reader may find itself on a slot that now
+ *  holds something else. Unlike the object tree, readers here therefore validate every step against the versions they
+ *  read, the same way writers do, and start over if anything they passed changed.
+ */
+public class LongConcurrentBinarySearchTree {
+    private static final VarHandle LONGS = MethodHandles.arrayElementVarHandle(long[].class);
+    private static final VarHandle BUFFER_LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+    private static final int SPINS_BEFORE_YIELD = 64;
+
+    private static final int HEAP_CHUNK_SHIFT = 12;
+    /* Off the heap every chunk is a separate native allocation with a cleaner attached, so they are made much bigger. */
+    private static final int OFF_HEAP_CHUNK_SHIFT = 20;
+
+    private static final int ROOT_HOLDER = 0;
+    private static final int NONE = 0;
+
+    /* Outcomes of one optimistic pass. */
+    private static final int DONE = 0;
+    private static final int NOT_FOUND = 1;
+    private static final int RETRY = 2;
+
+    /* Layout of a slot within its chunk. The version is even while nobody holds the slot and odd while a writer does,
+     * and it keeps counting when a slot is reused, so a version read before the slot was freed never matches again. */
+    private static final int SLOT_LONGS = 3;
+    private static final int KEY = 0;
+    private static final int LINKS = 1; // left child in the upper half, right child in the lower half
+    private static final int VERSION = 2;
+
+    /* Each chunk holds 1 << chunkShift slots, either in a long array or in a direct buffer. Chunks are never moved once
+     * created, only the directory pointing at them grows. Only one of the two directories is used. */
+    private final boolean offHeap;
+    private final int chunkShift;
+    private final int chunkMask;
+    private volatile long[][] chunks;
+    private volatile ByteBuffer[] buffers;
+    private final Object chunkLock = new Object();
+    private final AtomicInteger nextSlot = new AtomicInteger(ROOT_HOLDER + 1);
+    /* Head of the stack of freed slots, linked through their left child links. The upper half counts pops and pushes so
+     * a head that was popped and pushed back in between is not mistaken for an unchanged one. */
+    private final AtomicLong freeSlots = new AtomicLong(NONE);
+
+    public LongConcurrentBinarySearchTree() {
+        this(false);
+    }
+
+    /***
+     * @param offHeap true to keep the slots in direct buffers outside the Java heap. That memory is given back when the
+     *                tree itself is garbage collected.
+     */
+    public LongConcurrentBinarySearchTree(boolean offHeap) {
+        this.offHeap = offHeap;
+        chunkShift = offHeap ? OFF_HEAP_CHUNK_SHIFT : HEAP_CHUNK_SHIFT;
+        chunkMask = (1 << chunkShift) - 1;
+        if (offHeap)
+            buffers = new ByteBuffer[]{newBuffer()};
+        else
+            chunks = new long[][]{newChunk()};
+    }
+
+    public boolean isOffHeap() {
+        return offHeap;
+    }
+
+    public boolean isEmpty() {
+        return child(ROOT_HOLDER, false) == NONE;
+    }
+
+    /***
+     * @param key the key to look for
+     * @return true if the key is in the tree
+     */
+    public boolean contains(long key) {
+        int result;
+        while ((result = containsOptimistically(key)) == RETRY) {
+            Thread.onSpinWait();
+        }
+        return result == DONE;
+    }
+
+    /***
+     * @param key the key to add
+     * @return false if the key was already in the tree
+     */
+    public boolean insert(long key) throws InterruptedException {
+        int newSlot = allocate(key);
+        int result = RETRY;
+        try {
+            while ((result = insertOptimistically(key, newSlot)) == RETRY) {
+                Thread.onSpinWait();
+            }
+        } finally {
+            // the slot is only kept once it is linked in, so also give it back when interrupted
+            if (result != DONE)
+                free(newSlot);
+        }
+        return result == DONE;
+    }
+
+    /***
+     * @param key the key to remove
+     * @return true if the key was found and removed
+     */
+    public boolean remove(long key) throws InterruptedException {
+        int result;
+        while ((result = removeOptimistically(key)) == RETRY) {
+            Thread.onSpinWait();
+        }
+        return result == DONE;
+    }
+
+    // slot access
+
+    private int offset(int slot, int field) {
+        return (slot & chunkMask) * SLOT_LONGS + field;
+    }
+
+    private long read(int slot, int field) {
+        if (offHeap)
+            return (long) BUFFER_LONGS.getVolatile(buffers[slot >>> chunkShift], offset(slot, field) << 3);
+        return (long) LONGS.getVolatile(chunks[slot >>> chunkShift], offset(slot, field));
+    }
+
+    private void write(int slot, int field, long value) {
+        if (offHeap)
+            BUFFER_LONGS.setVolatile(buffers[slot >>> chunkShift], offset(slot, field) << 3, value);
+        else
+            LONGS.setVolatile(chunks[slot >>> chunkShift], offset(slot, field), value);
+    }
+
+    private boolean compareAndSet(int slot, int field, long expected, long value) {
+        if (offHeap)
+            return BUFFER_LONGS.compareAndSet(buffers[slot >>> chunkShift], offset(slot, field) << 3, expected, value);
+        return LONGS.compareAndSet(chunks[slot >>> chunkShift], offset(slot, field), expected, value);
+    }
+
+    private long key(int slot) {
+        return read(slot, KEY);
+    }
+
+    private void setKey(int slot, long key) {
+        write(slot, KEY, key);
+    }
+
+    private int child(int slot, boolean left) {
+        long links = read(slot, LINKS);
+        return (int) (left ? links >>> 32 : links);
+    }
+
+    /* Only the writer holding the slot, or owning it while it is off the tree, changes its links, so the other half can
+     * be carried over without a compare-and-set. */
+    private void setChild(int slot, boolean left, int child) {
+        long links = read(slot, LINKS);
+        links = left ? (links & 0xFFFFFFFFL) | ((long) child << 32) : (links & 0xFFFFFFFF00000000L) | (child & 0xFFFFFFFFL);
+        write(slot, LINKS, links);
+    }
+
+    private long version(int slot) {
+        return read(slot, VERSION);
+    }
+
+    /* Locks the slot, but only if it is still at the version the caller validated its reads against. */
+    private boolean grab(int slot, long expectedVersion) {
+        return (expectedVersion & 1) == 0 && compareAndSet(slot, VERSION, expectedVersion, expectedVersion + 1);
+    }
+
+    /* Only the holder changes a locked version, so a plain write of the next value is enough to release it. */
+    private void letGo(int slot) {
+        write(slot, VERSION, read(slot, VERSION) + 1);
+    }
+
+    /* Waits, for writers, until nobody holds the slot and returns the even version seen. */
+    private long awaitUnlocked(int slot) throws InterruptedException {
+        int spins = 0;
+        long version;
+        while (((version = version(slot)) & 1) != 0) {
+            if (++spins < SPINS_BEFORE_YIELD) {
+                Thread.onSpinWait();
+            } else {
+                if (Thread.interrupted())
+                    throw new InterruptedException();
+                Thread.yield();
+            }
+        }
+        return version;
+    }
+
+    /* Same for readers, which are not interruptible. */
+    private long stableVersion(int slot) {
+        int spins = 0;
+        long version;
+        while (((version = version(slot)) & 1) != 0) {
+            if (++spins < SPINS_BEFORE_YIELD)
+                Thread.onSpinWait();
+            else
+                Thread.yield();
+        }
+        return version;
+    }
+
+    // slot allocation
+
+    /* Hands out a slot with no children, from the free list if there is one. */
+    private int allocate(long key) {
+        int slot = NONE;
+        while (true) {
+            long head = freeSlots.get();
+            int candidate = (int) head;
+            if (candidate == NONE)
+                break;
+            if (freeSlots.compareAndSet(head, nextStamp(head) | (child(candidate, true) & 0xFFFFFFFFL))) {
+                slot = candidate;
+                break;
+            }
+        }
+        if (slot == NONE) {
+            slot = nextSlot.getAndIncrement();
+            if (slot < 0)
+                throw new IllegalStateException("tree is full");
+            ensureChunk(slot);
+        }
+        setKey(slot, key);
+        setChild(slot, true, NONE);
+        setChild(slot, false, NONE);
+        return slot;
+    }
+
+    /* The slot must be unlinked and let go of already, so its version has moved past anything a reader saw. */
+    private void free(int slot) {
+        while (true) {
+            long head = freeSlots.get();
+            setChild(slot, true, (int) head);
+            if (freeSlots.compareAndSet(head, nextStamp(head) | slot))
+                return;
+        }
+    }
+
+    private static long nextStamp(long head) {
+        return ((head >>> 32) + 1) << 32;
+    }
+
+    private void ensureChunk(int slot) {
+        int chunkIndex = slot >>> chunkShift;
+        if (offHeap) {
+            ByteBuffer[] current = buffers;
+            if (chunkIndex < current.length && current[chunkIndex] != null)
+                return;
+            synchronized (chunkLock) {
+                current = buffers;
+                if (chunkIndex >= current.length)
+                    current = Arrays.copyOf(current, Math.max(current.length * 2, chunkIndex + 1));
+                if (current[chunkIndex] == null)
+                    current[chunkIndex] = newBuffer();
+                buffers = current;
+            }
+        } else {
+            long[][] current = chunks;
+            if (chunkIndex < current.length && current[chunkIndex] != null)
+                return;
+            synchronized (chunkLock) {
+                current = chunks;
+                if (chunkIndex >= current.length)
+                    current = Arrays.copyOf(current, Math.max(current.length * 2, chunkIndex + 1));
+                if (current[chunkIndex] == null)
+                    current[chunkIndex] = newChunk();
+                chunks = current;
+            }
+        }
+    }
+
+    private long[] newChunk() {
+        return new long[(chunkMask + 1) * SLOT_LONGS];
+    }
+
+    /* allocateDirect hands out zeroed memory, so a new chunk starts out just like a new long array. */
+    private ByteBuffer newBuffer() {
+        return ByteBuffer.allocateDirect((chunkMask + 1) * SLOT_LONGS * Long.BYTES).order(ByteOrder.nativeOrder());
+    }
+
+    // search support sub-methods
+
+    /***
+     * One optimistic descent. Every child is only trusted once its parent is known to still be at the version read
+     * before the child link, and a key only once its own slot is. A miss also needs the slots we last turned left and
+     * right at to be unchanged, since a relocating remove may have moved the key up past us.
+     */
+    private int containsOptimistically(long key) {
+        int parent = ROOT_HOLDER;
+        long parentVersion = stableVersion(parent);
+        int lowerBound = NONE, upperBound = NONE;
+        long lowerBoundVersion = 0, upperBoundVersion = 0;
+        boolean goLeft = false;
+        while (true) {
+            int current = child(parent, goLeft);
+            if (current == NONE) {
+                if (version(parent) != parentVersion || !unchanged(lowerBound, lowerBoundVersion, NONE) || !unchanged(upperBound, upperBoundVersion, NONE))
+                    return RETRY;
+                return NOT_FOUND;
+            }
+            long currentVersion = stableVersion(current);
+            if (version(parent) != parentVersion)
+                return RETRY;
+            long currentKey = key(current);
+            if (version(current) != currentVersion)
+                return RETRY;
+            if (key == currentKey)
+                return DONE;
+            goLeft = key < currentKey;
+            if (goLeft) {
+                upperBound = current;
+                upperBoundVersion = currentVersion;
+            } else {
+                lowerBound = current;
+                lowerBoundVersion = currentVersion;
+            }
+            parent = current;
+            parentVersion = currentVersion;
+        }
+    }
+
+    /* True if a bounding slot we passed still has the version we saw, or is the slot the caller now holds itself. */
+    private boolean unchanged(int boundSlot, long boundVersion, int heldSlot) {
+        return boundSlot == NONE || boundSlot == heldSlot || version(boundSlot) == boundVersion;
+    }
+
+    // insert support sub-methods
+
+    /***
+     * One optimistic descent, as in ConcurrentBinarySearchTree. The new slot is not linked anywhere yet, so if the key
+     * turns out to be present the caller can put it straight back on the free list.
+     */
+    private int insertOptimistically(long key, int newSlot) throws InterruptedException {
+        int parent = ROOT_HOLDER;
+        long parentVersion = awaitUnlocked(parent);
+        int lowerBound = NONE, upperBound = NONE;
+        long lowerBoundVersion = 0, upperBoundVersion = 0;
+        boolean goLeft = false;
+        while (true) {
+            int current = child(parent, goLeft);
+            if (current == NONE) {
+                if (!grab(parent, parentVersion))
+                    return RETRY;
+                if (!unchanged(lowerBound, lowerBoundVersion, parent) || !unchanged(upperBound, upperBoundVersion, parent)) {
+                    letGo(parent);
+                    return RETRY;
+                }
+                setChild(parent, goLeft, newSlot);
+                letGo(parent);
+                return DONE;
+            }
+            long currentVersion = awaitUnlocked(current);
+            if (version(parent) != parentVersion)
+                return RETRY;
+            long currentKey = key(current);
+            if (key == currentKey) {
+                if (version(current) != currentVersion)
+                    return RETRY;
+                return NOT_FOUND;
+            }
+            goLeft = key < currentKey;
+            if (goLeft) {
+                upperBound = current;
+                upperBoundVersion = currentVersion;
+            } else {
+                lowerBound = current;
+                lowerBoundVersion = currentVersion;
+            }
+            parent = current;
+            parentVersion = currentVersion;
+        }
+    }
+
+    // remove support sub-methods
+
+    private int removeOptimistically(long key) throws InterruptedException {
+        int parent = ROOT_HOLDER;
+        long parentVersion = awaitUnlocked(parent);
+        int lowerBound = NONE, upperBound = NONE;
+        long lowerBoundVersion = 0, upperBoundVersion = 0;
+        boolean goLeft = false;
+        while (true) {
+            int current = child(parent, goLeft);
+            if (current == NONE) {
+                if (version(parent) != parentVersion || !unchanged(lowerBound, lowerBoundVersion, NONE) || !unchanged(upperBound, upperBoundVersion, NONE))
+                    return RETRY;
+                return NOT_FOUND;
+            }
+            long currentVersion = awaitUnlocked(current);
+            if (version(parent) != parentVersion)
+                return RETRY;
+            long currentKey = key(current);
+            if (key == currentKey)
+                return compareForRemove(current, currentVersion, parent, parentVersion);
+            goLeft = key < currentKey;
+            if (goLeft) {
+                upperBound = current;
+                upperBoundVersion = currentVersion;
+            } else {
+                lowerBound = current;
+                lowerBoundVersion = currentVersion;
+            }
+            parent = current;
+            parentVersion = currentVersion;
+        }
+    }
+
+    /***
+     * Removes the slot we found, provided neither it nor (for a leaf) its parent moved since we validated them. A slot
+     * with children takes over the key of its in order successor or predecessor, and that slot is unlinked instead.
+     */
+    private int compareForRemove(int slotToRemove, long slotVersion, int parent, long parentVersion) throws InterruptedException {
+        if (!grab(slotToRemove, slotVersion))
+            return RETRY;
+        if (child(slotToRemove, false) != NONE) {
+            relocateFrom(slotToRemove, false);
+        } else if (child(slotToRemove, true) != NONE) {
+            relocateFrom(slotToRemove, true);
+        } else {
+            if (!grab(parent, parentVersion)) {
+                letGo(slotToRemove);
+                return RETRY;
+            }
+            setChild(parent, child(parent, true) == slotToRemove, NONE);
+            letGo(slotToRemove);
+            letGo(parent);
+            free(slotToRemove);
+        }
+        return DONE;
+    }
+
+    /***
+     * Finds the in order successor (fromLeft false) or predecessor (fromLeft true) of a slot we hold, locks it and its
+     * parent, copies its key into the slot to remove and unlinks it. See ConcurrentBinarySearchTree.relocateFrom.
+     * @param slotToRemove held by the caller, and released here on the way out
+     */
+    private void relocateFrom(int slotToRemove, boolean fromLeft) throws InterruptedException {
+        try {
+            while (true) {
+                int replacementParent = slotToRemove;
+                long replacementParentVersion = 0;
+                int replacement = child(slotToRemove, fromLeft);
+                long replacementVersion = awaitUnlocked(replacement);
+                boolean pathChanged = false;
+                int next;
+                while ((next = child(replacement, !fromLeft)) != NONE) {
+                    long nextVersion = awaitUnlocked(next);
+                    if (version(replacement) != replacementVersion) {
+                        pathChanged = true;
+                        break;
+                    }
+                    replacementParent = replacement;
+                    replacementParentVersion = replacementVersion;
+                    replacement = next;
+                    replacementVersion = nextVersion;
+                }
+                if (pathChanged)
+                    continue;
+                if (replacementParent != slotToRemove && !grab(replacementParent, replacementParentVersion))
+                    continue;
+                if (!grab(replacement, replacementVersion)) {
+                    if (replacementParent != slotToRemove)
+                        letGo(replacementParent);
+                    continue;
+                }
+                setKey(slotToRemove, key(replacement));
+                boolean replacementIsLeftChild = replacementParent == slotToRemove ? fromLeft : !fromLeft;
+                setChild(replacementParent, replacementIsLeftChild, child(replacement, fromLeft));
+                letGo(replacement);
+                if (replacementParent != slotToRemove)
+                    letGo(replacementParent);
+                free(replacement);
+                return;
+            }
+        } finally {
+            letGo(slotToRemove);
+        }
+    }
+
+    /***
+     * Checks, while no writer is running, that the keys are in strictly increasing order.
+     */
+    public boolean isBST() {
+        return isBSTFrom(child(ROOT_HOLDER, false), NONE, NONE);
+    }
+
+    /* The bounds are the slots whose keys bound this subtree, NONE where it is unbounded. */
+    private boolean isBSTFrom(int slot, int lowerSlot, int upperSlot) {
+        if (slot == NONE)
+            return true;
+        long slotKey = key(slot);
+        return (lowerSlot == NONE || slotKey > key(lowerSlot)) && (upperSlot == NONE || slotKey < key(upperSlot))
+                && isBSTFrom(child(slot, true), lowerSlot, slot)
+                && isBSTFrom(child(slot, false), slot, upperSlot);
+    }
+
+    public void inOrderPrint() {
+        int root = child(ROOT_HOLDER, false);
+        if (root != NONE) {
+            System.out.print("[ ");
+            inOrderPrintFrom(root);
+            System.out.println(" ]");
+        }
+    }
+
+    private void inOrderPrintFrom(int slot) {
+        if (slot != NONE) {
+            inOrderPrintFrom(child(slot, true));
+            System.out.print(key(slot) + ", ");
+            inOrderPrintFrom(child(slot, false));
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package src;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/***
+ * Bounded cache of elements recently found in a tree, so that repeated lookups of the same hot elements are a hash
+ * lookup instead of a walk down the tree. Only hits are cached, so an insert can never make an entry wrong; a remove
+ * can, and so every remove is bracketed by removeStarted and removeFinished, which bump the counters of the element's
+ * stripe. An entry remembers the stripe's count of started removes from before the lookup that found it, and is only
+ * served while that count has not moved, so it is dropped the moment a remove in its stripe begins.
+ * Eviction is CLOCK: every entry has a referenced bit that a hit sets, and a full cache makes room by sweeping a hand
+ * over the entries, clearing set bits and evicting the first entry whose bit is already clear. Filling in an entry only
+ * ever tries the lock once, so a busy cache skips the caching rather than hold up a lookup.
+ * An element only gets in on its second miss within a while: a small table of hashes remembers the elements that
+ * missed once, so elements looked up only once pass by without evicting anything.
+ * Elements that compare equal have to be equal and have equal hash codes.
+ */
+class LookupCache<E> {
+    /* A remove drops the entries of one stripe in this many, so there are enough of them that the removes of a mixed
+     * workload leave most of the hot entries alone. */
+    private static final int STRIPES = 1024;
+
+    private static final class Entry<E> {
+        private final E element;
+        private final long stamp;
+        private final int slot;
+        private volatile boolean referenced;
+
+        private Entry(E element, long stamp, int slot) {
+            this.element = element;
+            this.stamp = stamp;
+            this.slot = slot;
+        }
+    }
+
+    private final ConcurrentHashMap<E, Entry<E>> entries;
+    private final Entry<E>[] clock;
+    private final ReentrantLock clockLock = new ReentrantLock();
+    private int hand;
+    private int used;
+
+    /* Hashes of elements that missed once, by hash. Plain reads and writes: a lost or torn update only lets one element
+     * in a miss early or late. */
+    private final int[] doorkeeper;
+
+    private final AtomicLongArray removesStarted = new AtomicLongArray(STRIPES);
+    private final AtomicLongArray removesFinished = new AtomicLongArray(STRIPES);
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /***
+     * @param capacity how many elements the cache holds at most
+     */
+    @SuppressWarnings("unchecked")
+    LookupCache(int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("capacity must be positive");
+        entries = new ConcurrentHashMap<>(capacity * 2);
+        clock = (Entry<E>[]) new Entry<?>[capacity];
+        doorkeeper = new int[Integer.highestOneBit(capacity) << 1];
+    }
+
+    /***
+     * @return the cached element equal to the given one, or null if there is none that is still good
+     */
+    E get(E element) {
+        Entry<E> entry = entries.get(element);
+        if (entry == null || entry.stamp != removesStarted.get(stripe(element))) {
+            misses.increment();
+            return null;
+        }
+        if (!entry.referenced)
+            entry.referenced = true;
+        hits.increment();
+        return entry.element;
+    }
+
+    /***
+     * To be read before looking the element up in the tree, and handed to put with what the lookup found.
+     * @return the stripe's count of started removes, or -1 while one of them is still running
+     */
+    long stamp(E element) {
+        int stripe = stripe(element);
+        long finished = removesFinished.get(stripe);
+        long started = removesStarted.get(stripe);
+        return started == finished ? started : -1;
+    }
+
+    /***
+     * Caches an element found by a lookup that read the given stamp before it started. Entries whose stripe has seen a
+     * remove since are never served, so a lookup that raced with a remove only puts in a dead entry. An entry already
+     * there from an older stamp, dead or not, is replaced in its slot.
+     */
+    void put(E element, long stamp) {
+        if (stamp < 0)
+            return;
+        Entry<E> existing = entries.get(element);
+        if (existing != null && existing.stamp >= stamp)
+            return;
+        if (existing == null) {
+            int hash = element.hashCode();
+            int door = (hash * 0x9E3779B9 >>> 7) & (doorkeeper.length - 1);
+            if (doorkeeper[door] != hash) {
+                doorkeeper[door] = hash;
+                return;
+            }
+        }
+        if (!clockLock.tryLock())
+            return;
+        try {
+            existing = entries.get(element);
+            if (existing != null && existing.stamp >= stamp)
+                return;
+            int slot;
+            if (existing != null) {
+                slot = existing.slot;
+            } else if (used < clock.length) {
+                slot = used++;
+            } else {
+                slot = sweep();
+                entries.remove(clock[slot].element, clock[slot]);
+                evictions.increment();
+            }
+            Entry<E> entry = new Entry<>(element, stamp, slot);
+            clock[slot] = entry;
+            entries.put(element, entry);
+        } finally {
+            clockLock.unlock();
+        }
+    }
+
+    void removeStarted(E element) {
+        removesStarted.incrementAndGet(stripe(element));
+    }
+
+    void removeFinished(E element) {
+        removesFinished.incrementAndGet(stripe(element));
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long misses() {
+        return misses.sum();
+    }
+
+    long evictions() {
+        return evictions.sum();
+    }
+
+    /* Moves the hand on to the first entry that was not referenced since the hand last passed it, giving every entry
+     * it passes on the way a second chance. */
+    private int sweep() {
+        while (true) {
+            Entry<E> entry = clock[hand];
+            int slot = hand;
+            hand = (hand + 1) % clock.length;
+            if (!entry.referenced)
+                return slot;
+            entry.referenced = false;
+        }
+    }
+
+    private static int stripe(Object element) {
+        int h = element.hashCode() * 0x9E3779B9;
+        return h >>> 22;
+    }
+}
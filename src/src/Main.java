@@ -1,6 +1,7 @@
 package src;
 
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
 
 import static java.lang.Math.abs;
 
@@ -8,7 +9,9 @@ public class Main {
 
     public static void main(String[] args) {
         try {
-            ConcurrentBinarySearchTree<Integer> sampleIntegerTree = new ConcurrentBinarySearchTree<>();
+            // half the inserts repeat a value, so equal values are counted on one node instead of chained below it
+            ConcurrentBinarySearchTree<Integer> sampleIntegerTree =
+                    ConcurrentBinarySearchTree.builder().verbose().multiset().build();
             multiThreadedTesting(sampleIntegerTree);
             tryToSleep(5, 7);
             sampleIntegerTree.inOrderPrint();
@@ -19,39 +22,34 @@ public class Main {
         }
     }
 
-    public static void multiThreadedTesting(ConcurrentBinarySearchTree inputTree) throws InterruptedException {
+    /***
+     * Throws a thousand inserts and then nine hundred removes at the tree, all at once, through an OperationDispatcher
+     * rather than a thread per operation, and waits for each batch before printing the tree.
+     */
+    public static void multiThreadedTesting(ConcurrentBinarySearchTree<Integer> inputTree) throws InterruptedException {
         Random random = new Random();
-        try {
+        try (OperationDispatcher<Integer> dispatcher = new OperationDispatcher<>(inputTree)) {
             int treeSize = 1000;
             int nRemoves = 900;
             int[] nums = new int[treeSize];
             for (int num = 0; num < treeSize; num++) {
                 nums[num] = random.nextInt(500);
             }
+            CompletableFuture<?>[] pending = new CompletableFuture<?>[treeSize];
             for (int i = 0; i < treeSize; i++) {
-                Inserter newInserter = new Inserter(inputTree, nums[i]);
-                newInserter.start();
-//                try {
-//                    newInserter.join(); // asks the thread once
-//                } catch (Exception e) {
-//                    System.out.println("Just in case?");
-//                }
+                pending[i] = dispatcher.insertAsync(nums[i]);
                 // sampleIntegerTree.insert(nums[i]);
             }
+            CompletableFuture.allOf(pending).join();
             System.out.println("About to print...");
             inputTree.inOrderPrint();
             System.out.println("Finished printing");
+            pending = new CompletableFuture<?>[nRemoves];
             for (int j = 0; j < nRemoves; j++) {
-                Remover newRemover = new Remover(inputTree, nums[random.nextInt(treeSize)]);
-                newRemover.start();
-                // tryToSleep(0.3, 0.7);
-//                try {
-//                    newRemover.join();
-//                } catch (Exception e) {
-//                    System.out.println("Maybe?");
-//                }
+                pending[j] = dispatcher.removeAsync(nums[random.nextInt(treeSize)]);
 //                sampleIntegerTree.remove(nums[random.nextInt(treeSize)]);
             }
+            CompletableFuture.allOf(pending).join();
             inputTree.inOrderPrint();
         } catch (NullPointerException e) {
         }
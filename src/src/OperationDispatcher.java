@@ -0,0 +1,120 @@
+package src;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/***
+ * Runs tree operations asynchronously on an executor instead of starting a thread per operation, the way Inserter and
+ * Remover do. Each call returns at once with a future that completes with the operation's result.
+ * By default every operation gets its own virtual thread when the JVM has them (Java 21 on), found by reflection so the
+ * class still runs on older JVMs, which get a fixed pool with one thread per core instead. Writers wait on a held node
+ * by spinning and then yielding, never by blocking in a monitor, so a virtual thread waiting on a node gives its
+ * carrier thread back rather than pinning it.
+ * Any other executor can be plugged in; the dispatcher only shuts down an executor it made itself.
+ * @param <E>
+ */
+public class OperationDispatcher<E extends Comparable<E>> implements AutoCloseable {
+    private final ConcurrentBinarySearchTree<E> tree;
+    private final Executor executor;
+    private final boolean ownsExecutor;
+
+    private interface Operation {
+        boolean run() throws InterruptedException;
+    }
+
+    /***
+     * Dispatches onto a new default executor, which close shuts down again.
+     */
+    public OperationDispatcher(ConcurrentBinarySearchTree<E> tree) {
+        this(tree, newDefaultExecutor(), true);
+    }
+
+    /***
+     * Dispatches onto the given executor, which stays the caller's to shut down.
+     */
+    public OperationDispatcher(ConcurrentBinarySearchTree<E> tree, Executor executor) {
+        this(tree, executor, false);
+    }
+
+    private OperationDispatcher(ConcurrentBinarySearchTree<E> tree, Executor executor, boolean ownsExecutor) {
+        this.tree = tree;
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+    }
+
+    /***
+     * @return a future that completes with true once the element is in the tree
+     */
+    public CompletableFuture<Boolean> insertAsync(E element) {
+        return dispatch(() -> {
+            tree.insert(element);
+            return true;
+        });
+    }
+
+    /***
+     * @return a future that completes with whether an equal element was found and removed
+     */
+    public CompletableFuture<Boolean> removeAsync(E element) {
+        return dispatch(() -> tree.remove(element));
+    }
+
+    public CompletableFuture<Boolean> containsAsync(E element) {
+        return dispatch(() -> tree.contains(element));
+    }
+
+    public ConcurrentBinarySearchTree<E> getTree() {
+        return tree;
+    }
+
+    /***
+     * Executor with a virtual thread per task where the JVM supports them, otherwise a fixed pool of daemon threads, one
+     * per core.
+     */
+    public static ExecutorService newDefaultExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            // before Java 21, or a preview release without preview features enabled
+            return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), runnable -> {
+                Thread thread = new Thread(runnable, "tree-dispatcher");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /***
+     * Lets the operations already dispatched finish and shuts down the executor if the dispatcher made it. Interrupted
+     * while waiting for them, it stops waiting and returns with the thread's interrupt status set again.
+     */
+    @Override
+    public void close() {
+        if (ownsExecutor) {
+            ExecutorService service = (ExecutorService) executor;
+            service.shutdown();
+            try {
+                service.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private CompletableFuture<Boolean> dispatch(Operation operation) {
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        executor.execute(() -> {
+            try {
+                result.complete(operation.run());
+            } catch (Throwable t) {
+                result.completeExceptionally(t);
+            }
+        });
+        return result;
+    }
+}
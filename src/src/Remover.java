@@ -11,7 +11,8 @@ public class Remover extends Thread {
 
     @Override
     public void run () {
-        System.out.println("Looking to remove " + removalData + " from tree.");
+        if (removalTree.isVerbose())
+            System.out.println("Looking to remove " + removalData + " from tree.");
         try {
             removalTree.remove(removalData);
         } catch (InterruptedException e) {
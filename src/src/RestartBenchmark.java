@@ -0,0 +1,83 @@
+package src;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/***
+ * Measures how long a DurableConcurrentBinarySearchTree takes to open again after a restart, once with nothing but the
+ * write-ahead log to replay one insert at a time and once from a snapshot loaded with a single balanced build, and
+ * then how long the same keys take to load from a SortedKeyFile.
+ * Usage: RestartBenchmark [keys, default 1000000] [directory, default a new temporary one, deleted afterwards]
+ */
+public class RestartBenchmark {
+    private static final int BATCH = 100_000;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int keyCount = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        boolean temporary = args.length < 2;
+        Path directory = temporary ? Files.createTempDirectory("restart-benchmark") : Path.of(args[1]);
+        try {
+            long start = System.nanoTime();
+            try (DurableConcurrentBinarySearchTree<Integer> durable = DurableConcurrentBinarySearchTree.open(directory,
+                    ElementCodec.INTEGER, new ConcurrentBinarySearchTree<Integer>(false), 0)) {
+                List<Integer> batch = new ArrayList<>(BATCH);
+                for (int i = 0; i < keyCount; i++) {
+                    // an odd multiplier is a bijection on int, so the keys are distinct but arrive in no particular order
+                    batch.add(i * 0x9E3779B9);
+                    if (batch.size() == BATCH || i == keyCount - 1) {
+                        durable.insertAll(batch);
+                        batch.clear();
+                    }
+                }
+            }
+            System.out.println(String.format("%d keys logged in %.1f ms", keyCount, (System.nanoTime() - start) / 1e6));
+
+            reopen("replaying the log", directory, keyCount, true);
+            ConcurrentBinarySearchTree<Integer> tree = reopen("loading the snapshot", directory, keyCount, false);
+
+            Path keyFile = directory.resolve("keys.sorted");
+            SortedKeyFile.writeInts(keyFile, tree.snapshot());
+            start = System.nanoTime();
+            SortedKeyFile keys = SortedKeyFile.open(keyFile);
+            ConcurrentBinarySearchTree<Integer> loaded = new ConcurrentBinarySearchTree<>(false);
+            keys.loadInto(loaded);
+            long nanos = System.nanoTime() - start;
+            if (loaded.size() != keyCount || !keys.contains(0) || keys.contains(1))
+                throw new IllegalStateException("the sorted key file does not hold the keys written to it");
+            System.out.println(String.format("  open by %-22s %10.1f ms, %.2f bytes per key", "mapping sorted keys", nanos / 1e6,
+                    (double) Files.size(keyFile) / keyCount));
+        } finally {
+            if (temporary)
+                delete(directory);
+        }
+    }
+
+    /* Opens the directory and reports how long it took; with checkpoint set, takes one before closing again. Returns the
+     * tree that was recovered. */
+    private static ConcurrentBinarySearchTree<Integer> reopen(String name, Path directory, int keyCount, boolean checkpoint) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        DurableConcurrentBinarySearchTree<Integer> durable = DurableConcurrentBinarySearchTree.open(directory, ElementCodec.INTEGER,
+                new ConcurrentBinarySearchTree<Integer>(false), 0);
+        long nanos = System.nanoTime() - start;
+        if (durable.getTree().size() != keyCount)
+            throw new IllegalStateException(name + " recovered " + durable.getTree().size() + " of " + keyCount + " keys");
+        System.out.println(String.format("  open by %-22s %10.1f ms", name, nanos / 1e6));
+        if (checkpoint)
+            durable.checkpoint();
+        durable.close();
+        return durable.getTree();
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+}
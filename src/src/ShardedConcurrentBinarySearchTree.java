@@ -0,0 +1,399 @@
+package src;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/***
+ * Splits the key space into ranges, each held by its own ConcurrentBinarySearchTree, so that writers in different
+ * ranges never touch the same nodes, counters or gates. Operations are routed through a small boundary table that is
+ * only ever replaced as a whole, so routing is a binary search over an array that readers never have to lock.
+ * The table adapts to the load while the tree is in use. Each call to rebalance, made by hand or by a daemon
+ * rebalancer thread every so often, looks at how many writes and how many restarted descents each shard has seen since
+ * the last look: a shard that takes much more than its share of the writes, or whose writers keep getting in each
+ * other's way, is split at its median, and two neighbouring shards that both see next to no writes are merged again.
+ * Inserts and removes only count their writes and never do any of this themselves.
+ * Moving elements between shards only holds up writers to the shards involved, and only for as long as it takes to
+ * copy them out and bulk load them into the new shards; every shard has its own writers gate, which the move closes.
+ * Lookups never wait. A shard that has been split or merged is retired and left as it was, and a lookup that finds its
+ * shard retired looks again in the new one.
+ * @param <E>
+ */
+public class ShardedConcurrentBinarySearchTree<E extends Comparable<E>> implements Iterable<E> {
+    /* A shard smaller than this is not worth splitting. */
+    private static final int MIN_SPLIT_SIZE = 64;
+
+    /* A shard counts as contended once more than one in this many of its writes had to start over. */
+    private static final int CONTENDED_RESTART_RATIO = 64;
+
+    private final class Shard {
+        private final ConcurrentBinarySearchTree<E> tree = new ConcurrentBinarySearchTree<E>(false);
+        private final Epoch writers = new Epoch();
+        private final LongAdder writes = new LongAdder();
+
+        /* Set, while the shard's gate is closed, before the table without it is published. Once set the tree does not
+         * change again. */
+        private volatile boolean retired;
+
+        /* What the last rebalance saw; only read and written by the thread doing a rebalance. */
+        private long writesSeen;
+        private long restartsSeen;
+    }
+
+    /* The boundary table. Shard i holds the elements from lowerBounds[i], inclusive, up to lowerBounds[i + 1]; the
+     * first shard has no lower bound, so lowerBounds[0] is null. Never changed once published. */
+    private final class Layout {
+        private final List<E> lowerBounds;
+        private final List<Shard> shards;
+
+        private Layout(List<E> lowerBounds, List<Shard> shards) {
+            this.lowerBounds = lowerBounds;
+            this.shards = shards;
+        }
+
+        private int indexFor(E element) {
+            int low = 1, high = lowerBounds.size() - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                if (lowerBounds.get(middle).compareTo(element) <= 0)
+                    low = middle + 1;
+                else
+                    high = middle - 1;
+            }
+            return low - 1;
+        }
+    }
+
+    private volatile Layout layout;
+    private final AtomicBoolean rebalancing = new AtomicBoolean();
+    private final int maxShards;
+    private Rebalancer rebalancer;
+
+    /***
+     * Starts with a single shard, which rebalancing splits as the load calls for it, into at most four shards per core.
+     */
+    public ShardedConcurrentBinarySearchTree() {
+        this(Collections.emptyList(), 4 * Runtime.getRuntime().availableProcessors());
+    }
+
+    /***
+     * @param boundaries where to split the key space to begin with, in ascending order; each is the smallest element of
+     *                   the shard it starts
+     * @param maxShards how many shards rebalancing may split the key space into
+     */
+    public ShardedConcurrentBinarySearchTree(Collection<? extends E> boundaries, int maxShards) {
+        if (maxShards < boundaries.size() + 1)
+            throw new IllegalArgumentException("maxShards is smaller than the number of shards to begin with");
+        ArrayList<E> lowerBounds = new ArrayList<>();
+        ArrayList<Shard> shards = new ArrayList<>();
+        lowerBounds.add(null);
+        shards.add(new Shard());
+        for (E boundary : boundaries) {
+            E previous = lowerBounds.get(lowerBounds.size() - 1);
+            if (previous != null && previous.compareTo(boundary) >= 0)
+                throw new IllegalArgumentException("boundaries are not in strictly ascending order: " + boundary + " after " + previous);
+            lowerBounds.add(boundary);
+            shards.add(new Shard());
+        }
+        this.layout = new Layout(lowerBounds, shards);
+        this.maxShards = maxShards;
+    }
+
+    public void insert(E element) throws InterruptedException {
+        Shard shard = enter(element);
+        try {
+            shard.tree.insert(element);
+        } finally {
+            shard.writers.exit();
+        }
+        shard.writes.increment();
+    }
+
+    /***
+     * @return true if an element equal to the given one was found and removed
+     */
+    public boolean remove(E element) throws InterruptedException {
+        Shard shard = enter(element);
+        boolean removed;
+        try {
+            removed = shard.tree.remove(element);
+        } finally {
+            shard.writers.exit();
+        }
+        shard.writes.increment();
+        return removed;
+    }
+
+    /***
+     * Lock-free like the lookups of the shards. The shard is checked after the lookup: if it was retired by then, the
+     * elements may have moved on, and the lookup is repeated on the new table. A shard that is still live afterwards
+     * was live, and so up to date, for the whole lookup.
+     * @return true if an element equal to the given one is in the tree
+     */
+    public boolean contains(E element) {
+        while (true) {
+            Layout current = layout;
+            Shard shard = current.shards.get(current.indexFor(element));
+            boolean found = shard.tree.contains(element);
+            if (!shard.retired)
+                return found;
+            Thread.onSpinWait();
+        }
+    }
+
+    /***
+     * Sum of the sizes of the shards, with the same guarantees as ConcurrentBinarySearchTree.size.
+     */
+    public long size() {
+        long size = 0;
+        for (Shard shard : layout.shards) {
+            size += shard.tree.size();
+        }
+        return size;
+    }
+
+    public boolean isEmpty() {
+        for (Shard shard : layout.shards) {
+            if (!shard.tree.isEmpty())
+                return false;
+        }
+        return true;
+    }
+
+    public int shardCount() {
+        return layout.shards.size();
+    }
+
+    /***
+     * @return the smallest element of every shard but the first, in order
+     */
+    public List<E> boundaries() {
+        List<E> lowerBounds = layout.lowerBounds;
+        return Collections.unmodifiableList(lowerBounds.subList(1, lowerBounds.size()));
+    }
+
+    /***
+     * Weakly consistent, like the iterators of the shards: it walks the shards of the table current when it was made,
+     * one after the other, and may or may not see changes made after that.
+     */
+    @Override
+    public Iterator<E> iterator() {
+        Iterator<Shard> shards = layout.shards.iterator();
+        return new Iterator<E>() {
+            private Iterator<E> current = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!current.hasNext() && shards.hasNext()) {
+                    current = shards.next().tree.iterator();
+                }
+                return current.hasNext();
+            }
+
+            @Override
+            public E next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                return current.next();
+            }
+        };
+    }
+
+    /***
+     * Starts a daemon thread that calls rebalance between pauses, so that the table follows the load.
+     * @param pauseMillis how long the rebalancer sleeps between two looks at the load
+     * @throws IllegalStateException if the rebalancer is running already
+     */
+    public synchronized void startRebalancer(long pauseMillis) {
+        if (pauseMillis < 0)
+            throw new IllegalArgumentException("pauseMillis must not be negative");
+        if (rebalancer != null)
+            throw new IllegalStateException("the rebalancer is running already");
+        rebalancer = new Rebalancer(TimeUnit.MILLISECONDS.toNanos(pauseMillis));
+        rebalancer.start();
+    }
+
+    /***
+     * Stops the rebalancer and waits for a rebalance it is in the middle of to finish. The table is left as it is.
+     */
+    public synchronized void stopRebalancer() throws InterruptedException {
+        Rebalancer stopping = rebalancer;
+        if (stopping == null)
+            return;
+        rebalancer = null;
+        stopping.stopping = true;
+        LockSupport.unpark(stopping);
+        stopping.join();
+    }
+
+    public synchronized boolean isRebalancerRunning() {
+        return rebalancer != null;
+    }
+
+    /* Calls rebalance in paced passes until asked to stop. */
+    private final class Rebalancer extends Thread {
+        private final long pauseNanos;
+        private volatile boolean stopping;
+
+        private Rebalancer(long pauseNanos) {
+            super("shard-rebalancer");
+            setDaemon(true);
+            this.pauseNanos = pauseNanos;
+        }
+
+        @Override
+        public void run() {
+            while (!stopping) {
+                LockSupport.parkNanos(this, pauseNanos);
+                if (!stopping)
+                    rebalance();
+            }
+        }
+    }
+
+    /***
+     * Looks at the writes and restarts each shard has seen since the last look and splits the busiest shard that needs
+     * it, or else merges the quietest pair of neighbours that can do without being apart. At most one shard is changed
+     * per call. Returns at once if another thread is rebalancing.
+     */
+    public void rebalance() {
+        if (!rebalancing.compareAndSet(false, true))
+            return;
+        try {
+            Layout current = layout;
+            int count = current.shards.size();
+            long[] writes = new long[count];
+            long[] restarts = new long[count];
+            long totalWrites = 0;
+            for (int i = 0; i < count; i++) {
+                Shard shard = current.shards.get(i);
+                long shardWrites = shard.writes.sum();
+                long shardRestarts = shard.tree.restarts();
+                writes[i] = shardWrites - shard.writesSeen;
+                restarts[i] = shardRestarts - shard.restartsSeen;
+                shard.writesSeen = shardWrites;
+                shard.restartsSeen = shardRestarts;
+                totalWrites += writes[i];
+            }
+            if (totalWrites == 0)
+                return;
+
+            int hottest = -1;
+            if (count < maxShards) {
+                for (int i = 0; i < count; i++) {
+                    boolean busy = writes[i] * count > 2 * totalWrites;
+                    boolean contended = restarts[i] * CONTENDED_RESTART_RATIO > writes[i];
+                    if ((busy || contended) && current.shards.get(i).tree.size() >= MIN_SPLIT_SIZE
+                            && (hottest < 0 || writes[i] > writes[hottest]))
+                        hottest = i;
+                }
+            }
+            if (hottest >= 0 && split(current, hottest))
+                return;
+
+            int coldest = -1;
+            for (int i = 0; i + 1 < count; i++) {
+                long pairWrites = writes[i] + writes[i + 1];
+                boolean quiet = pairWrites * count * 2 < totalWrites;
+                boolean contended = (restarts[i] + restarts[i + 1]) * CONTENDED_RESTART_RATIO > pairWrites;
+                if (quiet && !contended && (coldest < 0 || pairWrites < writes[coldest] + writes[coldest + 1]))
+                    coldest = i;
+            }
+            if (coldest >= 0)
+                merge(current, coldest);
+        } finally {
+            rebalancing.set(false);
+        }
+    }
+
+    /* Enters the gate of the shard the element belongs in, going by a table in which that shard is still live. */
+    private Shard enter(E element) {
+        while (true) {
+            Layout current = layout;
+            Shard shard = current.shards.get(current.indexFor(element));
+            shard.writers.enter();
+            if (!shard.retired)
+                return shard;
+            shard.writers.exit();
+            Thread.onSpinWait();
+        }
+    }
+
+    /* Splits a shard in two at its median, or as near to it as equal elements allow, since equal elements have to stay
+     * in one shard. Returns false if all its elements are equal. */
+    private boolean split(Layout current, int index) {
+        Shard shard = current.shards.get(index);
+        boolean[] split = new boolean[1];
+        shard.writers.quiesce(() -> {
+            ArrayList<E> elements = new ArrayList<>((int) shard.tree.size());
+            shard.tree.forEach(elements::add);
+            int middle = splitPoint(elements);
+            if (middle < 0)
+                return;
+            Shard lower = loadedShard(elements.subList(0, middle));
+            Shard upper = loadedShard(elements.subList(middle, elements.size()));
+            ArrayList<E> lowerBounds = new ArrayList<>(current.lowerBounds);
+            ArrayList<Shard> shards = new ArrayList<>(current.shards);
+            lowerBounds.add(index + 1, elements.get(middle));
+            shards.set(index, lower);
+            shards.add(index + 1, upper);
+            shard.retired = true;
+            layout = new Layout(lowerBounds, shards);
+            split[0] = true;
+        });
+        return split[0];
+    }
+
+    /* Index of the first element of the upper half, the one nearest the middle that differs from the one before it. */
+    private int splitPoint(ArrayList<E> elements) {
+        int middle = elements.size() / 2;
+        for (int distance = 0; distance < elements.size(); distance++) {
+            int above = middle + distance, below = middle - distance;
+            if (above < elements.size() && above > 0 && elements.get(above).compareTo(elements.get(above - 1)) > 0)
+                return above;
+            if (below > 0 && below < elements.size() && elements.get(below).compareTo(elements.get(below - 1)) > 0)
+                return below;
+        }
+        return -1;
+    }
+
+    /* Merges a shard with the one after it. Both gates are closed for the move, always the lower one first; only the
+     * thread holding the rebalancing flag ever closes more than one. */
+    private void merge(Layout current, int index) {
+        Shard lower = current.shards.get(index);
+        Shard upper = current.shards.get(index + 1);
+        lower.writers.quiesce(() -> upper.writers.quiesce(() -> {
+            ArrayList<E> elements = new ArrayList<>((int) (lower.tree.size() + upper.tree.size()));
+            lower.tree.forEach(elements::add);
+            upper.tree.forEach(elements::add);
+            Shard merged = loadedShard(elements);
+            ArrayList<E> lowerBounds = new ArrayList<>(current.lowerBounds);
+            ArrayList<Shard> shards = new ArrayList<>(current.shards);
+            lowerBounds.remove(index + 1);
+            shards.remove(index + 1);
+            shards.set(index, merged);
+            lower.retired = true;
+            upper.retired = true;
+            layout = new Layout(lowerBounds, shards);
+        }));
+    }
+
+    /* A new shard built from elements in ascending order in one balanced pass. Nobody else can reach its tree yet, so
+     * the load never finds a node held and is never interrupted. */
+    private Shard loadedShard(List<E> sortedElements) {
+        Shard shard = new Shard();
+        try {
+            shard.tree.bulkLoad(sortedElements);
+        } catch (InterruptedException e) {
+            throw new IllegalStateException("loading a new shard was interrupted", e);
+        }
+        return shard;
+    }
+}
@@ -0,0 +1,305 @@
+package src;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractCollection;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.LongFunction;
+
+/***
+ * Compact file of int or long keys in ascending order, for handing the contents of a tree to another process on the
+ * same host. Keys are grouped in blocks of BLOCK_KEYS: the first key of every block is kept whole in an index at the
+ * end of the file, and the rest of the block is the gaps between neighbouring keys as varints, so dense keys take one
+ * or two bytes each.
+ * Opening a file maps it into memory and reads nothing but the fixed size trailer. The keys are then decoded straight
+ * from the mapped bytes, either into a tree with loadInto, which hands them to bulkLoad as they are decoded so that the
+ * only objects made are the keys themselves, or one at a time by contains, which finds the block by binary search over
+ * the index and scans at most one block, without building any tree.
+ * The whole file is mapped as one buffer, so it can be up to 2 GiB, several hundred million keys. The mapping goes
+ * away when the SortedKeyFile is garbage collected; nothing keeps the file open meanwhile.
+ * Layout, big endian:
+ *   header  magic, version, key width (4 or 8), 2 reserved bytes
+ *   blocks  per block, the gaps after its first key as unsigned varints
+ *   index   per block, its first key and the offset of its gaps, 8 bytes each
+ *   trailer key count, block count, index offset, magic
+ */
+public final class SortedKeyFile {
+    private static final int MAGIC = 0x43425346;
+    private static final byte FORMAT_VERSION = 1;
+    private static final int HEADER_BYTES = 8;
+    private static final int TRAILER_BYTES = Long.BYTES + Integer.BYTES + Long.BYTES + Integer.BYTES;
+    private static final int INDEX_ENTRY_BYTES = Long.BYTES + Long.BYTES;
+    /* Long enough that the index is a small part of the file, short enough that contains scans little. */
+    private static final int BLOCK_KEYS = 128;
+
+    private final Path path;
+    private final MappedByteBuffer mapped;
+    private final int keyWidth;
+    private final long count;
+    private final int blockCount;
+    private final int indexOffset;
+
+    private SortedKeyFile(Path path, MappedByteBuffer mapped, int keyWidth, long count, int blockCount, int indexOffset) {
+        this.path = path;
+        this.mapped = mapped;
+        this.keyWidth = keyWidth;
+        this.count = count;
+        this.blockCount = blockCount;
+        this.indexOffset = indexOffset;
+    }
+
+    /***
+     * Writes the keys to a new file, replacing any file already at the path only once the new one is complete.
+     * @param sortedKeys in strictly ascending order; a tree, or one of its snapshots for a consistent copy of a tree
+     *                   that is being written to
+     * @return the number of keys written
+     * @throws IllegalArgumentException if the keys are not in strictly ascending order
+     */
+    public static long writeInts(Path path, Iterable<Integer> sortedKeys) throws IOException {
+        return write(path, Integer.BYTES, sortedKeys);
+    }
+
+    /***
+     * Same as writeInts, for long keys.
+     */
+    public static long writeLongs(Path path, Iterable<Long> sortedKeys) throws IOException {
+        return write(path, Long.BYTES, sortedKeys);
+    }
+
+    /***
+     * Maps a file written by writeInts or writeLongs, checking its header and trailer but none of its keys.
+     * @throws IOException if the file cannot be read or is not a sorted key file
+     */
+    public static SortedKeyFile open(Path path) throws IOException {
+        MappedByteBuffer mapped;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE)
+                throw new IOException(path + " is too large to map");
+            if (size < HEADER_BYTES + TRAILER_BYTES)
+                throw new IOException(path + " is too short to be a sorted key file");
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        int size = mapped.capacity();
+        int keyWidth = mapped.get(Integer.BYTES + 1);
+        if (mapped.getInt(0) != MAGIC || mapped.getInt(size - Integer.BYTES) != MAGIC)
+            throw new IOException(path + " is not a sorted key file");
+        if (mapped.get(Integer.BYTES) != FORMAT_VERSION || keyWidth != Integer.BYTES && keyWidth != Long.BYTES)
+            throw new IOException(path + " has an unknown format");
+        int trailer = size - TRAILER_BYTES;
+        long count = mapped.getLong(trailer);
+        int blockCount = mapped.getInt(trailer + Long.BYTES);
+        long indexOffset = mapped.getLong(trailer + Long.BYTES + Integer.BYTES);
+        if (count < 0 || blockCount != (count + BLOCK_KEYS - 1) / BLOCK_KEYS || indexOffset < HEADER_BYTES
+                || indexOffset + (long) blockCount * INDEX_ENTRY_BYTES != trailer)
+            throw new IOException(path + " has a damaged trailer");
+        return new SortedKeyFile(path, mapped, keyWidth, count, blockCount, (int) indexOffset);
+    }
+
+    public long size() {
+        return count;
+    }
+
+    /***
+     * @return whether the file holds long keys rather than int keys
+     */
+    public boolean hasLongKeys() {
+        return keyWidth == Long.BYTES;
+    }
+
+    /***
+     * Looks the key up in the mapped file: a binary search over the first keys of the blocks, then a scan of the gaps
+     * of the one block that could hold it. Safe to call from any number of threads.
+     */
+    public boolean contains(long key) {
+        int low = 0, high = blockCount - 1;
+        // the last block whose first key is at most the key
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (firstKey(middle) <= key)
+                low = middle + 1;
+            else
+                high = middle - 1;
+        }
+        if (high < 0)
+            return false;
+        long current = firstKey(high);
+        int position = blockStart(high);
+        int end = blockEnd(high);
+        while (current < key && position < end) {
+            long gap = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = mapped.get(position++);
+                gap |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            current += gap;
+        }
+        return current == key;
+    }
+
+    /***
+     * Fills an empty tree with the int keys of the file, in one balanced build.
+     * @throws IllegalStateException if the file holds long keys or the tree is not empty
+     * @throws IllegalArgumentException if the file holds more keys than bulkLoad takes in one go
+     */
+    public void loadInto(ConcurrentBinarySearchTree<Integer> tree) throws InterruptedException {
+        if (keyWidth != Integer.BYTES)
+            throw new IllegalStateException(path + " holds long keys");
+        tree.bulkLoad(new Keys<>(key -> (int) key));
+    }
+
+    /***
+     * Same as loadInto, for a file of long keys.
+     */
+    public void loadLongsInto(ConcurrentBinarySearchTree<Long> tree) throws InterruptedException {
+        if (keyWidth != Long.BYTES)
+            throw new IllegalStateException(path + " holds int keys");
+        tree.bulkLoad(new Keys<>(Long::valueOf));
+    }
+
+    private long firstKey(int block) {
+        return mapped.getLong(indexOffset + block * INDEX_ENTRY_BYTES);
+    }
+
+    private int blockStart(int block) {
+        return (int) mapped.getLong(indexOffset + block * INDEX_ENTRY_BYTES + Long.BYTES);
+    }
+
+    private int blockEnd(int block) {
+        return block + 1 < blockCount ? blockStart(block + 1) : indexOffset;
+    }
+
+    /* The keys of the file as a collection for bulkLoad, decoded from the mapping on every pass over it, each pass
+     * with its own position so that they do not get in each other's way. */
+    private final class Keys<K> extends AbstractCollection<K> {
+        private final LongFunction<K> box;
+
+        private Keys(LongFunction<K> box) {
+            if (count > Integer.MAX_VALUE)
+                throw new IllegalArgumentException(path + " holds more keys than fit in one tree load");
+            this.box = box;
+        }
+
+        @Override
+        public int size() {
+            return (int) count;
+        }
+
+        @Override
+        public Iterator<K> iterator() {
+            return new Iterator<K>() {
+                private long read;
+                private long current;
+                private int position = HEADER_BYTES;
+
+                @Override
+                public boolean hasNext() {
+                    return read < count;
+                }
+
+                @Override
+                public K next() {
+                    if (!hasNext())
+                        throw new NoSuchElementException();
+                    if (read % BLOCK_KEYS == 0) {
+                        int block = (int) (read / BLOCK_KEYS);
+                        current = firstKey(block);
+                        position = blockStart(block);
+                    } else {
+                        long gap = 0;
+                        int shift = 0;
+                        byte b;
+                        do {
+                            b = mapped.get(position++);
+                            gap |= (long) (b & 0x7F) << shift;
+                            shift += 7;
+                        } while (b < 0);
+                        current += gap;
+                    }
+                    read++;
+                    return box.apply(current);
+                }
+            };
+        }
+    }
+
+    private static long write(Path path, int keyWidth, Iterable<? extends Number> sortedKeys) throws IOException {
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        long[] index = new long[2 * 64];
+        int blockCount = 0;
+        long count = 0;
+        // bytes already drained to the channel, so the file offset of the next byte put is offset + position
+        long offset = 0;
+        long previous = 0;
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16).order(ByteOrder.BIG_ENDIAN);
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE)) {
+            buffer.putInt(MAGIC).put(FORMAT_VERSION).put((byte) keyWidth).putShort((short) 0);
+            for (Number number : sortedKeys) {
+                long key = keyWidth == Integer.BYTES ? number.intValue() : number.longValue();
+                if (count > 0 && key <= previous)
+                    throw new IllegalArgumentException("keys are not in strictly ascending order: " + key + " after " + previous);
+                if (buffer.remaining() < 10) {
+                    offset += drain(buffer, channel);
+                }
+                if (count % BLOCK_KEYS == 0) {
+                    if (2 * blockCount == index.length)
+                        index = Arrays.copyOf(index, index.length * 2);
+                    index[2 * blockCount] = key;
+                    index[2 * blockCount + 1] = offset + buffer.position();
+                    blockCount++;
+                } else {
+                    // ascending keys have positive gaps, which fit in an unsigned long even across the whole long range
+                    long gap = key - previous;
+                    while ((gap & ~0x7FL) != 0) {
+                        buffer.put((byte) (gap & 0x7F | 0x80));
+                        gap >>>= 7;
+                    }
+                    buffer.put((byte) gap);
+                }
+                previous = key;
+                count++;
+            }
+            offset += drain(buffer, channel);
+            long indexOffset = offset;
+            for (int block = 0; block < blockCount; block++) {
+                if (buffer.remaining() < INDEX_ENTRY_BYTES)
+                    drain(buffer, channel);
+                buffer.putLong(index[2 * block]).putLong(index[2 * block + 1]);
+            }
+            if (buffer.remaining() < TRAILER_BYTES)
+                drain(buffer, channel);
+            buffer.putLong(count).putInt(blockCount).putLong(indexOffset).putInt(MAGIC);
+            drain(buffer, channel);
+            channel.force(true);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temporary);
+            throw e;
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return count;
+    }
+
+    /* Writes out everything in the buffer and empties it; returns how many bytes that was. */
+    private static int drain(ByteBuffer buffer, FileChannel channel) throws IOException {
+        buffer.flip();
+        int bytes = buffer.remaining();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+        return bytes;
+    }
+}
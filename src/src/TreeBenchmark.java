@@ -0,0 +1,504 @@
+package src;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.SortedSet;
+import java.util.SplittableRandom;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/***
+ * Throughput and latency benchmark for the trees in this project and the JDK's ordered sets, run over every combination
+ * of the parameters given:
+ *  targets    bst, cbst (ConcurrentBinarySearchTree, quiet), combining (cbst behind a FlatCombiningTree),
+ *             sharded (ShardedConcurrentBinarySearchTree, starting from one shard, rebalanced every 10 ms),
+ *             filtered (cbst with a counting Bloom filter sized for the whole range),
+ *             cached (cbst with a lookup cache holding 1% of the range),
+ *             multiset (cbst counting repeated keys on one node),
+ *             lazy (multiset whose removes only mark nodes, unlinked by its maintenance thread),
+ *             balanced (BalancedConcurrentBinarySearchTree), lockfree (LockFreeBinarySearchTree),
+ *             int (IntConcurrentBinarySearchTree), long and offheap (LongConcurrentBinarySearchTree on and off the heap),
+ *             skiplist (ConcurrentSkipListSet), treeset (synchronized TreeSet)
+ *  threads    number of worker threads
+ *  range      keys are drawn from [0, range); every run starts with a random half of them already in the set
+ *  dist       uniform, zipf (exponent 0.99, hottest keys spread over the range) or sorted (each thread walks the range
+ *             in order from its own starting point)
+ *  mix        read/insert/remove percentages, e.g. 90/5/5
+ * Each run warms up, then every thread times each of its operations with System.nanoTime into its own
+ * LatencyHistogram, and one line per run reports throughput and latency percentiles.
+ * Arguments are name=value pairs with comma separated values, for example
+ *  TreeBenchmark targets=cbst,skiplist threads=1,4 range=1000,1000000 dist=uniform,zipf mix=90/5/5,50/25/25 seconds=3
+ * BST is only run on mixes without removes, because its remove can leave node locks held when it meets a missing
+ * subtree, and sorted input on a large range makes its recursive insert overflow the stack.
+ * The targets, key sources and prefill are shared with the JMH benchmarks under jmh/, which run the same workloads
+ * with JMH's forking, warmup and statistics; this driver stays as a quick smoke run that needs no build.
+ */
+public class TreeBenchmark {
+
+    interface Target {
+        void insert(Integer key) throws InterruptedException;
+
+        void remove(Integer key) throws InterruptedException;
+
+        boolean contains(Integer key);
+
+        /* Stops whatever the target runs in the background, once its run is over. */
+        default void close() throws InterruptedException {
+        }
+    }
+
+    interface KeySource {
+        int next();
+    }
+
+    private static final String DEFAULT_TARGETS = "bst,cbst,balanced,int,lockfree,skiplist,treeset";
+    private static final String DEFAULT_THREADS = "1,4";
+    private static final String DEFAULT_RANGES = "1000,100000";
+    private static final String DEFAULT_DISTRIBUTIONS = "uniform,zipf,sorted";
+    private static final String DEFAULT_MIXES = "90/5/5,50/25/25";
+    private static final double ZIPF_EXPONENT = 0.99;
+    private static final int BST_MAX_RANGE = 100_000;
+
+    public static void main(String[] args) throws InterruptedException {
+        String[] targets = option(args, "targets", DEFAULT_TARGETS).split(",");
+        int[] threadCounts = integers(option(args, "threads", DEFAULT_THREADS));
+        int[] ranges = integers(option(args, "range", DEFAULT_RANGES));
+        String[] distributions = option(args, "dist", DEFAULT_DISTRIBUTIONS).split(",");
+        String[] mixes = option(args, "mix", DEFAULT_MIXES).split(",");
+        double seconds = Double.parseDouble(option(args, "seconds", "2"));
+        double warmupSeconds = Double.parseDouble(option(args, "warmup", "1"));
+
+        System.out.printf("%-9s %7s %9s %-8s %-9s %10s %9s %9s %9s %11s%n",
+                "target", "threads", "range", "dist", "mix", "Mops/s", "p50 ns", "p99 ns", "p99.9 ns", "max ns");
+        for (int range : ranges) {
+            Integer[] boxedKeys = new Integer[range];
+            for (int key = 0; key < range; key++) {
+                boxedKeys[key] = key;
+            }
+            for (String distribution : distributions) {
+                double[] zipfTable = distribution.equals("zipf") ? zipfCumulative(range) : null;
+                int[] zipfScramble = distribution.equals("zipf") ? scramble(range) : null;
+                for (String mix : mixes) {
+                    int[] percentages = integers(mix.replace('/', ','));
+                    if (percentages.length != 3 || percentages[0] + percentages[1] + percentages[2] != 100)
+                        throw new IllegalArgumentException("mix must be read/insert/remove adding up to 100: " + mix);
+                    for (int threadCount : threadCounts) {
+                        for (String targetName : targets) {
+                            String skipReason = skipReason(targetName, range, distribution, percentages);
+                            if (skipReason != null) {
+                                System.out.printf("%-9s %7d %9d %-8s %-9s skipped, %s%n", targetName, threadCount, range, distribution, mix, skipReason);
+                                continue;
+                            }
+                            Target target = createTarget(targetName, range);
+                            prefill(target, boxedKeys);
+                            run(target, threadCount, boxedKeys, distribution, zipfTable, zipfScramble, percentages, warmupSeconds);
+                            LatencyHistogram latencies = new LatencyHistogram();
+                            long operations = run(target, threadCount, boxedKeys, distribution, zipfTable, zipfScramble, percentages, seconds, latencies);
+                            System.out.printf("%-9s %7d %9d %-8s %-9s %10.3f %9d %9d %9d %11d%n",
+                                    targetName, threadCount, range, distribution, mix,
+                                    operations / seconds / 1e6,
+                                    latencies.percentile(50), latencies.percentile(99), latencies.percentile(99.9), latencies.max());
+                            target.close();
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    static String skipReason(String targetName, int range, String distribution, int[] percentages) {
+        if (!targetName.equals("bst"))
+            return null;
+        if (percentages[2] > 0)
+            return "BST remove is not safe under concurrency";
+        if (distribution.equals("sorted") && range > BST_MAX_RANGE)
+            return "sorted keys would overflow BST's recursive insert";
+        return null;
+    }
+
+    static Target createTarget(String name, int range) {
+        switch (name) {
+            case "bst": {
+                BST<Integer> tree = new BST<>();
+                return new Target() {
+                    public void insert(Integer key) throws InterruptedException {
+                        tree.insert(key);
+                    }
+
+                    public void remove(Integer key) throws InterruptedException {
+                        tree.remove(key);
+                    }
+
+                    public boolean contains(Integer key) {
+                        return tree.contains(key);
+                    }
+                };
+            }
+            case "cbst": {
+                ConcurrentBinarySearchTree<Integer> tree = new ConcurrentBinarySearchTree<>(false);
+                return new Target() {
+                    public void insert(Integer key) throws InterruptedException {
+                        tree.insert(key);
+                    }
+
+                    public void remove(Integer key) throws InterruptedException {
+                        tree.remove(key);
+                    }
+
+                    public boolean contains(Integer key) {
+                        return tree.contains(key);
+                    }
+                };
+            }
+            case "multiset": {
+                ConcurrentBinarySearchTree<Integer> tree = ConcurrentBinarySearchTree.builder().multiset().build();
+                return new Target() {
+                    public void insert(Integer key) throws InterruptedException {
+                        tree.insert(key);
+                    }
+
+                    public void remove(Integer key) throws InterruptedException {
+                        tree.remove(key);
+                    }
+
+                    public boolean contains(Integer key) {
+                        return tree.contains(key);
+                    }
+                };
+            }
+            case "lazy": {
+                ConcurrentBinarySearchTree<Integer> tree = ConcurrentBinarySearchTree.builder().multiset().build();
+                tree.startMaintenance(1, 1024);
+                return new Target() {
+                    public void insert(Integer key) throws InterruptedException {
+                        tree.insert(key);
+                    }
+
+                    public void remove(Integer key) throws InterruptedException {
+                        tree.remove(key);
+                    }
+
+                    public boolean contains(Integer key) {
+                        return tree.contains(key);
+                    }
+
+                    public void close() throws InterruptedException {
+                        tree.stopMaintenance();
+                    }
+                };
+            }
+            case "filtered": {
+                ConcurrentBinarySearchTree<Integer> tree = ConcurrentBinarySearchTree.builder().filter(range).build();
+                return new Target() {
+                    public void insert(Integer key) throws InterruptedException {
+                        tree.insert(key);
+                    }
+
+                    public void remove(Integer key) throws InterruptedException {
+                        tree.remove(key);
+                    }
+
+                    public boolean contains(Integer key) {
+                        return tree.contains(key);
+                    }
+                };
+            }
+            case "cached": {
+                ConcurrentBinarySearchTree<Integer> tree =
+                        ConcurrentBinarySearchTree.builder().cache(Math.max(range / 100, 16)).build();
+                return new Target() {
+                    public void insert(Integer key) throws InterruptedException {
+                        tree.insert(key);
+                    }
+
+                    public void remove(Integer key) throws InterruptedException {
+                        tree.remove(key);
+                    }
+
+                    public boolean contains(Integer key) {
+                        return tree.contains(key);
+                    }
+                };
+            }
+            case "combining": {
+                FlatCombiningTree<Integer> tree = new FlatCombiningTree<>(new ConcurrentBinarySearchTree<Integer>(false));
+                return new Target() {
+                    public void insert(Integer key) throws InterruptedException {
+                        tree.insert(key);
+                    }
+
+                    public void remove(Integer key) throws InterruptedException {
+                        tree.remove(key);
+                    }
+
+                    public boolean contains(Integer key) {
+                        return tree.contains(key);
+                    }
+                };
+            }
+            case "sharded": {
+                ShardedConcurrentBinarySearchTree<Integer> tree = new ShardedConcurrentBinarySearchTree<>();
+                tree.startRebalancer(10);
+                return new Target() {
+                    public void insert(Integer key) throws InterruptedException {
+                        tree.insert(key);
+                    }
+
+                    public void remove(Integer key) throws InterruptedException {
+                        tree.remove(key);
+                    }
+
+                    public boolean contains(Integer key) {
+                        return tree.contains(key);
+                    }
+
+                    public void close() throws InterruptedException {
+                        tree.stopRebalancer();
+                    }
+                };
+            }
+            case "balanced": {
+                BalancedConcurrentBinarySearchTree<Integer> tree = new BalancedConcurrentBinarySearchTree<>();
+                return new Target() {
+                    public void insert(Integer key) {
+                        tree.insert(key);
+                    }
+
+                    public void remove(Integer key) {
+                        tree.remove(key);
+                    }
+
+                    public boolean contains(Integer key) {
+                        return tree.contains(key);
+                    }
+                };
+            }
+            case "lockfree": {
+                LockFreeBinarySearchTree tree = new LockFreeBinarySearchTree();
+                return new Target() {
+                    public void insert(Integer key) {
+                        tree.insert(key.intValue());
+                    }
+
+                    public void remove(Integer key) {
+                        tree.remove(key.intValue());
+                    }
+
+                    public boolean contains(Integer key) {
+                        return tree.contains(key.intValue());
+                    }
+                };
+            }
+            case "int": {
+                IntConcurrentBinarySearchTree tree = new IntConcurrentBinarySearchTree();
+                return new Target() {
+                    public void insert(Integer key) throws InterruptedException {
+                        tree.insert(key);
+                    }
+
+                    public void remove(Integer key) throws InterruptedException {
+                        tree.remove(key);
+                    }
+
+                    public boolean contains(Integer key) {
+                        return tree.contains(key);
+                    }
+                };
+            }
+            case "long":
+            case "offheap": {
+                LongConcurrentBinarySearchTree tree = new LongConcurrentBinarySearchTree(name.equals("offheap"));
+                return new Target() {
+                    public void insert(Integer key) throws InterruptedException {
+                        tree.insert(key);
+                    }
+
+                    public void remove(Integer key) throws InterruptedException {
+                        tree.remove(key);
+                    }
+
+                    public boolean contains(Integer key) {
+                        return tree.contains(key);
+                    }
+                };
+            }
+            case "skiplist":
+                return setTarget(new ConcurrentSkipListSet<>());
+            case "treeset":
+                return setTarget(Collections.synchronizedSortedSet(new TreeSet<>()));
+            default:
+                throw new IllegalArgumentException("unknown target " + name);
+        }
+    }
+
+    private static Target setTarget(SortedSet<Integer> set) {
+        return new Target() {
+            public void insert(Integer key) {
+                set.add(key);
+            }
+
+            public void remove(Integer key) {
+                set.remove(key);
+            }
+
+            public boolean contains(Integer key) {
+                return set.contains(key);
+            }
+        };
+    }
+
+    /* Inserts a random half of the range from one thread, in random order so that unbalanced trees start out with a
+     * reasonable shape. */
+    static void prefill(Target target, Integer[] boxedKeys) throws InterruptedException {
+        Integer[] shuffled = boxedKeys.clone();
+        Collections.shuffle(Arrays.asList(shuffled));
+        for (int i = 0; i < shuffled.length / 2; i++) {
+            target.insert(shuffled[i]);
+        }
+    }
+
+    private static long run(Target target, int threadCount, Integer[] boxedKeys, String distribution, double[] zipfTable, int[] zipfScramble,
+                            int[] percentages, double seconds) throws InterruptedException {
+        return run(target, threadCount, boxedKeys, distribution, zipfTable, zipfScramble, percentages, seconds, null);
+    }
+
+    /***
+     * Runs the workload for the given time and returns how many operations completed.
+     * @param latencies receives every thread's latencies, or null to skip timing individual operations
+     */
+    private static long run(Target target, int threadCount, Integer[] boxedKeys, String distribution, double[] zipfTable, int[] zipfScramble,
+                            int[] percentages, double seconds, LatencyHistogram latencies) throws InterruptedException {
+        int readLimit = percentages[0];
+        int insertLimit = percentages[0] + percentages[1];
+        Thread[] threads = new Thread[threadCount];
+        long[] operations = new long[threadCount];
+        LatencyHistogram[] threadLatencies = new LatencyHistogram[threadCount];
+        AtomicBoolean stop = new AtomicBoolean();
+        for (int t = 0; t < threadCount; t++) {
+            final int threadIndex = t;
+            threadLatencies[t] = new LatencyHistogram();
+            KeySource keys = keySource(distribution, boxedKeys.length, zipfTable, zipfScramble, threadIndex, threadCount);
+            SplittableRandom random = new SplittableRandom(31L * threadIndex + 17);
+            threads[t] = new Thread(() -> {
+                LatencyHistogram histogram = threadLatencies[threadIndex];
+                long done = 0;
+                try {
+                    while (true) {
+                        // only look at the flag every 64 operations, so the check does not show up in the timings
+                        if ((done & 63) == 0 && stop.get())
+                            break;
+                        Integer key = boxedKeys[keys.next()];
+                        int dice = random.nextInt(100);
+                        long start = latencies != null ? System.nanoTime() : 0;
+                        if (dice < readLimit) {
+                            target.contains(key);
+                        } else if (dice < insertLimit) {
+                            target.insert(key);
+                        } else {
+                            target.remove(key);
+                        }
+                        if (latencies != null)
+                            histogram.record(System.nanoTime() - start);
+                        done++;
+                    }
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+                operations[threadIndex] = done;
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        Thread.sleep(Math.round(seconds * 1000));
+        stop.set(true);
+        long total = 0;
+        for (int t = 0; t < threadCount; t++) {
+            threads[t].join();
+            total += operations[t];
+            if (latencies != null)
+                latencies.add(threadLatencies[t]);
+        }
+        return total;
+    }
+
+    static KeySource keySource(String distribution, int range, double[] zipfTable, int[] zipfScramble, int threadIndex, int threadCount) {
+        SplittableRandom random = new SplittableRandom(7919L * threadIndex + 1);
+        switch (distribution) {
+            case "uniform":
+                return () -> random.nextInt(range);
+            case "zipf":
+                return () -> zipfScramble[zipfRank(zipfTable, random.nextDouble())];
+            case "sorted": {
+                int[] position = {(int) ((long) range * threadIndex / threadCount)};
+                return () -> {
+                    int key = position[0];
+                    position[0] = key + 1 == range ? 0 : key + 1;
+                    return key;
+                };
+            }
+            default:
+                throw new IllegalArgumentException("unknown distribution " + distribution);
+        }
+    }
+
+    /* Cumulative probabilities of ranks 0 .. range-1 under a Zipf distribution. */
+    static double[] zipfCumulative(int range) {
+        double[] cumulative = new double[range];
+        double sum = 0;
+        for (int rank = 0; rank < range; rank++) {
+            sum += 1.0 / Math.pow(rank + 1, ZIPF_EXPONENT);
+            cumulative[rank] = sum;
+        }
+        for (int rank = 0; rank < range; rank++) {
+            cumulative[rank] /= sum;
+        }
+        return cumulative;
+    }
+
+    private static int zipfRank(double[] cumulative, double uniform) {
+        int low = 0, high = cumulative.length - 1;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (cumulative[middle] < uniform)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        return low;
+    }
+
+    /* Maps Zipf ranks to keys, so the hot keys are spread over the tree instead of all sitting at its left edge. */
+    static int[] scramble(int range) {
+        int[] keys = new int[range];
+        for (int i = 0; i < range; i++) {
+            keys[i] = i;
+        }
+        SplittableRandom random = new SplittableRandom(42);
+        for (int i = range - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int swap = keys[i];
+            keys[i] = keys[j];
+            keys[j] = swap;
+        }
+        return keys;
+    }
+
+    private static String option(String[] args, String name, String defaultValue) {
+        for (String arg : args) {
+            if (arg.startsWith(name + "="))
+                return arg.substring(name.length() + 1);
+        }
+        return defaultValue;
+    }
+
+    private static int[] integers(String commaSeparated) {
+        String[] parts = commaSeparated.split(",");
+        int[] values = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            values[i] = Integer.parseInt(parts[i].trim());
+        }
+        return values;
+    }
+}
@@ -0,0 +1,295 @@
+package src;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/***
+ * Metrics of one ConcurrentBinarySearchTree: latency histograms of insert, remove and contains, how often and how long
+ * writers waited for a held node at each depth, how deep operations went, and how many had to start over, were
+ * given up on an interrupt or were shed because their time ran out. The tree only records anything while its metrics
+ * are enabled; with them disabled the cost is one read of a field per operation.
+ * Waits are only timed when a node is actually found held, so the clock is not read on the way down otherwise. Batch
+ * operations are not timed one element at a time, but their waits and retries are counted.
+ * The metrics also count how often each node is locked and fought over, which contentionReport renders as a heat map
+ * over the tree. Those counts are kept here, keyed by node, rather than on the nodes, so a tree whose metrics are off
+ * pays nothing for them.
+ * register publishes the metrics as an MXBean, from which every getter reads the current values.
+ */
+public class TreeMetrics implements TreeMetricsMXBean {
+    /* Depths from here on are added into the last slot. */
+    private static final int MAX_DEPTH = 64;
+
+    /* One in this many node acquisitions is counted, and the counts are scaled back up when read. Conflicts are rarer
+     * and already slow, so every one of them is counted. */
+    private static final int ACQUISITION_SAMPLING = 16;
+
+    /* Nodes counted before the counts of unlinked nodes are first looked for and dropped. */
+    private static final int MIN_PRUNE_AT = 1 << 12;
+
+    private final ConcurrentBinarySearchTree<?> tree;
+
+    private volatile ConcurrentLatencyHistogram insertLatency = new ConcurrentLatencyHistogram();
+    private volatile ConcurrentLatencyHistogram removeLatency = new ConcurrentLatencyHistogram();
+    private volatile ConcurrentLatencyHistogram containsLatency = new ConcurrentLatencyHistogram();
+    private volatile LongAdder[] lockWaits = adders();
+    private volatile LongAdder[] lockWaitNanos = adders();
+    private volatile LongAdder[] traversalDepths = adders();
+    private volatile LongAdder aborts = new LongAdder();
+    private volatile long retriesAtReset;
+    private volatile long[] timeoutsAtReset;
+
+    /* Contention counts per node. Once more nodes are counted than pruneAt, the next insert or remove to record its
+     * latency, which holds no node then, drops the counts of nodes that are no longer in the tree. */
+    private volatile ConcurrentHashMap<Object, Integer> sampledAcquisitions = new ConcurrentHashMap<>();
+    private volatile ConcurrentHashMap<Object, Integer> conflicts = new ConcurrentHashMap<>();
+    private volatile int pruneAt = MIN_PRUNE_AT;
+    private volatile boolean pruneWanted;
+    private final AtomicBoolean pruning = new AtomicBoolean();
+
+    TreeMetrics(ConcurrentBinarySearchTree<?> tree) {
+        this.tree = tree;
+        this.retriesAtReset = tree.restarts();
+        this.timeoutsAtReset = timeouts();
+    }
+
+    /***
+     * Registers the metrics with the platform MBean server.
+     * @param name the name key of the object name, which becomes src:type=ConcurrentBinarySearchTree,name=...
+     * @return the name they were registered under, for unregister
+     */
+    public ObjectName register(String name) throws JMException {
+        ObjectName objectName = new ObjectName("src:type=ConcurrentBinarySearchTree,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        return objectName;
+    }
+
+    public static void unregister(ObjectName objectName) throws JMException {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+    }
+
+    @Override
+    public long getSize() {
+        return tree.size();
+    }
+
+    /***
+     * Walks the whole tree, so it costs as much as iterating over it. That is why it is an operation, which a JMX
+     * console only runs when asked to, rather than an attribute, which consoles read every time they poll.
+     */
+    @Override
+    public int height() {
+        return tree.height();
+    }
+
+    @Override
+    public Map<String, Long> getInsertLatencyNanos() {
+        return summary(insertLatency.snapshot());
+    }
+
+    @Override
+    public Map<String, Long> getRemoveLatencyNanos() {
+        return summary(removeLatency.snapshot());
+    }
+
+    @Override
+    public Map<String, Long> getContainsLatencyNanos() {
+        return summary(containsLatency.snapshot());
+    }
+
+    @Override
+    public long[] getLockWaitsByDepth() {
+        return sums(lockWaits);
+    }
+
+    @Override
+    public long[] getLockWaitNanosByDepth() {
+        return sums(lockWaitNanos);
+    }
+
+    @Override
+    public long[] getTraversalDepthCounts() {
+        return sums(traversalDepths);
+    }
+
+    /***
+     * Inserts and removes that found their path changed and started over since the last reset.
+     */
+    @Override
+    public long getRetries() {
+        return tree.restarts() - retriesAtReset;
+    }
+
+    /***
+     * Inserts and removes given up because the thread was interrupted while waiting on a node.
+     */
+    @Override
+    public long getAborts() {
+        return aborts.sum();
+    }
+
+    /***
+     * Calls to tryInsert, tryRemove and tryContains shed since the last reset because their time ran out, under insert,
+     * remove and contains. These are counted whether or not metrics are enabled.
+     */
+    @Override
+    public Map<String, Long> getTimeouts() {
+        long[] now = timeouts();
+        long[] atReset = timeoutsAtReset;
+        Map<String, Long> timeouts = new LinkedHashMap<>();
+        timeouts.put("insert", now[0] - atReset[0]);
+        timeouts.put("remove", now[1] - atReset[1]);
+        timeouts.put("contains", now[2] - atReset[2]);
+        return timeouts;
+    }
+
+    private long[] timeouts() {
+        return new long[]{tree.timedOutInserts(), tree.timedOutRemoves(), tree.timedOutLookups()};
+    }
+
+    /***
+     * @param topK how many of the hottest nodes to list
+     * @see ConcurrentBinarySearchTree#contentionReport
+     */
+    @Override
+    public String contentionReport(int topK) {
+        return tree.contentionReport(topK, this);
+    }
+
+    /***
+     * Starts every count and histogram over, the counts per node included. Values recorded while resetting may end up
+     * on either side.
+     */
+    @Override
+    public void reset() {
+        sampledAcquisitions = new ConcurrentHashMap<>();
+        conflicts = new ConcurrentHashMap<>();
+        pruneAt = MIN_PRUNE_AT;
+        insertLatency = new ConcurrentLatencyHistogram();
+        removeLatency = new ConcurrentLatencyHistogram();
+        containsLatency = new ConcurrentLatencyHistogram();
+        lockWaits = adders();
+        lockWaitNanos = adders();
+        traversalDepths = adders();
+        aborts = new LongAdder();
+        retriesAtReset = tree.restarts();
+        timeoutsAtReset = timeouts();
+    }
+
+    void recordInsert(long nanos) {
+        insertLatency.record(nanos);
+        if (pruneWanted)
+            prune();
+    }
+
+    void recordRemove(long nanos) {
+        removeLatency.record(nanos);
+        if (pruneWanted)
+            prune();
+    }
+
+    void recordContains(long nanos) {
+        containsLatency.record(nanos);
+    }
+
+    void recordLockWait(int depth, long nanos) {
+        int slot = slot(depth);
+        lockWaits[slot].increment();
+        lockWaitNanos[slot].add(nanos);
+    }
+
+    void recordTraversalDepth(int depth) {
+        traversalDepths[slot(depth)].increment();
+    }
+
+    void recordAbort() {
+        aborts.increment();
+    }
+
+    /* Called by a writer that has just locked the node. */
+    void recordAcquisition(Object node) {
+        if (ThreadLocalRandom.current().nextInt(ACQUISITION_SAMPLING) == 0
+                && sampledAcquisitions.merge(node, 1, Integer::sum) == 1)
+            counted();
+    }
+
+    /* Called by a writer that found the node held, or lost the race to lock it. */
+    void recordConflict(Object node) {
+        if (conflicts.merge(node, 1, Integer::sum) == 1)
+            counted();
+    }
+
+    long acquisitions(Object node) {
+        Integer sampled = sampledAcquisitions.get(node);
+        return sampled == null ? 0 : (long) sampled * ACQUISITION_SAMPLING;
+    }
+
+    long conflicts(Object node) {
+        Integer counted = conflicts.get(node);
+        return counted == null ? 0 : counted;
+    }
+
+    /* A node got its first count. */
+    private void counted() {
+        if (sampledAcquisitions.size() + conflicts.size() > pruneAt)
+            pruneWanted = true;
+    }
+
+    private void prune() {
+        if (!pruning.compareAndSet(false, true))
+            return;
+        try {
+            pruneWanted = false;
+            Set<Object> reachable = tree.reachableNodes();
+            sampledAcquisitions.keySet().retainAll(reachable);
+            conflicts.keySet().retainAll(reachable);
+            pruneAt = Math.max(MIN_PRUNE_AT, 2 * (sampledAcquisitions.size() + conflicts.size()));
+        } finally {
+            pruning.set(false);
+        }
+    }
+
+    private static int slot(int depth) {
+        return Math.min(depth, MAX_DEPTH - 1);
+    }
+
+    private static LongAdder[] adders() {
+        LongAdder[] adders = new LongAdder[MAX_DEPTH];
+        for (int i = 0; i < MAX_DEPTH; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    /* Sums of the adders, without the empty slots past the deepest one used. */
+    private static long[] sums(LongAdder[] adders) {
+        long[] sums = new long[adders.length];
+        int length = 0;
+        for (int i = 0; i < adders.length; i++) {
+            sums[i] = adders[i].sum();
+            if (sums[i] != 0)
+                length = i + 1;
+        }
+        long[] used = new long[length];
+        System.arraycopy(sums, 0, used, 0, length);
+        return used;
+    }
+
+    private static Map<String, Long> summary(LatencyHistogram histogram) {
+        Map<String, Long> summary = new LinkedHashMap<>();
+        summary.put("count", histogram.count());
+        summary.put("p50", histogram.percentile(50));
+        summary.put("p90", histogram.percentile(90));
+        summary.put("p99", histogram.percentile(99));
+        summary.put("p99.9", histogram.percentile(99.9));
+        summary.put("max", histogram.max());
+        return summary;
+    }
+}
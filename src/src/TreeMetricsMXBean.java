@@ -0,0 +1,37 @@
+package src;
+
+import java.util.Map;
+
+/***
+ * Management interface of TreeMetrics, as seen through JMX. Latencies are in nanoseconds; each latency map holds the
+ * count, the 50th, 90th, 99th and 99.9th percentiles and the maximum of one kind of operation. Arrays by depth are
+ * indexed by depth in the tree, the root being at depth 1, with everything from the last index down added into it.
+ * The height walks the whole tree, so it is an operation rather than an attribute that consoles would poll.
+ */
+public interface TreeMetricsMXBean {
+    long getSize();
+
+    Map<String, Long> getInsertLatencyNanos();
+
+    Map<String, Long> getRemoveLatencyNanos();
+
+    Map<String, Long> getContainsLatencyNanos();
+
+    long[] getLockWaitsByDepth();
+
+    long[] getLockWaitNanosByDepth();
+
+    long[] getTraversalDepthCounts();
+
+    long getRetries();
+
+    long getAborts();
+
+    Map<String, Long> getTimeouts();
+
+    int height();
+
+    String contentionReport(int topK);
+
+    void reset();
+}